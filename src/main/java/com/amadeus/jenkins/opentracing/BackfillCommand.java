@@ -0,0 +1,72 @@
+package com.amadeus.jenkins.opentracing;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.cli.CLICommand;
+import hudson.model.Job;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Collections;
+import javax.annotation.Nullable;
+import jenkins.model.Jenkins;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.Option;
+
+/** CLI access to the {@link TraceBackfill}. */
+@Extension
+@Restricted(NoExternalUse.class)
+public final class BackfillCommand extends CLICommand {
+  @Argument(metaVar = "JOB", usage = "Full name of the job, all jobs if omitted")
+  public @Nullable String job;
+
+  @Option(name = "--from", usage = "Oldest start of the runs, ISO-8601 instant")
+  public @Nullable String from;
+
+  @Option(name = "--to", usage = "Latest start of the runs (exclusive), ISO-8601 instant")
+  public @Nullable String to;
+
+  @Override
+  public String getName() {
+    return "opentracing-backfill";
+  }
+
+  @Override
+  public String getShortDescription() {
+    return "Exports the traces of completed Pipeline builds to the configured tracer.";
+  }
+
+  @Override
+  @SuppressWarnings("rawtypes")
+  protected int run() throws Exception {
+    Jenkins jenkins = Jenkins.get();
+    jenkins.checkPermission(Jenkins.ADMINISTER);
+    Iterable<? extends Job> jobs;
+    if (job == null) {
+      jobs = jenkins.allItems(Job.class);
+    } else {
+      Job item = jenkins.getItemByFullName(job, Job.class);
+      if (item == null) {
+        throw new IllegalArgumentException("No such job: " + job);
+      }
+      jobs = Collections.singletonList(item);
+    }
+    int exported =
+        ExtensionList.lookupSingleton(TraceBackfill.class)
+            .export(jobs, parse(from, 0), parse(to, Long.MAX_VALUE));
+    stdout.println("Exported " + exported + " builds");
+    return 0;
+  }
+
+  private static long parse(@Nullable String instant, long defaultMillis) {
+    if (instant == null) {
+      return defaultMillis;
+    }
+    try {
+      return Instant.parse(instant).toEpochMilli();
+    } catch (DateTimeParseException e) {
+      throw new IllegalArgumentException("Not an ISO-8601 instant: " + instant, e);
+    }
+  }
+}
@@ -0,0 +1,242 @@
+package com.amadeus.jenkins.opentracing;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+import javax.annotation.Nullable;
+
+/**
+ * Concurrent replacement for {@code Collections.synchronizedMap(new WeakHashMap<>())}. Keys are
+ * held through {@link WeakReference}s and compared by {@link Object#equals(Object)}, exactly like
+ * in {@link java.util.WeakHashMap}, as some caches are keyed by boxed queue ids. Entries whose keys
+ * have been collected are expunged through a {@link ReferenceQueue} on every write.
+ *
+ * <p>The entries are stored in a {@link ConcurrentHashMap}, so lookups never block and updates only
+ * contend with updates of the same bin instead of a single monitor for the whole map. Null keys are
+ * not supported, looking them up always yields {@code null}.
+ */
+final class ConcurrentWeakHashMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V> {
+  private final ConcurrentHashMap<Key, V> delegate = new ConcurrentHashMap<>();
+  private final ReferenceQueue<K> queue = new ReferenceQueue<>();
+
+  @Override
+  public int size() {
+    expunge();
+    return delegate.size();
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  @Override
+  public @Nullable V get(@Nullable Object key) {
+    if (key == null) {
+      return null;
+    }
+    return delegate.get(new LookupKey(key));
+  }
+
+  @Override
+  public boolean containsKey(@Nullable Object key) {
+    return get(key) != null;
+  }
+
+  @Override
+  public @Nullable V put(K key, V value) {
+    expunge();
+    return delegate.put(newKey(key), value);
+  }
+
+  @Override
+  public @Nullable V putIfAbsent(K key, V value) {
+    expunge();
+    return delegate.putIfAbsent(newKey(key), value);
+  }
+
+  @Override
+  public @Nullable V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+    V existing = get(key);
+    if (existing != null) {
+      return existing;
+    }
+    expunge();
+    return delegate.computeIfAbsent(newKey(key), k -> mappingFunction.apply(key));
+  }
+
+  @Override
+  public @Nullable V remove(@Nullable Object key) {
+    expunge();
+    if (key == null) {
+      return null;
+    }
+    return delegate.remove(new LookupKey(key));
+  }
+
+  @Override
+  public boolean remove(@Nullable Object key, @Nullable Object value) {
+    expunge();
+    if (key == null) {
+      return false;
+    }
+    return delegate.remove(new LookupKey(key), value);
+  }
+
+  @Override
+  public boolean replace(K key, V oldValue, V newValue) {
+    expunge();
+    return delegate.replace(new LookupKey(key), oldValue, newValue);
+  }
+
+  @Override
+  public @Nullable V replace(K key, V value) {
+    expunge();
+    return delegate.replace(new LookupKey(key), value);
+  }
+
+  @Override
+  public void clear() {
+    delegate.clear();
+    expunge();
+  }
+
+  @Override
+  public Set<Entry<K, V>> entrySet() {
+    return new AbstractSet<Entry<K, V>>() {
+      @Override
+      public Iterator<Entry<K, V>> iterator() {
+        return new EntryIterator();
+      }
+
+      @Override
+      public int size() {
+        return ConcurrentWeakHashMap.this.size();
+      }
+    };
+  }
+
+  private WeakKey<K> newKey(K key) {
+    return new WeakKey<>(Objects.requireNonNull(key), queue);
+  }
+
+  private void expunge() {
+    Object stale;
+    while ((stale = queue.poll()) != null) {
+      delegate.remove(stale);
+    }
+  }
+
+  private interface Key {
+    @Nullable
+    Object referent();
+  }
+
+  // cleared keys are only equal to themselves, so expunging never removes a live entry
+  private static boolean keyEquals(Key key, int hash, @Nullable Object other) {
+    if (key == other) {
+      return true;
+    }
+    if (!(other instanceof Key) || other.hashCode() != hash) {
+      return false;
+    }
+    Object referent = key.referent();
+    return referent != null && referent.equals(((Key) other).referent());
+  }
+
+  private static final class WeakKey<K> extends WeakReference<K> implements Key {
+    private final int hash;
+
+    WeakKey(K referent, ReferenceQueue<? super K> queue) {
+      super(referent, queue);
+      this.hash = referent.hashCode();
+    }
+
+    @Override
+    public @Nullable Object referent() {
+      return get();
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(@Nullable Object other) {
+      return keyEquals(this, hash, other);
+    }
+  }
+
+  private static final class LookupKey implements Key {
+    private final Object referent;
+    private final int hash;
+
+    LookupKey(Object referent) {
+      this.referent = referent;
+      this.hash = referent.hashCode();
+    }
+
+    @Override
+    public Object referent() {
+      return referent;
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(@Nullable Object other) {
+      return keyEquals(this, hash, other);
+    }
+  }
+
+  private final class EntryIterator implements Iterator<Entry<K, V>> {
+    private final Iterator<Entry<Key, V>> entries = delegate.entrySet().iterator();
+    private @Nullable Entry<K, V> next;
+    private @Nullable K lastKey;
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean hasNext() {
+      while (next == null && entries.hasNext()) {
+        Entry<Key, V> entry = entries.next();
+        K key = (K) entry.getKey().referent();
+        if (key != null) {
+          next = new SimpleImmutableEntry<>(key, entry.getValue());
+        }
+      }
+      return next != null;
+    }
+
+    @Override
+    public Entry<K, V> next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      Entry<K, V> result = next;
+      next = null;
+      lastKey = result.getKey();
+      return result;
+    }
+
+    @Override
+    public void remove() {
+      if (lastKey == null) {
+        throw new IllegalStateException();
+      }
+      ConcurrentWeakHashMap.this.remove(lastKey);
+      lastKey = null;
+    }
+  }
+}
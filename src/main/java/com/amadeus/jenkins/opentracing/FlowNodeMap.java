@@ -0,0 +1,213 @@
+package com.amadeus.jenkins.opentracing;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.Nullable;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+
+/**
+ * Map from the {@link FlowNode}s of a <b>single</b> execution to their state. The ids of the nodes
+ * of an execution are small sequential integers, so the values are stored in an array indexed by
+ * the id, making lookups constant time and allocation free.
+ *
+ * <p>As ids are only ever increasing and most nodes are short lived, the array is compacted from
+ * the front when it runs out of space. Long lived entries with low ids, like the outer blocks of a
+ * pipeline, are moved to a fallback {@link HashMap} instead of preventing the compaction. The
+ * fallback also holds nodes with non-numeric ids.
+ *
+ * <p>{@code null} values are not supported and {@link #entrySet()} returns a snapshot.
+ */
+final class FlowNodeMap<V> extends AbstractMap<FlowNode, V> {
+  private static final int INITIAL_CAPACITY = 64;
+
+  private final Map<FlowNode, V> fallback = new HashMap<>();
+  private FlowNode[] keys = new FlowNode[INITIAL_CAPACITY];
+  private Object[] values = new Object[INITIAL_CAPACITY];
+  // id of the node at index 0
+  private int base;
+  // all entries in the array are in [first, end)
+  private int first;
+  private int end;
+  private int arraySize;
+
+  @Override
+  public synchronized int size() {
+    return arraySize + fallback.size();
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  @Override
+  public boolean containsKey(@Nullable Object key) {
+    return get(key) != null;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public synchronized @Nullable V get(@Nullable Object key) {
+    if (!(key instanceof FlowNode)) {
+      return null;
+    }
+    int id = parseId(((FlowNode) key).getId());
+    if (id < base) {
+      return fallback.get(key);
+    }
+    int index = id - base;
+    if (index >= end) {
+      return null;
+    }
+    return (V) values[index];
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public synchronized @Nullable V put(FlowNode key, V value) {
+    if (value == null) {
+      throw new NullPointerException("null values are not supported");
+    }
+    int id = parseId(key.getId());
+    if (id < base) {
+      return fallback.put(key, value);
+    }
+    int index = id - base;
+    if (index >= keys.length) {
+      index = makeRoom(id);
+    }
+    V previous = (V) values[index];
+    if (previous == null) {
+      if (arraySize == 0) {
+        first = index;
+        end = index + 1;
+      } else {
+        first = Math.min(first, index);
+        end = Math.max(end, index + 1);
+      }
+      arraySize++;
+    }
+    keys[index] = key;
+    values[index] = value;
+    return previous;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public synchronized @Nullable V remove(@Nullable Object key) {
+    if (!(key instanceof FlowNode)) {
+      return null;
+    }
+    int id = parseId(((FlowNode) key).getId());
+    if (id < base) {
+      return fallback.remove(key);
+    }
+    int index = id - base;
+    if (index >= end) {
+      return null;
+    }
+    V previous = (V) values[index];
+    if (previous != null) {
+      keys[index] = null;
+      values[index] = null;
+      arraySize--;
+      if (index == first) {
+        advanceFirst();
+      }
+    }
+    return previous;
+  }
+
+  @Override
+  public synchronized void clear() {
+    Arrays.fill(keys, null);
+    Arrays.fill(values, null);
+    fallback.clear();
+    first = 0;
+    end = 0;
+    arraySize = 0;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public synchronized Set<Entry<FlowNode, V>> entrySet() {
+    List<Entry<FlowNode, V>> entries = new ArrayList<>(size());
+    for (int i = first; i < end; i++) {
+      if (values[i] != null) {
+        entries.add(new SimpleImmutableEntry<>(keys[i], (V) values[i]));
+      }
+    }
+    entries.addAll(fallback.entrySet());
+    return new HashSet<>(entries);
+  }
+
+  // returns the new index of the node with the given id
+  @SuppressWarnings("unchecked")
+  private int makeRoom(int id) {
+    if (arraySize == 0) {
+      base = id;
+      first = 0;
+      end = 0;
+      return 0;
+    }
+    if (arraySize * 4 <= end - first) {
+      // mostly dead, move the survivors of the older half aside
+      int limit = first + (end - first) / 2;
+      for (int i = first; i < limit; i++) {
+        if (values[i] != null) {
+          fallback.put(keys[i], (V) values[i]);
+          keys[i] = null;
+          values[i] = null;
+          arraySize--;
+        }
+      }
+      first = limit;
+      advanceFirst();
+    }
+    int live = end - first;
+    System.arraycopy(keys, first, keys, 0, live);
+    System.arraycopy(values, first, values, 0, live);
+    Arrays.fill(keys, live, end, null);
+    Arrays.fill(values, live, end, null);
+    base += first;
+    end = live;
+    first = 0;
+
+    int index = id - base;
+    if (index >= keys.length) {
+      int capacity = Math.max(keys.length * 2, index + 1);
+      keys = Arrays.copyOf(keys, capacity);
+      values = Arrays.copyOf(values, capacity);
+    }
+    return index;
+  }
+
+  private void advanceFirst() {
+    while (first < end && values[first] == null) {
+      first++;
+    }
+  }
+
+  /** Parses the id of a node without allocating, returns {@code -1} for non-numeric ids. */
+  static int parseId(String id) {
+    int length = id.length();
+    if (length == 0 || length > 9 || (length > 1 && id.charAt(0) == '0')) {
+      return -1;
+    }
+    int result = 0;
+    for (int i = 0; i < length; i++) {
+      char c = id.charAt(i);
+      if (c < '0' || c > '9') {
+        return -1;
+      }
+      result = result * 10 + (c - '0');
+    }
+    return result;
+  }
+}
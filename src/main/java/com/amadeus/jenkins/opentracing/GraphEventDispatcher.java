@@ -0,0 +1,160 @@
+package com.amadeus.jenkins.opentracing;
+
+import com.google.common.annotations.VisibleForTesting;
+import hudson.Extension;
+import hudson.init.Terminator;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import jenkins.util.SystemProperties;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.DoNotUse;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Worker pool used by {@link OTGraphListener} when the asynchronous mode is enabled in the global
+ * configuration. The CPS VM thread only enqueues the new heads, spans are built and finished by the
+ * workers. Events of a single execution are always processed in order, see {@link
+ * OTGraphListener#onNewHead(FlowNode)}.
+ *
+ * <p>The amount of pending events over all executions is bounded, once the bound is reached the
+ * {@link OverflowPolicy} decides what happens with new events.
+ */
+@Extension
+@Restricted(NoExternalUse.class)
+public final class GraphEventDispatcher {
+  private static final String PREFIX = GraphEventDispatcher.class.getName();
+
+  private final int capacity = SystemProperties.getInteger(PREFIX + ".capacity", 10_000);
+  private final int threads = SystemProperties.getInteger(PREFIX + ".threads", 2);
+  private final OverflowPolicy overflowPolicy =
+      OverflowPolicy.valueOf(
+          SystemProperties.getString(PREFIX + ".overflowPolicy", OverflowPolicy.RUN_INLINE.name()));
+
+  private final AtomicInteger pending = new AtomicInteger();
+  private final LongAdder submitted = new LongAdder();
+  private final LongAdder processed = new LongAdder();
+  private final LongAdder processedInline = new LongAdder();
+  private final LongAdder dropped = new LongAdder();
+  private final LongAdder totalLagNanos = new LongAdder();
+  private final AtomicLong maxLagNanos = new AtomicLong();
+
+  private ExecutorService executor;
+
+  /** What to do with a new event if there are already too many pending ones. */
+  public enum OverflowPolicy {
+    /** Process the event on the calling thread, slowing down the pipeline instead of the plugin. */
+    RUN_INLINE,
+    /** Drop the event. The affected spans may never be finished. */
+    DISCARD
+  }
+
+  /**
+   * Hand over a new head to the worker pool.
+   *
+   * @return {@code false} if the caller has to process the event itself, also after the shutdown
+   */
+  boolean dispatch(OTGraphListener listener, FlowNode node) {
+    if (pending.incrementAndGet() > capacity) {
+      pending.decrementAndGet();
+      if (overflowPolicy == OverflowPolicy.DISCARD) {
+        dropped.increment();
+        return true;
+      }
+      processedInline.increment();
+      return false;
+    }
+    if (!listener.enqueueNewHead(node, System.nanoTime())) {
+      pending.decrementAndGet();
+      processedInline.increment();
+      return false;
+    }
+    submitted.increment();
+    return true;
+  }
+
+  /** @throws RejectedExecutionException once Jenkins is shutting down */
+  void execute(Runnable task) {
+    getExecutor().execute(task);
+  }
+
+  void onProcessed(long enqueuedNanos) {
+    long lag = System.nanoTime() - enqueuedNanos;
+    totalLagNanos.add(lag);
+    maxLagNanos.accumulateAndGet(lag, Math::max);
+    processed.increment();
+    pending.decrementAndGet();
+  }
+
+  private synchronized ExecutorService getExecutor() {
+    if (executor == null) {
+      executor =
+          Executors.newFixedThreadPool(
+              threads, new NamingThreadFactory(new DaemonThreadFactory(), "OpenTracing graph"));
+    }
+    return executor;
+  }
+
+  public OverflowPolicy getOverflowPolicy() {
+    return overflowPolicy;
+  }
+
+  public int getPending() {
+    return pending.get();
+  }
+
+  public long getSubmitted() {
+    return submitted.sum();
+  }
+
+  public long getProcessed() {
+    return processed.sum();
+  }
+
+  public long getProcessedInline() {
+    return processedInline.sum();
+  }
+
+  public long getDropped() {
+    return dropped.sum();
+  }
+
+  public long getMaxLagMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(maxLagNanos.get());
+  }
+
+  public double getAverageLagMillis() {
+    long count = processed.sum();
+    if (count == 0) {
+      return 0;
+    }
+    return totalLagNanos.sum() / (count * 1_000_000.0);
+  }
+
+  @VisibleForTesting
+  boolean awaitQuiescence(long timeout, TimeUnit unit) throws InterruptedException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    while (pending.get() > 0) {
+      if (System.nanoTime() > deadline) {
+        return false;
+      }
+      Thread.sleep(10);
+    }
+    return true;
+  }
+
+  @Restricted(DoNotUse.class)
+  @Terminator
+  public synchronized void shutdown() {
+    if (executor != null) {
+      executor.shutdown();
+    }
+  }
+}
@@ -0,0 +1,218 @@
+package com.amadeus.jenkins.opentracing;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.init.Terminator;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import jenkins.util.SystemProperties;
+import org.jenkinsci.plugins.workflow.flow.FlowExecution;
+import org.jenkinsci.plugins.workflow.flow.FlowExecutionList;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.jenkinsci.plugins.workflow.graphanalysis.DepthFirstScanner;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.DoNotUse;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Re-creates the spans of the running Pipelines once a reconfiguration flushed them, or once
+ * tracing was enabled after they started. The spans get the timing of the already executed nodes.
+ *
+ * <p>A single background thread walks the graph of one execution after the other. Nodes are loaded
+ * one at a time in the order of their creation, with a pause of {@code pauseMillis} after each
+ * {@code chunkSize} nodes, so that a reconfiguration of a busy controller does not compete with the
+ * builds. The listener is only locked while a node is processed, new heads wait for a single node.
+ */
+@Extension
+@Restricted(NoExternalUse.class)
+public final class GraphReplayer {
+  private static Logger logger = LoggerFactory.getLogger(GraphReplayer.class);
+
+  private static final String PREFIX = GraphReplayer.class.getName();
+  /** Tag of the run spans started by a replay. */
+  static final String REPLAYED_TAG = "jenkins.replayed";
+  // node ids are assigned in sequence, comparing the length first orders decimal ids numerically
+  static final Comparator<FlowNode> CREATION_ORDER =
+      Comparator.comparingInt((FlowNode n) -> n.getId().length()).thenComparing(FlowNode::getId);
+
+  private final int chunkSize =
+      Math.max(1, SystemProperties.getInteger(PREFIX + ".chunkSize", 500));
+  private final long pauseMillis = SystemProperties.getInteger(PREFIX + ".pauseMillis", 100);
+  // replays of an older reconfiguration give up
+  private final AtomicLong generation = new AtomicLong();
+
+  private ExecutorService executor;
+
+  /** Replays all running executions which have no listener, called after the spans were flushed. */
+  public void replayRunning() {
+    long replayGeneration = generation.incrementAndGet();
+    getExecutor()
+        .execute(
+            () -> {
+              try {
+                for (FlowExecution execution : FlowExecutionList.get()) {
+                  if (generation.get() != replayGeneration) {
+                    return;
+                  }
+                  replay(execution, replayGeneration);
+                }
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+              }
+            });
+  }
+
+  private void replay(FlowExecution execution, long replayGeneration) throws InterruptedException {
+    if (execution.isComplete()) {
+      return;
+    }
+    OTGraphListener listener =
+        ExtensionList.lookupSingleton(OTFlowExecutionListener.class).startReplay(execution);
+    if (listener == null) {
+      return;
+    }
+    Predicate<String> replayed = id -> false;
+    int count = 0;
+    try {
+      NodeSequence nodes = new NodeSequence(execution);
+      replayed = nodes::contains;
+      for (FlowNode node : nodes) {
+        listener.replay(node);
+        if (++count % chunkSize == 0) {
+          if (generation.get() != replayGeneration) {
+            return;
+          }
+          pause();
+        }
+      }
+      logger.debug("Replayed {} nodes of {}", count, execution);
+    } catch (RuntimeException e) {
+      logger.warn("Could not replay {}", execution, e);
+    } finally {
+      listener.finishReplay(replayed);
+    }
+  }
+
+  private void pause() throws InterruptedException {
+    if (pauseMillis > 0) {
+      Thread.sleep(pauseMillis);
+    }
+  }
+
+  private synchronized ExecutorService getExecutor() {
+    if (executor == null) {
+      executor =
+          Executors.newSingleThreadExecutor(
+              new NamingThreadFactory(new DaemonThreadFactory(), "OpenTracing graph replay"));
+    }
+    return executor;
+  }
+
+  /**
+   * The nodes of an execution which exist when it is created, in the order of their creation. The
+   * ids are assigned in sequence from 1 and the newest node is a head, so the nodes are looked up
+   * by id and only one is loaded at any time. The graphs with other ids are walked and sorted.
+   */
+  static final class NodeSequence implements Iterable<FlowNode> {
+    private final FlowExecution execution;
+    private final List<FlowNode> heads;
+    // -1 if the ids are not sequential
+    private final int newest;
+    private Set<String> walked;
+
+    NodeSequence(FlowExecution execution) {
+      this.execution = execution;
+      this.heads = execution.getCurrentHeads();
+      int max = 0;
+      for (FlowNode head : heads) {
+        try {
+          max = Math.max(max, Integer.parseInt(head.getId()));
+        } catch (NumberFormatException e) {
+          max = -1;
+          break;
+        }
+      }
+      this.newest = max;
+    }
+
+    /** Whether the node with {@code id} is part of the sequence. */
+    boolean contains(String id) {
+      if (newest < 0) {
+        return walked != null && walked.contains(id);
+      }
+      try {
+        return Integer.parseInt(id) <= newest;
+      } catch (NumberFormatException e) {
+        return false;
+      }
+    }
+
+    @Override
+    public Iterator<FlowNode> iterator() {
+      return newest < 0 ? walk().iterator() : new ById();
+    }
+
+    private List<FlowNode> walk() {
+      List<FlowNode> nodes = new ArrayList<>();
+      DepthFirstScanner scanner = new DepthFirstScanner();
+      scanner.setup(heads);
+      for (FlowNode node : scanner) {
+        nodes.add(node);
+      }
+      nodes.sort(CREATION_ORDER);
+      walked = new HashSet<>();
+      nodes.forEach(n -> walked.add(n.getId()));
+      return nodes;
+    }
+
+    private final class ById implements Iterator<FlowNode> {
+      private int id;
+      private FlowNode next;
+
+      @Override
+      public boolean hasNext() {
+        while (next == null && id < newest) {
+          String nextId = Integer.toString(++id);
+          try {
+            next = execution.getNode(nextId);
+          } catch (IOException e) {
+            logger.debug("Could not load node {} of {}", nextId, execution, e);
+          }
+        }
+        return next != null;
+      }
+
+      @Override
+      public FlowNode next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        FlowNode node = next;
+        next = null;
+        return node;
+      }
+    }
+  }
+
+  @Restricted(DoNotUse.class)
+  @Terminator
+  public synchronized void shutdown() {
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+  }
+}
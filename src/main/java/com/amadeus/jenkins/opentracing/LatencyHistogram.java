@@ -0,0 +1,65 @@
+package com.amadeus.jenkins.opentracing;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of the time spent in a listener callback. Durations are counted in buckets of powers of
+ * two microseconds, so recording is allocation free and does not contend. Percentiles are reported
+ * as the upper bound of their bucket.
+ */
+final class LatencyHistogram {
+  // the last bucket holds everything from about half a second on
+  private static final int BUCKETS = 21;
+
+  private final LongAdder[] buckets = new LongAdder[BUCKETS];
+  private final LongAdder totalNanos = new LongAdder();
+  private final AtomicLong maxNanos = new AtomicLong();
+
+  LatencyHistogram() {
+    for (int i = 0; i < BUCKETS; i++) {
+      buckets[i] = new LongAdder();
+    }
+  }
+
+  void record(long nanos) {
+    long micros = TimeUnit.NANOSECONDS.toMicros(Math.max(0, nanos));
+    int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+    buckets[bucket].increment();
+    totalNanos.add(nanos);
+    maxNanos.accumulateAndGet(nanos, Math::max);
+  }
+
+  /** Count, mean, maximum and percentiles in microseconds. */
+  Map<String, Number> snapshot() {
+    long[] counts = new long[BUCKETS];
+    long count = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      counts[i] = buckets[i].sum();
+      count += counts[i];
+    }
+    Map<String, Number> snapshot = new LinkedHashMap<>();
+    snapshot.put("count", count);
+    snapshot.put("meanMicros", count == 0 ? 0 : totalNanos.sum() / count / 1000);
+    snapshot.put("maxMicros", TimeUnit.NANOSECONDS.toMicros(maxNanos.get()));
+    snapshot.put("p50Micros", percentile(counts, count, 0.5));
+    snapshot.put("p90Micros", percentile(counts, count, 0.9));
+    snapshot.put("p99Micros", percentile(counts, count, 0.99));
+    return snapshot;
+  }
+
+  private static long percentile(long[] counts, long count, double percentile) {
+    long rank = (long) Math.ceil(count * percentile);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts[i];
+      if (seen >= rank && seen > 0) {
+        return 1L << i;
+      }
+    }
+    return 0;
+  }
+}
@@ -0,0 +1,71 @@
+package com.amadeus.jenkins.opentracing;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.XmlFile;
+import hudson.model.Saveable;
+import hudson.model.listeners.SaveableListener;
+import java.util.Optional;
+import javax.annotation.Nullable;
+import jenkins.model.Jenkins;
+import jenkins.model.JenkinsLocationConfiguration;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Remembers the configured URL of Jenkins, which is needed for every span. Invalidated whenever the
+ * {@link JenkinsLocationConfiguration} is saved.
+ */
+@Extension
+@Restricted(NoExternalUse.class)
+public final class LocationCache extends SaveableListener {
+  // null until resolved, empty if no URL is configured
+  private static volatile Optional<String> configuredUrl;
+  private static volatile Optional<String> rootUrl;
+
+  public LocationCache() {
+    // a new Jenkins instance, for example in tests
+    invalidate();
+  }
+
+  @Override
+  public void onChange(Saveable o, XmlFile file) {
+    if (o instanceof JenkinsLocationConfiguration) {
+      invalidate();
+    }
+  }
+
+  private static void invalidate() {
+    configuredUrl = null;
+    rootUrl = null;
+  }
+
+  /** The URL configured for Jenkins, as entered by the administrator. */
+  static Optional<String> getConfiguredUrl() {
+    Optional<String> url = configuredUrl;
+    if (url == null) {
+      try {
+        url = Optional.ofNullable(JenkinsLocationConfiguration.get().getUrl());
+      } catch (IllegalStateException e) {
+        /* baseurl not configured */
+        return Optional.empty();
+      }
+      configuredUrl = url;
+    }
+    return url;
+  }
+
+  /** Like {@link Jenkins#getRootUrl()}, which is only computed once if Jenkins has a URL. */
+  static @Nullable String getRootUrl() {
+    Optional<String> url = rootUrl;
+    if (url == null) {
+      url = getConfiguredUrl().map(u -> Util.ensureEndsWith(u, "/"));
+      if (!url.isPresent()) {
+        // derived from the current request, if there is one
+        return Jenkins.get().getRootUrl();
+      }
+      rootUrl = url;
+    }
+    return url.get();
+  }
+}
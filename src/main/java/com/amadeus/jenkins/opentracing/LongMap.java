@@ -0,0 +1,189 @@
+package com.amadeus.jenkins.opentracing;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import javax.annotation.Nullable;
+
+/**
+ * Map keyed by primitive {@code long}s, like the ids of queue items. Uses open addressing with
+ * linear probing, so the {@code long} variants of the accessors neither box the key nor allocate an
+ * entry.
+ *
+ * <p>{@code null} values are not supported and {@link #entrySet()} returns a snapshot.
+ */
+final class LongMap<V> extends AbstractMap<Long, V> {
+  private static final int INITIAL_CAPACITY = 64;
+
+  private long[] keys = new long[INITIAL_CAPACITY];
+  // null marks a free slot
+  private Object[] values = new Object[INITIAL_CAPACITY];
+  private int size;
+
+  @Override
+  public synchronized int size() {
+    return size;
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  @Override
+  public boolean containsKey(@Nullable Object key) {
+    return get(key) != null;
+  }
+
+  @Override
+  public @Nullable V get(@Nullable Object key) {
+    if (!(key instanceof Long)) {
+      return null;
+    }
+    return get(((Long) key).longValue());
+  }
+
+  @SuppressWarnings("unchecked")
+  public synchronized @Nullable V get(long key) {
+    int index = indexOf(key);
+    return index < 0 ? null : (V) values[index];
+  }
+
+  @Override
+  public @Nullable V put(Long key, V value) {
+    return put(key.longValue(), value);
+  }
+
+  @SuppressWarnings("unchecked")
+  public synchronized @Nullable V put(long key, V value) {
+    if (value == null) {
+      throw new NullPointerException("null values are not supported");
+    }
+    int index = slot(key, keys.length);
+    while (values[index] != null) {
+      if (keys[index] == key) {
+        V previous = (V) values[index];
+        values[index] = value;
+        return previous;
+      }
+      index = (index + 1) & (keys.length - 1);
+    }
+    keys[index] = key;
+    values[index] = value;
+    size++;
+    if (size * 2 > keys.length) {
+      resize(keys.length * 2);
+    }
+    return null;
+  }
+
+  @Override
+  public @Nullable V remove(@Nullable Object key) {
+    if (!(key instanceof Long)) {
+      return null;
+    }
+    return remove(((Long) key).longValue());
+  }
+
+  @SuppressWarnings("unchecked")
+  public synchronized @Nullable V remove(long key) {
+    int index = indexOf(key);
+    if (index < 0) {
+      return null;
+    }
+    V previous = (V) values[index];
+    values[index] = null;
+    size--;
+    closeGap(index);
+    return previous;
+  }
+
+  /** Removes the entry only if it maps {@code key} to {@code value}, compared by identity. */
+  public synchronized boolean remove(long key, Object value) {
+    int index = indexOf(key);
+    if (index < 0 || values[index] != value) {
+      return false;
+    }
+    values[index] = null;
+    size--;
+    closeGap(index);
+    return true;
+  }
+
+  @Override
+  public synchronized void clear() {
+    if (keys.length > INITIAL_CAPACITY) {
+      keys = new long[INITIAL_CAPACITY];
+      values = new Object[INITIAL_CAPACITY];
+    } else {
+      Arrays.fill(values, null);
+    }
+    size = 0;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public synchronized Set<Entry<Long, V>> entrySet() {
+    List<Entry<Long, V>> entries = new ArrayList<>(size);
+    for (int i = 0; i < values.length; i++) {
+      if (values[i] != null) {
+        entries.add(new SimpleImmutableEntry<>(keys[i], (V) values[i]));
+      }
+    }
+    return new HashSet<>(entries);
+  }
+
+  private int indexOf(long key) {
+    int index = slot(key, keys.length);
+    while (values[index] != null) {
+      if (keys[index] == key) {
+        return index;
+      }
+      index = (index + 1) & (keys.length - 1);
+    }
+    return -1;
+  }
+
+  // moves back the entries of the probe sequence following a removed entry
+  private void closeGap(int gap) {
+    int mask = keys.length - 1;
+    int index = (gap + 1) & mask;
+    while (values[index] != null) {
+      int home = slot(keys[index], keys.length);
+      // the entry can move if its home slot is not between the gap and its current slot
+      if (((index - home) & mask) >= ((index - gap) & mask)) {
+        keys[gap] = keys[index];
+        values[gap] = values[index];
+        values[index] = null;
+        gap = index;
+      }
+      index = (index + 1) & mask;
+    }
+  }
+
+  private void resize(int capacity) {
+    long[] oldKeys = keys;
+    Object[] oldValues = values;
+    keys = new long[capacity];
+    values = new Object[capacity];
+    for (int i = 0; i < oldValues.length; i++) {
+      if (oldValues[i] != null) {
+        int index = slot(oldKeys[i], capacity);
+        while (values[index] != null) {
+          index = (index + 1) & (capacity - 1);
+        }
+        keys[index] = oldKeys[i];
+        values[index] = oldValues[i];
+      }
+    }
+  }
+
+  // ids are mostly sequential, spread them over the table
+  private static int slot(long key, int capacity) {
+    long hash = key * 0x9E3779B97F4A7C15L;
+    return (int) (hash ^ (hash >>> 32)) & (capacity - 1);
+  }
+}
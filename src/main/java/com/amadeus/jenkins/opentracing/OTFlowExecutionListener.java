@@ -1,16 +1,25 @@
 package com.amadeus.jenkins.opentracing;
 
+import com.amadeus.jenkins.opentracing.config.OTConfig;
 import hudson.Extension;
 import hudson.ExtensionList;
+import hudson.init.Terminator;
 import hudson.model.Run;
 import io.opentracing.Span;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import org.jenkinsci.plugins.workflow.flow.FlowExecution;
 import org.jenkinsci.plugins.workflow.flow.FlowExecutionListener;
+import org.jenkinsci.plugins.workflow.flow.GraphListener;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
 import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.DoNotUse;
 import org.kohsuke.accmod.restrictions.NoExternalUse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -18,48 +27,128 @@ import org.slf4j.LoggerFactory;
 /**
  * {@link FlowExecutionListener} that attaches {@link OTGraphListener} to pipeline jobs. Also keeps
  * track of attached listeners and provides access to this information.
+ *
+ * <p>The executions only get a listener forwarding to their current {@link OTGraphListener}, so
+ * that it can be replaced by the {@link GraphReplayer}. Executions resumed after a restart get
+ * their {@link OTGraphListener} once they make progress, the trace is then continued from the
+ * contexts recorded in the {@link SpanContextLog} of the run.
  */
 @Extension
 @Restricted(NoExternalUse.class)
 public final class OTFlowExecutionListener extends FlowExecutionListener {
   private static final Logger logger = LoggerFactory.getLogger(OTFlowExecutionListener.class);
 
+  private final SpanStorage spanStorage = ExtensionList.lookupSingleton(SpanStorage.class);
   private final Map<FlowExecution, OTGraphListener> graphListeners =
-      ExtensionList.lookupSingleton(SpanStorage.class).getCache(OTFlowExecutionListener.class);
+      spanStorage.getCache(OTFlowExecutionListener.class);
+  // executions without a span, flushed with the spans so that a new tracer decides again
+  private final Map<FlowExecution, Boolean> untraced =
+      spanStorage.getCache(OTFlowExecutionListener.class, "untraced");
   private final OTRunListener runListener = ExtensionList.lookupSingleton(OTRunListener.class);
+  private final OTConfig config = ExtensionList.lookupSingleton(OTConfig.class);
+  // not flushed with the spans, the recorded contexts are still valid after a reconfiguration
+  private final Set<FlowExecution> resumed =
+      Collections.newSetFromMap(new ConcurrentWeakHashMap<>());
+  // one per execution, so that the logs of flushed listeners do not write behind the new ones
+  private final Map<FlowExecution, SpanContextLog> contextLogs = new ConcurrentWeakHashMap<>();
 
   @Override
   public void onRunning(@Nonnull FlowExecution execution) {
-    OTGraphListener listener = getListener(execution);
-    if (listener != null) {
-      execution.addListener(listener);
-    }
+    // also without tracing, the spans are replayed if it is enabled later on
+    execution.addListener(new ForwardingGraphListener(execution));
   }
 
   @Override
   public void onResumed(@Nonnull FlowExecution execution) {
-    /* not relevant for us (so far) */
+    if (config.isActive()) {
+      // the tracer may not be usable yet while Jenkins starts, so the spans are resumed lazily
+      resumed.add(execution);
+    }
+    execution.addListener(new ForwardingGraphListener(execution));
   }
 
   @Override
   public void onCompleted(@Nonnull FlowExecution execution) {
-    graphListeners.remove(execution);
+    SpanContextLog contextLog = contextLogs.remove(execution);
+    if (contextLog != null) {
+      contextLog.discard();
+    }
+    if (!config.isActive()) {
+      return;
+    }
+    OTGraphListener listener = graphListeners.remove(execution);
+    if (listener != null) {
+      // the remaining states of the listener are not needed anymore
+      spanStorage.release(listener);
+    }
   }
 
   public @Nullable OTGraphListener getListener(FlowExecution execution) {
+    if (!config.isActive() || untraced.containsKey(execution)) {
+      return null;
+    }
     return graphListeners.computeIfAbsent(
+        execution,
+        e -> {
+          Run run = getRun(e);
+          Span span = run != null ? runListener.getSpan(run) : null;
+          Map<String, Map<String, String>> contexts = Collections.emptyMap();
+          if (span == null && run != null && resumed.remove(e)) {
+            contexts = new HashMap<>(getContextLog(e, run).recover());
+            span = runListener.resume(run, contexts.remove(SpanContextLog.RUN));
+          }
+          if (span == null) {
+            // not sampled or not traced, the next nodes do not look it up again
+            untraced.put(e, Boolean.TRUE);
+            return null;
+          }
+          return new OTGraphListener(span, getContextLog(e, run), contexts);
+        });
+  }
+
+  /**
+   * Creates a listener for an execution whose spans were flushed, deferring its new heads until the
+   * graph was replayed. {@code null} if the execution does not need one.
+   */
+  @Nullable
+  OTGraphListener startReplay(FlowExecution execution) {
+    if (!config.isActive() || resumed.contains(execution)) {
+      // resumed executions continue from their recorded contexts
+      return null;
+    }
+    AtomicReference<OTGraphListener> created = new AtomicReference<>();
+    graphListeners.computeIfAbsent(
         execution,
         e -> {
           Run run = getRun(e);
           if (run == null) {
             return null;
           }
-          Span span = runListener.getSpan(run);
+          Span span = runListener.replay(run);
           if (span == null) {
             return null;
           }
-          return new OTGraphListener(span);
+          untraced.remove(e);
+          SpanContextLog contextLog = getContextLog(e, run);
+          // recorded with the previous tracer
+          contextLog.reset();
+          OTGraphListener listener = new OTGraphListener(span, contextLog, Collections.emptyMap());
+          listener.startReplay();
+          created.set(listener);
+          return listener;
         });
+    return created.get();
+  }
+
+  private SpanContextLog getContextLog(FlowExecution execution, Run run) {
+    return contextLogs.computeIfAbsent(execution, e -> new SpanContextLog(run.getRootDir()));
+  }
+
+  /** Writes the contexts buffered by the logs, Jenkins is going down. */
+  @Restricted(DoNotUse.class)
+  @Terminator
+  public void writeContextLogs() {
+    contextLogs.values().forEach(SpanContextLog::write);
   }
 
   private static @Nullable Run getRun(FlowExecution execution) {
@@ -70,4 +159,21 @@ public final class OTFlowExecutionListener extends FlowExecutionListener {
       return null;
     }
   }
+
+  /** Forwards the new heads of an execution to its current {@link OTGraphListener}. */
+  private final class ForwardingGraphListener implements GraphListener, GraphListener.Synchronous {
+    private final FlowExecution execution;
+
+    private ForwardingGraphListener(FlowExecution execution) {
+      this.execution = execution;
+    }
+
+    @Override
+    public void onNewHead(FlowNode node) {
+      OTGraphListener listener = getListener(execution);
+      if (listener != null) {
+        listener.onNewHead(node);
+      }
+    }
+  }
 }
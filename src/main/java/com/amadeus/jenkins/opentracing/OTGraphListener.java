@@ -5,13 +5,23 @@ import com.amadeus.jenkins.opentracing.workflow.TraceStep.DescriptorImpl;
 import hudson.ExtensionList;
 import hudson.model.Queue;
 import io.opentracing.Span;
+import io.opentracing.SpanContext;
 import io.opentracing.Tracer;
 import io.opentracing.Tracer.SpanBuilder;
 import io.opentracing.propagation.Format;
 import io.opentracing.propagation.TextMapAdapter;
+import java.io.IOException;
 import java.lang.ref.Reference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
 import javax.annotation.Nullable;
 import org.jenkinsci.plugins.workflow.actions.ArgumentsAction;
 import org.jenkinsci.plugins.workflow.actions.ErrorAction;
@@ -27,59 +37,205 @@ import org.jenkinsci.plugins.workflow.graph.StepNode;
 import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
 import org.kohsuke.accmod.Restricted;
 import org.kohsuke.accmod.restrictions.NoExternalUse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * {@link GraphListener} connecting the Pipeline graph to OpenTracing. Also provides access to the
  * connections.
+ *
+ * <p>In {@link OTConfig#isAsynchronous() asynchronous mode} new heads are only queued on the CPS VM
+ * thread and processed in order by the {@link GraphEventDispatcher}. All processing happens while
+ * holding the monitor of the listener, callers needing a span right away first drain the queue.
+ *
+ * <p>The contexts of the block spans are recorded in a {@link SpanContextLog}. When the Pipeline
+ * resumed after a restart the spans of the blocks started before are only continued once a node
+ * needs them, the graph is not scanned up front.
+ *
+ * <p>While the {@link GraphReplayer} feeds the nodes created before the listener, new heads are
+ * deferred until it caught up.
  */
 @Restricted(NoExternalUse.class)
 public final class OTGraphListener implements GraphListener, GraphListener.Synchronous {
+  private static Logger logger = LoggerFactory.getLogger(OTGraphListener.class);
+
+  private final OTConfig config;
+  private final GraphEventDispatcher dispatcher;
+  private final PluginMetrics metrics;
   private final Tracer tracer;
   private final Map<FlowNode, State> states;
+  // enclosing block of the processed nodes which are not block starts and do not have children yet
+  private final Map<FlowNode, State> headEnclosing;
   private final Reference<Span> flowParentSpan;
-
-  OTGraphListener(Span flowParentSpan) {
+  private final @Nullable SpanContextLog contextLog;
+  // contexts of the blocks started before a restart which were not continued yet, by node id
+  private final Map<String, Map<String, String>> resumedContexts;
+  private final ConcurrentLinkedQueue<PendingHead> pendingHeads = new ConcurrentLinkedQueue<>();
+  private final AtomicBoolean drainScheduled = new AtomicBoolean();
+  // propagation headers of the span contexts handed to the steps, contexts do not override equals
+  private final Map<SpanContext, Map<String, String>> injected = new ConcurrentWeakHashMap<>();
+  // new heads received during a replay, null if not replaying
+  private @Nullable List<FlowNode> deferredHeads;
+  // all nodes share the URL of their execution, resolved once
+  private @Nullable String executionUrl;
+
+  OTGraphListener(
+      Span flowParentSpan,
+      @Nullable SpanContextLog contextLog,
+      Map<String, Map<String, String>> resumedContexts) {
     SpanStorage storage = ExtensionList.lookupSingleton(SpanStorage.class);
-    tracer = ExtensionList.lookupSingleton(OTConfig.class).getTracerForName("Jenkins Pipeline");
-    states = storage.getCache(this, "states");
+    config = ExtensionList.lookupSingleton(OTConfig.class);
+    dispatcher = ExtensionList.lookupSingleton(GraphEventDispatcher.class);
+    metrics = PluginMetrics.get();
+    tracer = config.getTracerForName("Jenkins Pipeline");
+    states = storage.getCache(this, "states", FlowNodeMap::new);
+    headEnclosing = storage.getCache(this, "headEnclosing", FlowNodeMap::new);
     this.flowParentSpan = storage.getReference(this, "flowParentSpan", flowParentSpan);
+    this.contextLog = contextLog;
+    this.resumedContexts = new HashMap<>(resumedContexts);
+    recordStart(SpanContextLog.RUN, flowParentSpan);
   }
 
   @Override
   public void onNewHead(FlowNode node) {
-    // if block end, stop its span
-    if (is(node, BlockEndNode.class)) {
-      // remove/get
-      // we receive two end nodes per start node
-      State startState = states.get(((BlockEndNode) node).getStartNode());
-      // FIXME delete
-      finishPreviousNodes(node);
-      if (startState != null) {
-        State activeChildState = states.get(startState.getActiveChild());
-        if (activeChildState != null) {
-          activeChildState.finish(node);
-        }
+    if (!config.isActive()) {
+      return;
+    }
+    long start = System.nanoTime();
+    try {
+      if (config.isAsynchronous() && dispatcher.dispatch(this, node)) {
+        return;
+      }
+      synchronized (this) {
+        drainPendingHeads();
+        processNewHead(node);
+      }
+    } finally {
+      metrics.graphListenerCalled(System.nanoTime() - start);
+    }
+  }
+
+  /** {@code false} if the head was not enqueued, the workers were shut down. */
+  boolean enqueueNewHead(FlowNode node, long enqueuedNanos) {
+    PendingHead head = new PendingHead(node, enqueuedNanos);
+    pendingHeads.add(head);
+    if (drainScheduled.compareAndSet(false, true)) {
+      try {
+        dispatcher.execute(this::drainScheduledHeads);
+      } catch (RejectedExecutionException e) {
+        // the next head tries again, the ones already enqueued are drained by the caller
+        drainScheduled.set(false);
+        return !pendingHeads.remove(head);
+      }
+    }
+    return true;
+  }
 
-        // The actions are only added when the step is started,
-        // not when it is created, which is *after* we can run.
-        // therefore only set it at the end of the block
-        completeStartNodeInformation(startState.getSpan(), (BlockStartNode) startState.getNode());
+  private synchronized void drainScheduledHeads() {
+    // reset before draining, heads enqueued from now on need a new run
+    drainScheduled.set(false);
+    drainPendingHeads();
+  }
 
-        startState.finish(node);
+  // callers have to hold the monitor
+  private void drainPendingHeads() {
+    PendingHead head;
+    while ((head = pendingHeads.poll()) != null) {
+      try {
+        processNewHead(head.node);
+      } catch (RuntimeException e) {
+        logger.warn("Could not process {}", head.node, e);
+      } finally {
+        dispatcher.onProcessed(head.enqueuedNanos);
       }
+    }
+  }
+
+  private void processNewHead(FlowNode node) {
+    if (deferredHeads != null) {
+      deferredHeads.add(node);
       return;
     }
+    processNode(node);
+  }
+
+  /** Defers new heads until {@link #finishReplay} is called. */
+  synchronized void startReplay() {
+    deferredHeads = new ArrayList<>();
+  }
+
+  /**
+   * Processes a node created before the listener. Nodes have to be replayed in the order of their
+   * creation, the monitor is only held for one so new heads are deferred without waiting long.
+   */
+  synchronized void replay(FlowNode node) {
+    try {
+      processNode(node);
+    } catch (RuntimeException e) {
+      logger.warn("Could not replay {}", node, e);
+    }
+  }
 
-    if (!is(node, AtomNode.class, BlockStartNode.class)) {
+  /** Processes the heads deferred during the replay, except the already replayed ones. */
+  synchronized void finishReplay(Predicate<String> replayedIds) {
+    List<FlowNode> deferred = deferredHeads;
+    deferredHeads = null;
+    if (deferred == null) {
       return;
     }
+    for (FlowNode node : deferred) {
+      if (!replayedIds.test(node.getId())) {
+        processNode(node);
+      }
+    }
+  }
 
-    onNewStartOrAtomNode(node);
+  private void processNode(FlowNode node) {
+    Optional<State> enclosing = enclosingState(node);
+    if (is(node, BlockEndNode.class)) {
+      onBlockEnd((BlockEndNode<?>) node, enclosing);
+    } else if (is(node, AtomNode.class, BlockStartNode.class)) {
+      startOrAtomNode(node, enclosing);
+    }
+
+    // block starts are found through their state
+    if (!(node instanceof BlockStartNode)) {
+      enclosing.ifPresent(e -> headEnclosing.put(node, e));
+    }
+    for (FlowNode parent : node.getParents()) {
+      headEnclosing.remove(parent);
+    }
+  }
+
+  // stops the span of the block
+  private void onBlockEnd(BlockEndNode<?> node, Optional<State> enclosing) {
+    // remove/get
+    // we receive two end nodes per start node
+    State startState = blockState(node.getStartNode());
+    // FIXME delete
+    finishPreviousNodes(node, enclosing);
+    if (startState != null) {
+      // nothing will look up the block or its last child anymore
+      states.remove(startState.getNode());
+      State activeChildState = states.remove(startState.getActiveChild());
+      if (activeChildState != null) {
+        activeChildState.finish(node);
+      }
+
+      // The actions are only added when the step is started,
+      // not when it is created, which is *after* we can run.
+      // therefore only set it at the end of the block
+      completeStartNodeInformation(startState.getSpan(), (BlockStartNode) startState.getNode());
+
+      startState.finish(node);
+      if (contextLog != null) {
+        contextLog.finished(startState.getNode().getId());
+      }
+    }
   }
 
-  private void finishPreviousNodes(FlowNode node) {
+  private void finishPreviousNodes(FlowNode node, Optional<State> parent) {
     FlowNode previous;
-    Optional<State> parent = enclosingState(node);
     if (!parent.isPresent()) {
       return;
     }
@@ -89,6 +245,7 @@ public final class OTGraphListener implements GraphListener, GraphListener.Synch
     // if previous atom, stop its span
     State previousState = states.get(previous);
     if (previousState != null && previousState.getNode() instanceof AtomNode) {
+      states.remove(previous);
       Utils.finishSpanWithFlowNodeTiming(previousState.getSpan(), node);
     }
   }
@@ -102,17 +259,47 @@ public final class OTGraphListener implements GraphListener, GraphListener.Synch
     return false;
   }
 
-  private Optional<Queue.LeftItem> getQueueItem(FlowNode node) {
-    for (FlowNode parent : node.iterateEnclosingBlocks()) {
-      QueueItemAction queueItemAction = parent.getAction(QueueItemAction.class);
-      if (queueItemAction != null) {
-        return Optional.ofNullable((Queue.LeftItem) queueItemAction.itemInQueue());
+  /** Nearest block enclosing {@code enclosing} or itself that had to be scheduled. */
+  private static @Nullable State getQueueItemBlock(@Nullable State enclosing) {
+    if (enclosing == null) {
+      return null;
+    }
+    // the action is added after the block started, but before its first child is created
+    if (enclosing.getNode().getAction(QueueItemAction.class) != null) {
+      return enclosing;
+    }
+    return enclosing.getQueueItemBlock();
+  }
+
+  private static @Nullable Span getQueueSpan(State queueItemBlock) {
+    if (queueItemBlock.getQueueSpan() == null) {
+      QueueItemAction queueItemAction = queueItemBlock.getNode().getAction(QueueItemAction.class);
+      Queue.Item item = queueItemAction == null ? null : queueItemAction.itemInQueue();
+      if (item instanceof Queue.LeftItem) {
+        OTQueueListener.getInstance()
+            .popLeftSpan((Queue.LeftItem) item)
+            .ifPresent(queueItemBlock::setQueueSpan);
       }
     }
-    return Optional.empty();
+    return queueItemBlock.getQueueSpan();
   }
 
-  public @Nullable Span onNewStartOrAtomNode(FlowNode node) {
+  public synchronized @Nullable Span onNewStartOrAtomNode(FlowNode node) {
+    drainPendingHeads();
+    return startOrAtomNode(node, enclosingState(node));
+  }
+
+  /** Span of the block directly enclosing {@code node}, which has already been processed. */
+  public synchronized Optional<Span> getEnclosingSpan(FlowNode node) {
+    drainPendingHeads();
+    State enclosing = headEnclosing.get(node);
+    if (enclosing != null) {
+      return Optional.of(enclosing.getSpan());
+    }
+    return enclosingState(node).map(State::getSpan);
+  }
+
+  private @Nullable Span startOrAtomNode(FlowNode node, Optional<State> enclosingState) {
     if (node instanceof AtomNode && isCustomTraceStep(node)) {
       return null;
     }
@@ -122,42 +309,116 @@ public final class OTGraphListener implements GraphListener, GraphListener.Synch
     }
 
     final Span parentSpan;
-    finishPreviousNodes(node);
+    finishPreviousNodes(node, enclosingState);
 
-    Optional<Queue.LeftItem> queueItem = getQueueItem(node);
+    State queueItemBlock = getQueueItemBlock(enclosingState.orElse(null));
+    Span queueSpan = queueItemBlock == null ? null : getQueueSpan(queueItemBlock);
 
-    if (queueItem.isPresent()) {
-      parentSpan = OTQueueListener.getInstance().spanForLeftItem(queueItem.get()).orElse(null);
+    if (queueSpan != null) {
+      parentSpan = queueSpan;
+    } else if (enclosingState.isPresent()) {
+      parentSpan = enclosingState.get().getSpan();
     } else {
-      Optional<State> enclosingState = enclosingState(node);
+      parentSpan = flowParentSpan.get();
+    }
 
-      if (enclosingState.isPresent()) {
-        parentSpan = enclosingState.get().getSpan();
-      } else {
-        parentSpan = flowParentSpan.get();
-      }
+    SpanBuilder spanBuilder = tracer.buildSpan(operationName(node)).asChildOf(parentSpan);
+
+    Utils.startSpanWithFlowNodeTiming(spanBuilder, node);
+    completeNodeInformation(spanBuilder, node);
+
+    Span span = spanBuilder.start();
+    addUrlTag(span, node);
+    states.put(node, new State(node, span, enclosingState.orElse(null), queueItemBlock));
+    if (node instanceof BlockStartNode) {
+      recordStart(node.getId(), span);
     }
+    return span;
+  }
 
-    String operationName;
+  private static String operationName(FlowNode node) {
     if (node instanceof AtomNode) {
-      operationName = node.getDisplayFunctionName();
-    } else {
-      operationName = node.getDisplayName() + " " + node.getDisplayFunctionName();
+      return node.getDisplayFunctionName();
     }
+    return node.getDisplayName() + " " + node.getDisplayFunctionName();
+  }
 
-    SpanBuilder spanBuilder = tracer.buildSpan(operationName).asChildOf(parentSpan);
+  /** State of a block, continued from its recorded context if it started before a restart. */
+  private @Nullable State blockState(FlowNode start) {
+    State state = states.get(start);
+    if (state == null && !resumedContexts.isEmpty()) {
+      state = resumeBlock(start);
+    }
+    return state;
+  }
 
-    Utils.startSpanWithFlowNodeTiming(spanBuilder, node);
-    completeNodeInformation(spanBuilder, node);
+  private @Nullable State resumeBlock(FlowNode start) {
+    Map<String, String> context = resumedContexts.remove(start.getId());
+    if (context == null) {
+      return null;
+    }
+    // the enclosing blocks are continued first, outermost to innermost
+    State enclosing = Utils.getEnclosing(start).map(this::blockState).orElse(null);
+    SpanContext lost = tracer.extract(Format.Builtin.TEXT_MAP, new TextMapAdapter(context));
+    SpanBuilder spanBuilder =
+        tracer.buildSpan(operationName(start)).withTag(SpanContextLog.RESUMED_TAG, true);
+    if (lost != null) {
+      spanBuilder.asChildOf(lost);
+    } else {
+      spanBuilder.asChildOf(enclosing != null ? enclosing.getSpan() : flowParentSpan.get());
+    }
+    completeNodeInformation(spanBuilder, start);
 
     Span span = spanBuilder.start();
-    Utils.addUrlTag(span, node);
-    states.put(node, new State(node, span));
-    return span;
+    addUrlTag(span, start);
+    State state = new State(start, span, enclosing, getQueueItemBlock(enclosing));
+    states.put(start, state);
+    recordStart(start.getId(), span);
+    return state;
   }
 
+  private void recordStart(String id, Span span) {
+    if (contextLog != null) {
+      contextLog.started(id, headers(span.context()));
+    }
+  }
+
+  // same as FlowNode#getUrl, without looking up the owner of the execution for every node
+  private void addUrlTag(Span span, FlowNode node) {
+    if (executionUrl == null) {
+      try {
+        executionUrl = node.getExecution().getUrl();
+      } catch (IOException e) {
+        logger.trace("Could not get url of node {}", node, e);
+        return;
+      }
+    }
+    Utils.addUrlTag(span, executionUrl + "node/" + node.getId() + "/");
+  }
+
+  /**
+   * Resolves the state of the block enclosing {@code node} through its already processed parents,
+   * only walking the graph if they are unknown.
+   */
   private Optional<State> enclosingState(FlowNode node) {
-    return Utils.getEnclosing(node).flatMap(e -> Optional.ofNullable(states.get(e)));
+    if (node instanceof BlockEndNode) {
+      State startState = blockState(((BlockEndNode<?>) node).getStartNode());
+      if (startState != null) {
+        return Optional.ofNullable(startState.getEnclosing());
+      }
+    } else {
+      List<FlowNode> parents = node.getParents();
+      if (parents.isEmpty()) {
+        return Optional.empty();
+      }
+      FlowNode parent = parents.get(0);
+      State enclosing =
+          parent instanceof BlockStartNode ? states.get(parent) : headEnclosing.get(parent);
+      if (enclosing != null) {
+        return Optional.of(enclosing);
+      }
+    }
+    return Utils.getEnclosing(node).flatMap(e -> Optional.ofNullable(blockState(e)));
   }
 
   private static boolean isCustomTraceStep(FlowNode node) {
@@ -172,11 +433,28 @@ public final class OTGraphListener implements GraphListener, GraphListener.Synch
     return descriptor instanceof DescriptorImpl;
   }
 
+  /**
+   * Adds the propagation headers of {@code span} to {@code envs}. They are encoded once per span
+   * context, as steps request their environment again and again. Changing the baggage of a span
+   * replaces its context, so the headers are encoded again.
+   */
   public void inject(Span span, Map<String, String> envs) {
-    tracer.inject(span.context(), Format.Builtin.TEXT_MAP, new TextMapAdapter(envs));
+    envs.putAll(headers(span.context()));
+  }
+
+  // also shared with the context log
+  private Map<String, String> headers(SpanContext context) {
+    return injected.computeIfAbsent(context, this::encode);
   }
 
-  Optional<Span> getSpan(FlowNode node) {
+  private Map<String, String> encode(SpanContext context) {
+    Map<String, String> headers = new HashMap<>();
+    tracer.inject(context, Format.Builtin.TEXT_MAP, new TextMapAdapter(headers));
+    return Collections.unmodifiableMap(headers);
+  }
+
+  synchronized Optional<Span> getSpan(FlowNode node) {
+    drainPendingHeads();
     return Optional.ofNullable(states.get(node)).map(State::getSpan);
   }
 
@@ -232,15 +510,32 @@ public final class OTGraphListener implements GraphListener, GraphListener.Synch
     return Optional.empty();
   }
 
-  private static class State {
+  private static final class PendingHead {
+    // FlowNodes are immutable apart from their actions, which are only read when the block ends
+    private final FlowNode node;
+    private final long enqueuedNanos;
+
+    PendingHead(FlowNode node, long enqueuedNanos) {
+      this.node = node;
+      this.enqueuedNanos = enqueuedNanos;
+    }
+  }
+
+  private static class State implements SpanStorage.Evictable {
     private final FlowNode node;
     private final Span span;
+    private final @Nullable State enclosing;
+    private final @Nullable State queueItemBlock;
+    private @Nullable Span queueSpan;
     private FlowNode activeChild;
     private boolean finished = false;
+    private final long createdNanos = System.nanoTime();
 
-    State(FlowNode node, Span span) {
+    State(FlowNode node, Span span, @Nullable State enclosing, @Nullable State queueItemBlock) {
       this.node = node;
       this.span = span;
+      this.enclosing = enclosing;
+      this.queueItemBlock = queueItemBlock;
     }
 
     Span getSpan() {
@@ -251,6 +546,25 @@ public final class OTGraphListener implements GraphListener, GraphListener.Synch
       return node;
     }
 
+    @Nullable
+    State getEnclosing() {
+      return enclosing;
+    }
+
+    @Nullable
+    State getQueueItemBlock() {
+      return queueItemBlock;
+    }
+
+    @Nullable
+    Span getQueueSpan() {
+      return queueSpan;
+    }
+
+    void setQueueSpan(Span queueSpan) {
+      this.queueSpan = queueSpan;
+    }
+
     FlowNode getActiveChild() {
       return activeChild;
     }
@@ -259,7 +573,7 @@ public final class OTGraphListener implements GraphListener, GraphListener.Synch
       this.activeChild = activeChild;
     }
 
-    void finish(FlowNode finishNode) {
+    synchronized void finish(FlowNode finishNode) {
       if (!finished) {
         ErrorAction error = getNode().getError();
         if (error != null) {
@@ -269,5 +583,19 @@ public final class OTGraphListener implements GraphListener, GraphListener.Synch
       }
       finished = true;
     }
+
+    @Override
+    public long getCreatedNanos() {
+      return createdNanos;
+    }
+
+    @Override
+    public synchronized void evict() {
+      if (!finished) {
+        span.setTag(SpanStorage.EVICTED_TAG, true);
+        span.finish();
+      }
+      finished = true;
+    }
   }
 }
@@ -1,11 +1,12 @@
 package com.amadeus.jenkins.opentracing;
 
 import com.amadeus.jenkins.opentracing.config.OTConfig;
+import com.google.common.annotations.VisibleForTesting;
 import hudson.Extension;
 import hudson.ExtensionList;
 import hudson.model.Cause;
 import hudson.model.Cause.UserIdCause;
-import hudson.model.Queue;
+import hudson.model.Job;
 import hudson.model.Queue.BlockedItem;
 import hudson.model.Queue.BuildableItem;
 import hudson.model.Queue.Item;
@@ -16,10 +17,16 @@ import hudson.model.queue.QueueListener;
 import io.opentracing.Span;
 import io.opentracing.Tracer;
 import io.opentracing.Tracer.SpanBuilder;
-import java.lang.reflect.InvocationTargetException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 import javax.annotation.Nullable;
 import org.jenkinsci.plugins.workflow.graph.FlowNode;
 import org.kohsuke.accmod.Restricted;
@@ -27,29 +34,47 @@ import org.kohsuke.accmod.restrictions.NoExternalUse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-/* FIXME implement all possible queue transitions */
-
 /**
  * {@link QueueListener} connecting the Jenkis queuing subsystem with OpenTracing. Also provides
  * access to the mappings.
+ *
+ * <p>Everything known about an item is kept in a single {@link QueuedItem} per queue id, which
+ * follows the item through the phases of the queue. The phases are not guaranteed to be entered and
+ * left in pairs, entering a phase ends the previous one and leaving the queue ends any phase. The
+ * record is evicted when the build or the node allocation picks up the queue span, when the item is
+ * cancelled, or at the latest {@link #LEFT_ITEM_RETENTION_MINUTES} minutes after it left.
  */
 @Extension
 @Restricted(NoExternalUse.class)
 public final class OTQueueListener extends QueueListener {
   private static Logger logger = LoggerFactory.getLogger(OTQueueListener.class);
 
+  static final long LEFT_ITEM_RETENTION_MINUTES = 10;
+
+  // resolved once per task class, empty if there is no usable 'getNode' method
+  private static final ClassValue<Optional<MethodHandle>> GET_NODE =
+      new ClassValue<Optional<MethodHandle>>() {
+        @Override
+        protected Optional<MethodHandle> computeValue(Class<?> type) {
+          return resolveGetNode(type);
+        }
+      };
+
   private final SpanStorage spanStorage = ExtensionList.lookupSingleton(SpanStorage.class);
-  private final Map<Long, Span> spanInQueue = getCache("spanInQueue");
-  private final Map<WaitingItem, Span> spanInWaiting = getCache("spanInWaiting");
-  private final Map<BlockedItem, Span> spanInBlocked = getCache("spanInBlocked");
-  private final Map<BuildableItem, Span> spanInBuildable = getCache("spanInBuildable");
-  private final Map<LeftItem, Span> spanLeft = getCache("spanLeft");
+  // strongly referenced, the records are evicted explicitly
+  private final Map<Long, QueuedItem> items =
+      spanStorage.getCache(OTQueueListener.class, "items", LongMap::new);
+  // left items in the order they left, to evict those never picked up
+  private final Deque<QueuedItem> leftItems = new ArrayDeque<>();
 
   private Tracer tracer;
+  private final OTConfig config;
   private final OTFlowExecutionListener flowExecutionListener;
+  private final PluginMetrics metrics = PluginMetrics.get();
 
   public OTQueueListener() {
-    tracer = ExtensionList.lookupSingleton(OTConfig.class).getTracerForName("Jenkins Queue");
+    config = ExtensionList.lookupSingleton(OTConfig.class);
+    tracer = config.getTracerForName("Jenkins Queue");
     flowExecutionListener = ExtensionList.lookupSingleton(OTFlowExecutionListener.class);
   }
 
@@ -57,7 +82,11 @@ public final class OTQueueListener extends QueueListener {
     return QueueListener.all().getInstance(OTQueueListener.class);
   }
 
-  private Span enterQueue(Item i) {
+  private QueuedItem enterQueue(Item i) {
+    QueuedItem item = getItem(i.getId());
+    if (item != null) {
+      return item;
+    }
     logger.debug(
         "EnterQueue {} {} {} {} {} {}",
         i.getId(),
@@ -67,59 +96,85 @@ public final class OTQueueListener extends QueueListener {
         i.task,
         i.task.getOwnerTask());
 
-    return spanInQueue.computeIfAbsent(
-        i.getId(),
-        task -> {
-          SpanBuilder builder = tracer.buildSpan("Queue " + i.task.getFullDisplayName());
-          String username = getUsername(i);
+    if (!isSampled(i.task)) {
+      item = new QueuedItem(i.getId(), null);
+    } else {
+      SpanBuilder builder = tracer.buildSpan("Queue " + i.task.getFullDisplayName());
+      String username = getUsername(i);
 
-          Span parent = getParentFromWorkflowNodeAllocation(i.task).orElse(null);
-          builder.asChildOf(parent);
-          Utils.addUrlTag(builder, i);
+      Span parent = getParentFromWorkflowNodeAllocation(i.task).orElse(null);
+      builder.asChildOf(parent);
+      Utils.addUrlTag(builder, i);
 
-          if (username != null) {
-            builder.withTag("username", username);
-          }
-          builder.ignoreActiveSpan();
-          return builder.start();
-        });
+      if (username != null) {
+        builder.withTag("username", username);
+      }
+      builder.ignoreActiveSpan();
+      item = new QueuedItem(i.getId(), builder.start());
+    }
+    items.put(i.getId(), item);
+    return item;
   }
 
   private Optional<Span> getParentFromWorkflowNodeAllocation(Task task) {
-    return getNode(task)
-        .flatMap(
-            node -> {
-              OTGraphListener graphListener =
-                  flowExecutionListener.getListener(node.getExecution());
-              return Optional.ofNullable(graphListener).flatMap(gl -> gl.getSpan(node));
-            });
+    return getNode(task).flatMap(this::getSpan);
+  }
+
+  private Optional<Span> getSpan(FlowNode node) {
+    OTGraphListener graphListener = flowExecutionListener.getListener(node.getExecution());
+    return Optional.ofNullable(graphListener).flatMap(gl -> gl.getSpan(node));
+  }
+
+  // parts of a Pipeline, like node allocations, follow the decision taken for their build
+  private boolean isSampled(Task task) {
+    Optional<FlowNode> node = getNode(task);
+    if (node.isPresent()) {
+      return getSpan(node.get()).isPresent();
+    }
+    return config.isSampled(Utils.getFullName(task));
   }
 
   // Handles org.jenkinsci.plugins.workflow.support.steps;.ExecutorStepExecution$PlaceHolderTask
-  private static Optional<FlowNode> getNode(Task task) {
+  @VisibleForTesting
+  static Optional<FlowNode> getNode(Task task) {
+    Optional<MethodHandle> getNode = GET_NODE.get(task.getClass());
+    if (!getNode.isPresent()) {
+      return Optional.empty();
+    }
     try {
-      Method getNodeMethod = task.getClass().getMethod("getNode");
-      if (!(FlowNode.class.equals(getNodeMethod.getReturnType()))) {
-        logger.warn(
-            "Found 'getNode' method with unexpected return type: {}",
-            getNodeMethod.getReturnType());
-        return Optional.empty();
-      }
-      if (getNodeMethod.getParameterCount() != 0) {
-        logger.warn(
-            "Found 'getNode' method with unexpected parameters: {}",
-            getNodeMethod.getParameterCount());
-        return Optional.empty();
-      }
-      return Optional.ofNullable((FlowNode) getNodeMethod.invoke(task));
-    } catch (NoSuchMethodException e) {
-      logger.trace("Task {} has not 'getNode' method, ignoring", task, e);
-    } catch (IllegalAccessException | InvocationTargetException e) {
+      return Optional.ofNullable((FlowNode) getNode.get().invokeExact((Object) task));
+    } catch (Error e) {
+      throw e;
+    } catch (Throwable e) {
       logger.debug("Could not execute 'getNode' on {}: {}", task.getClass(), task, e);
     }
     return Optional.empty();
   }
 
+  private static Optional<MethodHandle> resolveGetNode(Class<?> taskClass) {
+    Method getNodeMethod;
+    try {
+      getNodeMethod = taskClass.getMethod("getNode");
+    } catch (NoSuchMethodException e) {
+      logger.trace("Task class {} has no 'getNode' method, ignoring", taskClass);
+      return Optional.empty();
+    }
+    if (!(FlowNode.class.equals(getNodeMethod.getReturnType()))) {
+      logger.warn(
+          "Found 'getNode' method with unexpected return type: {}", getNodeMethod.getReturnType());
+      return Optional.empty();
+    }
+    try {
+      // the method may be declared by a class which is not public
+      getNodeMethod.setAccessible(true);
+      MethodHandle handle = MethodHandles.lookup().unreflect(getNodeMethod);
+      return Optional.of(handle.asType(MethodType.methodType(FlowNode.class, Object.class)));
+    } catch (IllegalAccessException | SecurityException e) {
+      logger.debug("Could not access 'getNode' of {}", taskClass, e);
+      return Optional.empty();
+    }
+  }
+
   private static @Nullable String getUsername(Item i) {
     for (Cause cause : i.getCauses()) {
       if (cause instanceof UserIdCause) {
@@ -131,104 +186,324 @@ public final class OTQueueListener extends QueueListener {
 
   @Override
   public void onEnterWaiting(WaitingItem wi) {
+    if (!config.isActive()) {
+      return;
+    }
     logger.debug("Enter Waiting {} {}", wi, wi.getAllActions());
-
-    Span parent = enterQueue(wi);
-
-    SpanBuilder builder = tracer.buildSpan("Waiting");
-    builder.ignoreActiveSpan();
-    builder.asChildOf(parent);
-    builder.withTag("reason", wi.getCauseOfBlockage().getShortDescription());
-    Utils.addUrlTag(builder, wi);
-
-    Span span = builder.start();
-    spanInWaiting.put(wi, span);
+    enterPhase(wi, Phase.WAITING);
   }
 
   @Override
   public void onLeaveWaiting(WaitingItem wi) {
-    logger.debug("Leave Waiting {} {}", wi, wi.getAllActions());
-    Span span = spanInWaiting.remove(wi);
-    if (span == null) {
+    if (!config.isActive()) {
       return;
     }
-    span.finish();
+    logger.debug("Leave Waiting {} {}", wi, wi.getAllActions());
+    leavePhase(wi, Phase.WAITING);
   }
 
   @Override
-  public void onEnterBlocked(Queue.BlockedItem bi) {
+  public void onEnterBlocked(BlockedItem bi) {
+    if (!config.isActive()) {
+      return;
+    }
     logger.debug("Enter Blocked {} {}", bi, bi.getAllActions());
-
-    Span parent = enterQueue(bi);
-
-    SpanBuilder builder = tracer.buildSpan("Blocked");
-    builder.ignoreActiveSpan();
-    builder.asChildOf(parent);
-    Utils.addUrlTag(builder, bi);
-
-    Span span = builder.start();
-    spanInBlocked.put(bi, span);
+    enterPhase(bi, Phase.BLOCKED);
   }
 
   @Override
   public void onLeaveBlocked(BlockedItem bi) {
-    logger.debug("Leave Blocked {} {}", bi, bi.getAllActions());
-    Span span = spanInBlocked.remove(bi);
-    if (span == null) {
+    if (!config.isActive()) {
       return;
     }
-    span.finish();
+    logger.debug("Leave Blocked {} {}", bi, bi.getAllActions());
+    leavePhase(bi, Phase.BLOCKED);
   }
 
   @Override
   public void onEnterBuildable(BuildableItem bi) {
+    if (!config.isActive()) {
+      return;
+    }
     logger.debug("Enter Buildable {} {}", bi, bi.getAllActions());
-
-    Span parent = enterQueue(bi);
-
-    SpanBuilder builder = tracer.buildSpan("Buildable");
-    builder.ignoreActiveSpan();
-    builder.asChildOf(parent);
-    Utils.addUrlTag(builder, bi);
-
-    Span span = builder.start();
-    spanInBuildable.put(bi, span);
+    enterPhase(bi, Phase.BUILDABLE);
   }
 
   @Override
   public void onLeaveBuildable(BuildableItem bi) {
-    logger.debug("Leave Buildable {} {}", bi, bi.getAllActions());
-    Span span = spanInBuildable.remove(bi);
-    if (span == null) {
+    if (!config.isActive()) {
       return;
     }
-    span.finish();
-  }
-
-  public Optional<Span> spanForLeftItem(LeftItem item) {
-    return Optional.ofNullable(spanLeft.get(item));
+    logger.debug("Leave Buildable {} {}", bi, bi.getAllActions());
+    leavePhase(bi, Phase.BUILDABLE);
   }
 
   @Override
   public void onLeft(LeftItem li) {
-    logger.debug("Left {} {}", li, li.getAllActions());
-    Span span = spanInQueue.get(li.getId());
-    if (span == null) {
+    if (!config.isActive()) {
       return;
     }
-    span.setTag("cancelled", li.isCancelled());
-    span.finish();
+    logger.debug("Left {} {}", li, li.getAllActions());
+    long start = System.nanoTime();
+    try {
+      QueuedItem item = getItem(li.getId());
+      if (item == null) {
+        return;
+      }
+      item.left(li.isCancelled());
+      if (li.isCancelled() || (item.span == null && !(li.task instanceof Job))) {
+        // nobody will pick up the record
+        removeItem(li.getId(), item);
+        return;
+      }
+      synchronized (leftItems) {
+        leftItems.addLast(item);
+        evictLeftItems(item.leftAt);
+      }
+    } finally {
+      metrics.queueListenerCalled(System.nanoTime() - start);
+    }
+  }
+
+  private void enterPhase(Item i, Phase phase) {
+    long start = System.nanoTime();
+    try {
+      QueuedItem item = enterQueue(i);
+      if (item.span == null || item.resume(phase)) {
+        return;
+      }
+      SpanBuilder builder = tracer.buildSpan(phase.operationName);
+      builder.ignoreActiveSpan();
+      builder.asChildOf(item.span);
+      if (phase == Phase.WAITING) {
+        builder.withTag("reason", i.getCauseOfBlockage().getShortDescription());
+      }
+      Utils.addUrlTag(builder, i);
+      item.enter(phase, builder, config.isCoalesceQueueTransitions());
+    } finally {
+      metrics.queueListenerCalled(System.nanoTime() - start);
+    }
+  }
 
-    spanLeft.put(li, span);
+  private void leavePhase(Item i, Phase phase) {
+    long start = System.nanoTime();
+    try {
+      QueuedItem item = getItem(i.getId());
+      if (item != null) {
+        item.leave(phase);
+      }
+    } finally {
+      metrics.queueListenerCalled(System.nanoTime() - start);
+    }
   }
 
-  public @Nullable Span popQueueSpan(long queueId) {
-    Span span = spanInQueue.remove(queueId);
-    logger.debug("Looking for parent for queueId {}: {}", queueId, span);
-    return span;
+  // called with the lock on leftItems held
+  private void evictLeftItems(long now) {
+    long retention = TimeUnit.MINUTES.toNanos(LEFT_ITEM_RETENTION_MINUTES);
+    QueuedItem oldest;
+    while ((oldest = leftItems.peekFirst()) != null && now - oldest.leftAt > retention) {
+      leftItems.removeFirst();
+      if (removeItem(oldest.id, oldest)) {
+        logger.debug("Queue item {} was never picked up", oldest.id);
+      }
+    }
   }
 
-  private <K> Map<K, Span> getCache(String name) {
-    return spanStorage.getCache(OTQueueListener.class, name);
+  /** The span of a node allocation which left the queue, can only be retrieved once. */
+  public Optional<Span> popLeftSpan(LeftItem li) {
+    QueuedItem item = getItem(li.getId());
+    if (item == null || !item.hasLeft() || !removeItem(li.getId(), item)) {
+      return Optional.empty();
+    }
+    return Optional.ofNullable(item.span);
+  }
+
+  /**
+   * The record of the item a run was scheduled with, {@code null} if it is not known. Can only be
+   * retrieved once.
+   */
+  @Nullable
+  QueuedItem popItem(long queueId) {
+    QueuedItem item = getItem(queueId);
+    if (item != null) {
+      removeItem(queueId, item);
+    }
+    logger.debug("Looking for parent for queueId {}: {}", queueId, item);
+    return item;
+  }
+
+  // the long variants of LongMap do not box the id
+  private @Nullable QueuedItem getItem(long id) {
+    if (items instanceof LongMap) {
+      return ((LongMap<QueuedItem>) items).get(id);
+    }
+    return items.get(id);
+  }
+
+  private boolean removeItem(long id, QueuedItem item) {
+    if (items instanceof LongMap) {
+      return ((LongMap<QueuedItem>) items).remove(id, item);
+    }
+    return items.remove(id, item);
+  }
+
+  enum Phase {
+    WAITING("Waiting", false),
+    BLOCKED("Blocked", true),
+    BUILDABLE("Buildable", true);
+
+    final String operationName;
+    // whether items can bounce into and out of this phase
+    final boolean flapping;
+    final String entriesTag;
+    final String millisTag;
+
+    Phase(String operationName, boolean flapping) {
+      this.operationName = operationName;
+      this.flapping = flapping;
+      String prefix = "jenkins.queue." + name().toLowerCase(Locale.ROOT);
+      this.entriesTag = prefix + ".entries";
+      this.millisTag = prefix + ".millis";
+    }
+  }
+
+  /** State of an item of the queue. */
+  static final class QueuedItem implements SpanStorage.Evictable {
+    private final long id;
+    // null if the item is not sampled
+    private final @Nullable Span span;
+    private @Nullable Phase phase;
+    private @Nullable Span phaseSpan;
+    // only while a coalesced span is open, indexed by the ordinal of the phase
+    private @Nullable int[] entries;
+    private @Nullable long[] nanos;
+    private long phaseStart;
+    private long phaseEndMicros;
+    private volatile boolean left;
+    // System.nanoTime() when the item left the queue
+    private volatile long leftAt;
+    private final long createdNanos = System.nanoTime();
+
+    QueuedItem(long id, @Nullable Span span) {
+      this.id = id;
+      this.span = span;
+    }
+
+    boolean isSampled() {
+      return span != null;
+    }
+
+    @Nullable
+    Span getSpan() {
+      return span;
+    }
+
+    boolean hasLeft() {
+      return left;
+    }
+
+    /**
+     * Starts the span of a new phase.
+     *
+     * @param coalesce whether the span is kept open when a flapping phase is left, so that it can
+     *     be resumed
+     */
+    synchronized void enter(Phase newPhase, SpanBuilder builder, boolean coalesce) {
+      // the previous phase was not left, for example if a listener failed
+      finishPhase();
+      phase = newPhase;
+      phaseSpan = builder.start();
+      if (coalesce && newPhase.flapping) {
+        entries = new int[Phase.values().length];
+        nanos = new long[Phase.values().length];
+        entries[newPhase.ordinal()]++;
+        phaseStart = System.nanoTime();
+      }
+    }
+
+    /** Continues the coalesced span after a bounce, if there is one. */
+    synchronized boolean resume(Phase newPhase) {
+      if (entries == null || phase != null || !newPhase.flapping) {
+        return false;
+      }
+      phase = newPhase;
+      entries[newPhase.ordinal()]++;
+      phaseStart = System.nanoTime();
+      phaseSpan.log(newPhase.operationName);
+      return true;
+    }
+
+    synchronized void leave(Phase oldPhase) {
+      if (phase != oldPhase) {
+        return;
+      }
+      if (entries == null) {
+        finishPhase();
+        return;
+      }
+      // the item may come back
+      endCoalescedPhase();
+    }
+
+    synchronized void left(boolean cancelled) {
+      finishPhase();
+      if (left) {
+        return;
+      }
+      if (span != null) {
+        span.setTag("cancelled", cancelled);
+        span.finish();
+      }
+      leftAt = System.nanoTime();
+      left = true;
+    }
+
+    @Override
+    public long getCreatedNanos() {
+      return createdNanos;
+    }
+
+    @Override
+    public synchronized void evict() {
+      finishPhase();
+      if (span != null && !left) {
+        span.setTag(SpanStorage.EVICTED_TAG, true);
+        span.finish();
+      }
+      left = true;
+    }
+
+    private void finishPhase() {
+      if (phaseSpan != null && entries != null) {
+        if (phase != null) {
+          endCoalescedPhase();
+        }
+        for (Phase p : Phase.values()) {
+          if (entries[p.ordinal()] > 0) {
+            phaseSpan.setTag(p.entriesTag, entries[p.ordinal()]);
+            phaseSpan.setTag(p.millisTag, TimeUnit.NANOSECONDS.toMillis(nanos[p.ordinal()]));
+          }
+        }
+        // the time after the last phase does not belong to the span
+        phaseSpan.finish(phaseEndMicros);
+      } else if (phaseSpan != null) {
+        phaseSpan.finish();
+      }
+      phase = null;
+      phaseSpan = null;
+      entries = null;
+      nanos = null;
+    }
+
+    private void endCoalescedPhase() {
+      nanos[phase.ordinal()] += System.nanoTime() - phaseStart;
+      phaseEndMicros = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+      phase = null;
+    }
+
+    @Override
+    public String toString() {
+      return "QueuedItem{" + id + ", " + span + '}';
+    }
   }
 }
@@ -1,5 +1,6 @@
 package com.amadeus.jenkins.opentracing;
 
+import com.amadeus.jenkins.opentracing.OTQueueListener.QueuedItem;
 import com.amadeus.jenkins.opentracing.config.OTConfig;
 import com.amadeus.jenkins.opentracing.config.TracerUiLink;
 import hudson.Extension;
@@ -9,10 +10,14 @@ import hudson.model.Run;
 import hudson.model.TaskListener;
 import hudson.model.listeners.RunListener;
 import io.opentracing.Span;
+import io.opentracing.SpanContext;
 import io.opentracing.Tracer;
 import io.opentracing.Tracer.SpanBuilder;
+import io.opentracing.propagation.Format;
+import io.opentracing.propagation.TextMapAdapter;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import org.kohsuke.accmod.Restricted;
@@ -26,8 +31,8 @@ import org.kohsuke.accmod.restrictions.NoExternalUse;
 @Restricted(NoExternalUse.class)
 public final class OTRunListener extends RunListener<Run> {
   private final Tracer tracer;
-  private final Map<Run, Span> runSpans =
-      ExtensionList.lookupSingleton(SpanStorage.class).getCache(OTRunListener.class);
+  private final SpanStorage spanStorage = ExtensionList.lookupSingleton(SpanStorage.class);
+  private final Map<Run, Span> runSpans = spanStorage.getCache(OTRunListener.class);
   private final OTConfig config = ExtensionList.lookupSingleton(OTConfig.class);
 
   public OTRunListener() {
@@ -36,43 +41,122 @@ public final class OTRunListener extends RunListener<Run> {
 
   @Override
   public void onStarted(Run run, TaskListener listener) {
-    Span parent = OTQueueListener.getInstance().popQueueSpan(run.getQueueId());
+    if (!config.isActive()) {
+      return;
+    }
+    QueuedItem item = OTQueueListener.getInstance().popItem(run.getQueueId());
+    boolean sampled =
+        item != null ? item.isSampled() : config.isSampled(run.getParent().getFullName());
+    if (!sampled) {
+      return;
+    }
+    Span parent = item != null ? item.getSpan() : null;
 
-    SpanBuilder builder = tracer.buildSpan(String.format("Job %s", run.getDisplayName()));
-    builder.ignoreActiveSpan();
+    SpanBuilder builder = buildSpan(run);
 
     if (parent != null) {
       builder.asChildOf(parent);
     }
 
-    builder.withTag("jenkins.job", run.getDisplayName());
-    builder.withTag("jenkins.build.number", run.number);
-
     Span span = builder.start();
     Utils.addUrlTag(span, run);
-    runSpans.put(run, span);
+    spanStorage.put(runSpans, run, span);
 
     Optional<TracerUiLink> uiLink = config.getLink(span);
     uiLink.ifPresent(run::addAction);
   }
 
+  /**
+   * Continues the trace of a run started before a restart. Its span was lost with the restart, the
+   * new one is a child of the recorded {@code context}.
+   */
+  @Nullable
+  Span resume(Run run, @Nullable Map<String, String> context) {
+    if (context == null) {
+      return null;
+    }
+    SpanContext lost = tracer.extract(Format.Builtin.TEXT_MAP, new TextMapAdapter(context));
+    if (lost == null) {
+      return null;
+    }
+    Span span = buildSpan(run).asChildOf(lost).withTag(SpanContextLog.RESUMED_TAG, true).start();
+    Utils.addUrlTag(span, run);
+    spanStorage.put(runSpans, run, span);
+    return span;
+  }
+
+  /**
+   * Starts the span of a run which was already running when the spans were flushed by a
+   * reconfiguration, or when tracing was enabled. The span starts with the run.
+   */
+  @Nullable
+  Span replay(Run run) {
+    if (!config.isActive() || !config.isSampled(run.getParent().getFullName())) {
+      return null;
+    }
+    Span span =
+        buildSpan(run)
+            .withStartTimestamp(TimeUnit.MILLISECONDS.toMicros(run.getStartTimeInMillis()))
+            .withTag(GraphReplayer.REPLAYED_TAG, true)
+            .start();
+    Utils.addUrlTag(span, run);
+    spanStorage.put(runSpans, run, span);
+    config.getLink(span).ifPresent(run::addOrReplaceAction);
+    return span;
+  }
+
+  private SpanBuilder buildSpan(Run run) {
+    return tracer
+        .buildSpan(String.format("Job %s", run.getDisplayName()))
+        .ignoreActiveSpan()
+        .withTag("jenkins.job", run.getDisplayName())
+        .withTag("jenkins.build.number", run.number);
+  }
+
   public @Nullable Span getSpan(Run run) {
     return runSpans.get(run);
   }
 
   @Override
   public void onCompleted(Run run, @Nonnull TaskListener listener) {
+    if (!config.isActive()) {
+      return;
+    }
     run.getUrl();
-    Span span = runSpans.get(run);
+    // completed runs may stay loaded for a long time, their span must not be evicted later on
+    Span span = runSpans.remove(run);
     if (span != null) {
-      Result result = run.getResult();
-      if (result != null) {
-        span.setTag("jenkins.result", result.toString());
-        if (!result.equals(Result.SUCCESS)) {
-          Utils.setError(span, null);
-        }
-      }
+      setResult(span, run);
       span.finish();
     }
   }
+
+  /**
+   * Starts the span of a completed run exported by the {@link TraceBackfill}, it is not tracked and
+   * has to be finished through {@link #finishCompleted}.
+   */
+  Span startCompleted(Run run) {
+    Span span =
+        buildSpan(run)
+            .withStartTimestamp(TimeUnit.MILLISECONDS.toMicros(run.getStartTimeInMillis()))
+            .withTag(TraceBackfill.BACKFILLED_TAG, true)
+            .start();
+    Utils.addUrlTag(span, run);
+    return span;
+  }
+
+  void finishCompleted(Span span, Run run) {
+    setResult(span, run);
+    span.finish(TimeUnit.MILLISECONDS.toMicros(run.getStartTimeInMillis() + run.getDuration()));
+  }
+
+  private static void setResult(Span span, Run run) {
+    Result result = run.getResult();
+    if (result != null) {
+      span.setTag("jenkins.result", result.toString());
+      if (!result.equals(Result.SUCCESS)) {
+        Utils.setError(span, null);
+      }
+    }
+  }
 }
@@ -1,15 +1,20 @@
 package com.amadeus.jenkins.opentracing;
 
+import com.amadeus.jenkins.opentracing.config.OTConfig;
 import hudson.EnvVars;
 import hudson.Extension;
 import hudson.ExtensionList;
+import hudson.Launcher;
 import hudson.model.TaskListener;
 import io.opentracing.Span;
 import java.io.IOException;
+import java.util.Set;
 import javax.annotation.Nonnull;
 import org.jenkinsci.plugins.workflow.graph.AtomNode;
 import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.jenkinsci.plugins.workflow.graph.StepNode;
 import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
 import org.jenkinsci.plugins.workflow.steps.StepEnvironmentContributor;
 import org.kohsuke.accmod.Restricted;
 import org.kohsuke.accmod.restrictions.DoNotUse;
@@ -20,17 +25,21 @@ public final class OTStepEnvironmentContributor extends StepEnvironmentContribut
 
   private final OTFlowExecutionListener flowExecutionListener =
       ExtensionList.lookupSingleton(OTFlowExecutionListener.class);
+  private final OTConfig config = ExtensionList.lookupSingleton(OTConfig.class);
 
   @Override
   public void buildEnvironmentFor(
       @Nonnull StepContext stepContext, @Nonnull EnvVars envs, @Nonnull TaskListener listener)
       throws IOException, InterruptedException {
+    if (!config.isActive()) {
+      return;
+    }
 
     FlowNode node = stepContext.get(FlowNode.class);
     if (node == null) {
       return;
     }
-    if (!(node instanceof AtomNode)) {
+    if (!(node instanceof AtomNode) || !mayLaunchProcesses(node)) {
       return;
     }
     OTGraphListener c = flowExecutionListener.getListener(node.getExecution());
@@ -43,4 +52,21 @@ public final class OTStepEnvironmentContributor extends StepEnvironmentContribut
     }
     c.inject(span, envs);
   }
+
+  /**
+   * Steps launch processes through the {@link Launcher} of their context or require the {@link
+   * EnvVars} to pass them on, the others never hand the propagation headers to a process. Steps
+   * without a known descriptor are assumed to launch some.
+   */
+  private static boolean mayLaunchProcesses(FlowNode node) {
+    if (!(node instanceof StepNode)) {
+      return true;
+    }
+    StepDescriptor descriptor = ((StepNode) node).getDescriptor();
+    if (descriptor == null) {
+      return true;
+    }
+    Set<? extends Class<?>> context = descriptor.getRequiredContext();
+    return context.contains(Launcher.class) || context.contains(EnvVars.class);
+  }
 }
@@ -0,0 +1,170 @@
+package com.amadeus.jenkins.opentracing;
+
+import com.amadeus.jenkins.opentracing.config.OTConfig;
+import com.amadeus.jenkins.opentracing.config.SpanLimits;
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.model.PeriodicWork;
+import hudson.model.RootAction;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONObject;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cost of the plugin on the controller: spans started and finished per tracer, entries of the
+ * {@link SpanStorage}, time spent in the graph and queue listeners, the state of the {@link
+ * GraphEventDispatcher} and of the export of spans. Available to administrators as JSON under
+ * {@code /opentracing-metrics/}.
+ */
+@Extension
+@Restricted(NoExternalUse.class)
+public final class PluginMetrics implements RootAction {
+  private static Logger logger = LoggerFactory.getLogger(PluginMetrics.class);
+
+  private final LatencyHistogram graphListener = new LatencyHistogram();
+  private final LatencyHistogram queueListener = new LatencyHistogram();
+  // spans started per second by each tracer, computed by the RateSampler
+  private volatile Map<String, Double> startRates = Collections.emptyMap();
+  private @Nullable Map<String, Long> lastStarted;
+  private long lastSample;
+
+  static PluginMetrics get() {
+    return ExtensionList.lookupSingleton(PluginMetrics.class);
+  }
+
+  /** Time spent by {@link OTGraphListener#onNewHead} on the thread executing the Pipeline. */
+  void graphListenerCalled(long nanos) {
+    graphListener.record(nanos);
+  }
+
+  /** Time spent by a callback of {@link OTQueueListener}, while holding the queue lock. */
+  void queueListenerCalled(long nanos) {
+    queueListener.record(nanos);
+  }
+
+  @Override
+  public @Nullable String getIconFileName() {
+    return null;
+  }
+
+  @Override
+  public String getDisplayName() {
+    return "OpenTracing metrics";
+  }
+
+  @Override
+  public String getUrlName() {
+    return "opentracing-metrics";
+  }
+
+  public void doIndex(StaplerRequest req, StaplerResponse rsp) throws IOException {
+    Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+    rsp.setContentType("application/json;charset=UTF-8");
+    rsp.getWriter().print(JSONObject.fromObject(snapshot()).toString(2));
+  }
+
+  Map<String, Object> snapshot() {
+    OTConfig config = config();
+    Map<String, Object> snapshot = new LinkedHashMap<>();
+    snapshot.put("active", config.isActive());
+
+    Map<String, Object> spans = new TreeMap<>();
+    Map<String, Double> rates = startRates;
+    config
+        .getSpanCounters()
+        .forEach(
+            (name, counters) -> {
+              Map<String, Number> tracer = new LinkedHashMap<>();
+              tracer.put("started", counters.getStarted());
+              tracer.put("finished", counters.getFinished());
+              tracer.put("startedPerSecond", rates.getOrDefault(name, 0.0));
+              spans.put(name, tracer);
+            });
+    snapshot.put("spans", spans);
+
+    SpanLimits limits = config.getLimits();
+    Map<String, Number> limited = new LinkedHashMap<>();
+    limited.put("droppedTags", limits.getDroppedTags());
+    limited.put("droppedLogs", limits.getDroppedLogs());
+    limited.put("truncatedValues", limits.getTruncatedValues());
+    snapshot.put("limits", limited);
+
+    SpanStorage storage = ExtensionList.lookupSingleton(SpanStorage.class);
+    Map<String, Object> storageMetrics = new LinkedHashMap<>();
+    storageMetrics.put("caches", storage.getCacheSizes());
+    storageMetrics.put("evicted", storage.getEvicted());
+    snapshot.put("storage", storageMetrics);
+
+    Map<String, Object> listeners = new LinkedHashMap<>();
+    listeners.put("graph", graphListener.snapshot());
+    listeners.put("queue", queueListener.snapshot());
+    snapshot.put("listeners", listeners);
+
+    GraphEventDispatcher dispatcher = ExtensionList.lookupSingleton(GraphEventDispatcher.class);
+    Map<String, Number> dispatcherMetrics = new LinkedHashMap<>();
+    dispatcherMetrics.put("pending", dispatcher.getPending());
+    dispatcherMetrics.put("submitted", dispatcher.getSubmitted());
+    dispatcherMetrics.put("processed", dispatcher.getProcessed());
+    dispatcherMetrics.put("processedInline", dispatcher.getProcessedInline());
+    dispatcherMetrics.put("dropped", dispatcher.getDropped());
+    dispatcherMetrics.put("averageLagMillis", dispatcher.getAverageLagMillis());
+    dispatcherMetrics.put("maxLagMillis", dispatcher.getMaxLagMillis());
+    snapshot.put("dispatcher", dispatcherMetrics);
+
+    snapshot.put("reporter", config.getTracer().getMetrics());
+    return snapshot;
+  }
+
+  private synchronized void sample(long now) {
+    Map<String, Long> started = new HashMap<>();
+    config().getSpanCounters().forEach((name, c) -> started.put(name, c.getStarted()));
+    if (lastStarted != null) {
+      Map<String, Long> previous = lastStarted;
+      double seconds = (now - lastSample) / (double) TimeUnit.SECONDS.toNanos(1);
+      Map<String, Double> rates = new HashMap<>();
+      started.forEach(
+          (name, count) ->
+              rates.put(name, (count - previous.getOrDefault(name, 0L)) / seconds));
+      startRates = rates;
+      logger.debug(
+          "Spans started per second: {}, storage: {}, graph listener: {}, queue listener: {}",
+          rates,
+          ExtensionList.lookupSingleton(SpanStorage.class).getCacheSizes(),
+          graphListener.snapshot(),
+          queueListener.snapshot());
+    }
+    lastStarted = started;
+    lastSample = now;
+  }
+
+  private static OTConfig config() {
+    return ExtensionList.lookupSingleton(OTConfig.class);
+  }
+
+  /** Computes the rates of the {@link PluginMetrics} and logs them at debug level. */
+  @Extension
+  public static final class RateSampler extends PeriodicWork {
+    @Override
+    public long getRecurrencePeriod() {
+      return MIN;
+    }
+
+    @Override
+    protected void doRun() {
+      PluginMetrics.get().sample(System.nanoTime());
+    }
+  }
+}
@@ -0,0 +1,244 @@
+package com.amadeus.jenkins.opentracing;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import jenkins.util.SystemProperties;
+import jenkins.util.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only record of the contexts of the spans still open in a Pipeline run, stored in the
+ * directory of the build. Spans do not survive a restart of the controller, the recorded contexts
+ * allow to continue the trace with new spans that are children of the lost ones.
+ *
+ * <p>A line {@code +<id>\t<key>=<value>...} is written when a span starts and {@code -<id>} when it
+ * finishes, keys and values are URL encoded. The span of the run is identified by {@value #RUN},
+ * the spans of blocks by the id of their start node.
+ *
+ * <p>The lines are buffered and written by the {@link Timer} at most every {@code
+ * writeDelayMillis}, so the CPS VM thread never waits for the disk and no file is kept open. Once
+ * the file holds mostly finished spans, it is rewritten with the open ones only.
+ */
+final class SpanContextLog {
+  private static Logger logger = LoggerFactory.getLogger(SpanContextLog.class);
+
+  private static final String PREFIX = SpanContextLog.class.getName();
+  private static final long WRITE_DELAY_MILLIS =
+      SystemProperties.getInteger(PREFIX + ".writeDelayMillis", 1000);
+  // below this size, the file is never worth rewriting
+  private static final int MIN_COMPACTED_LINES = 100;
+
+  static final String FILE_NAME = "opentracing-contexts.log";
+  static final String RUN = "run";
+  /** Tag of the spans continuing a span lost with a restart. */
+  static final String RESUMED_TAG = "jenkins.resumed";
+
+  private final File file;
+  // serializes the file operations, taken before the monitor of the log
+  private final Object io = new Object();
+  // lines of the open spans by id, in the order they started
+  private final Map<String, String> open = new LinkedHashMap<>();
+  private final StringBuilder pending = new StringBuilder();
+  private int pendingLines;
+  private int writtenLines;
+  private boolean scheduled;
+  private boolean discarded;
+  // stop trying after the first failure instead of logging it for every span
+  private boolean failed;
+
+  SpanContextLog(File buildDir) {
+    this.file = new File(buildDir, FILE_NAME);
+  }
+
+  synchronized void started(String id, Map<String, String> context) {
+    if (context.isEmpty()) {
+      // the tracer does not propagate anything, there is nothing to continue
+      return;
+    }
+    StringBuilder line = new StringBuilder("+").append(id);
+    context.forEach((k, v) -> line.append('\t').append(encode(k)).append('=').append(encode(v)));
+    String started = line.toString();
+    open.put(id, started);
+    append(started);
+  }
+
+  synchronized void finished(String id) {
+    // spans without a recorded context are not worth a line
+    if (open.remove(id) != null) {
+      append("-" + id);
+    }
+  }
+
+  /**
+   * Contexts of the spans which were still open when the log was last written, by id. The log is
+   * compacted to these entries.
+   */
+  Map<String, Map<String, String>> recover() {
+    synchronized (io) {
+      if (!file.isFile()) {
+        return Collections.emptyMap();
+      }
+      Map<String, String> lines = new LinkedHashMap<>();
+      Map<String, Map<String, String>> contexts = new LinkedHashMap<>();
+      try {
+        for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+          if (line.startsWith("-")) {
+            lines.remove(line.substring(1));
+            contexts.remove(line.substring(1));
+          } else if (line.startsWith("+")) {
+            String[] fields = line.substring(1).split("\t");
+            lines.put(fields[0], line);
+            contexts.put(fields[0], parse(fields));
+          }
+        }
+      } catch (IOException e) {
+        logger.warn("Could not recover the span contexts from {}", file, e);
+        return Collections.emptyMap();
+      }
+      synchronized (this) {
+        open.clear();
+        open.putAll(lines);
+        pending.setLength(0);
+        pendingLines = 0;
+        discarded = false;
+      }
+      rewrite();
+      return contexts;
+    }
+  }
+
+  /** Forgets the recorded contexts, they were recorded with a previous tracer. */
+  void reset() {
+    synchronized (io) {
+      synchronized (this) {
+        open.clear();
+        pending.setLength(0);
+        pendingLines = 0;
+        writtenLines = 0;
+      }
+      try {
+        Files.deleteIfExists(file.toPath());
+      } catch (IOException e) {
+        logger.debug("Could not delete {}", file, e);
+      }
+    }
+  }
+
+  /** Forgets the recorded contexts once the run completed, nothing is recorded anymore. */
+  void discard() {
+    synchronized (io) {
+      synchronized (this) {
+        discarded = true;
+      }
+      reset();
+    }
+  }
+
+  // called with the monitor held
+  private void append(String line) {
+    if (failed || discarded) {
+      return;
+    }
+    pending.append(line).append('\n');
+    pendingLines++;
+    if (!scheduled) {
+      scheduled = true;
+      Timer.get().schedule(this::write, WRITE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /** Writes the buffered lines, rewriting the file if it mostly holds finished spans. */
+  void write() {
+    synchronized (io) {
+      String lines;
+      synchronized (this) {
+        scheduled = false;
+        if (pendingLines == 0 || failed || discarded) {
+          return;
+        }
+        if (writtenLines + pendingLines > Math.max(MIN_COMPACTED_LINES, 2 * open.size())) {
+          lines = null;
+        } else {
+          lines = pending.toString();
+          writtenLines += pendingLines;
+        }
+        pending.setLength(0);
+        pendingLines = 0;
+      }
+      if (lines == null) {
+        rewrite();
+        return;
+      }
+      try (OutputStream out = new FileOutputStream(file, true)) {
+        out.write(lines.getBytes(StandardCharsets.UTF_8));
+      } catch (IOException e) {
+        failed(e);
+      }
+    }
+  }
+
+  // called with the io lock held
+  private void rewrite() {
+    StringBuilder lines = new StringBuilder();
+    synchronized (this) {
+      open.values().forEach(line -> lines.append(line).append('\n'));
+      writtenLines = open.size();
+    }
+    File temporary = new File(file.getPath() + ".tmp");
+    try {
+      try (OutputStream out = new FileOutputStream(temporary)) {
+        out.write(lines.toString().getBytes(StandardCharsets.UTF_8));
+      }
+      Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      failed(e);
+    }
+  }
+
+  private synchronized void failed(IOException e) {
+    failed = true;
+    logger.warn(
+        "Could not record span context in {}, the trace will not survive a restart", file, e);
+  }
+
+  private static Map<String, String> parse(String[] fields) {
+    Map<String, String> context = new LinkedHashMap<>();
+    for (int i = 1; i < fields.length; i++) {
+      int separator = fields[i].indexOf('=');
+      if (separator > 0) {
+        context.put(
+            decode(fields[i].substring(0, separator)), decode(fields[i].substring(separator + 1)));
+      }
+    }
+    return context;
+  }
+
+  private static String encode(String s) {
+    try {
+      return URLEncoder.encode(s, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static String decode(String s) {
+    try {
+      return URLDecoder.decode(s, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
@@ -2,17 +2,27 @@ package com.amadeus.jenkins.opentracing;
 
 import com.google.common.annotations.VisibleForTesting;
 import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.model.PeriodicWork;
+import io.opentracing.Span;
 import java.lang.ref.Reference;
 import java.lang.ref.WeakReference;
-import java.util.AbstractMap.SimpleImmutableEntry;
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Supplier;
 import javax.annotation.Nullable;
+import jenkins.util.SystemProperties;
 import org.kohsuke.accmod.Restricted;
 import org.kohsuke.accmod.restrictions.NoExternalUse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Centralized storage to hold all references to {@link io.opentracing.Span}s. This centralized
@@ -21,21 +31,63 @@ import org.kohsuke.accmod.restrictions.NoExternalUse;
  * configuration system to flush all in-flight {@link io.opentracing.Span}s on reconfiguration,
  * ensuring that the newly configured tracer will not be asked to handle spans from the previous
  * one. (The two tracers could belong to completely different tracing systems)
+ *
+ * <p>All maps handed out are {@link ConcurrentWeakHashMap}s, as they are accessed from the CPS VM
+ * thread, the queue maintenance and the executors of all running builds at the same time.
+ *
+ * <p>The requesters are only weakly referenced, their caches are forgotten with them. Spans which
+ * are never removed from their cache, for example because an event was missed, are evicted by the
+ * {@link Reaper} once they are older than {@code maxAgeHours} or the cache holds more than {@code
+ * maxEntriesPerCache} of them. Evicted spans are finished with the tag {@value #EVICTED_TAG}, other
+ * values are only evicted if they implement {@link Evictable}.
  */
 @Extension
 @Restricted(NoExternalUse.class)
 public final class SpanStorage {
-  private final Map<SimpleImmutableEntry<Object, String>, Reference<Object>> references =
-      Collections.synchronizedMap(new WeakHashMap<>());
-  private final Map<SimpleImmutableEntry<Object, String>, Map<Object, Object>> caches =
-      Collections.synchronizedMap(new HashMap<>());
-  private Supplier<Map<?, ?>> cacheSupplier =
-      () -> Collections.synchronizedMap(new WeakHashMap<>());
+  private static Logger logger = LoggerFactory.getLogger(SpanStorage.class);
+
+  private static final String PREFIX = SpanStorage.class.getName();
+  static final String EVICTED_TAG = "evicted";
+
+  private final int maxEntriesPerCache =
+      SystemProperties.getInteger(PREFIX + ".maxEntriesPerCache", 100_000);
+  private final long maxAgeNanos =
+      TimeUnit.HOURS.toNanos(SystemProperties.getInteger(PREFIX + ".maxAgeHours", 7 * 24));
+
+  // requester -> discriminator -> value
+  private final Map<Object, Map<String, Reference<Object>>> references =
+      new ConcurrentWeakHashMap<>();
+  private final Map<Object, Map<String, Map<Object, Object>>> caches =
+      new ConcurrentWeakHashMap<>();
+  // when the spans were put into their cache, none of them overrides equals()
+  private final Map<Span, Long> cachedAt = new ConcurrentWeakHashMap<>();
+  private final LongAdder evicted = new LongAdder();
+  private @Nullable Supplier<Map<?, ?>> cacheSupplier;
+
+  /** Values of a cache which have to be cleaned up when they are evicted. */
+  interface Evictable {
+    /** {@link System#nanoTime()} when the value was created, its age is measured from there. */
+    long getCreatedNanos();
+
+    /** Called once the value was removed from its cache by the {@link Reaper}. */
+    void evict();
+  }
+
+  /**
+   * Puts {@code span} into {@code cache}. The {@link Reaper} measures the age of the span from now
+   * on, spans put directly into a cache only age from the first sweep which finds them.
+   */
+  public <K> void put(Map<K, Span> cache, K key, Span span) {
+    cachedAt.put(span, System.nanoTime());
+    cache.put(key, span);
+  }
 
   @SuppressWarnings("unchecked")
   public <T> Reference<T> getReference(Object requester, String discriminator, T value) {
     Reference<T> ref = new WeakReference<>(value);
-    references.put(new SimpleImmutableEntry(requester, discriminator), (Reference<Object>) ref);
+    references
+        .computeIfAbsent(requester, r -> new ConcurrentHashMap<>())
+        .put(discriminator, (Reference<Object>) ref);
     return ref;
   }
 
@@ -43,12 +95,25 @@ public final class SpanStorage {
     return getCache(requester, null);
   }
 
-  @SuppressWarnings("unchecked")
   public <K, V> Map<K, V> getCache(Object requester, @Nullable String discriminator) {
+    return getCache(requester, discriminator, ConcurrentWeakHashMap::new);
+  }
+
+  /**
+   * Like {@link #getCache(Object, String)}, for requesters that know a more efficient map
+   * implementation for their keys. The map is still flushed on reconfiguration.
+   */
+  @SuppressWarnings("unchecked")
+  public <K, V> Map<K, V> getCache(
+      Object requester, @Nullable String discriminator, Supplier<? extends Map<K, V>> supplier) {
+    Supplier<? extends Map<?, ?>> effectiveSupplier =
+        cacheSupplier != null ? cacheSupplier : supplier;
     return (Map<K, V>)
-        caches.computeIfAbsent(
-            new SimpleImmutableEntry(requester, discriminator),
-            x -> (Map<Object, Object>) cacheSupplier.get());
+        caches
+            .computeIfAbsent(requester, r -> new ConcurrentHashMap<>())
+            .computeIfAbsent(
+                discriminator == null ? "" : discriminator,
+                x -> (Map<Object, Object>) effectiveSupplier.get());
   }
 
   @VisibleForTesting
@@ -56,12 +121,133 @@ public final class SpanStorage {
     this.cacheSupplier = supplier;
   }
 
+  /** Forgets all caches and references handed out to {@code requester}. */
+  public void release(Object requester) {
+    caches.remove(requester);
+    references.remove(requester);
+  }
+
   public void flush() {
-    caches.values().forEach(Map::clear);
+    caches.values().forEach(c -> c.values().forEach(Map::clear));
     references.clear();
   }
 
   public long size() {
-    return caches.values().stream().mapToLong(Map::size).sum() + references.size();
+    long size = 0;
+    for (Map<String, Map<Object, Object>> requesterCaches : caches.values()) {
+      for (Map<Object, Object> cache : requesterCaches.values()) {
+        size += cache.size();
+      }
+    }
+    for (Map<String, Reference<Object>> requesterReferences : references.values()) {
+      size += requesterReferences.size();
+    }
+    return size;
+  }
+
+  /**
+   * Number of entries per cache, caches of requesters of the same class are added up. The names are
+   * the requester class and the discriminator.
+   */
+  public Map<String, Long> getCacheSizes() {
+    Map<String, Long> sizes = new TreeMap<>();
+    caches.forEach(
+        (requester, requesterCaches) -> {
+          Class<?> type = requester instanceof Class ? (Class<?>) requester : requester.getClass();
+          requesterCaches.forEach(
+              (discriminator, cache) -> {
+                String name = type.getSimpleName();
+                if (!discriminator.isEmpty()) {
+                  name += "/" + discriminator;
+                }
+                sizes.merge(name, (long) cache.size(), Long::sum);
+              });
+        });
+    return sizes;
+  }
+
+  /** Number of values evicted by the {@link Reaper} since Jenkins started. */
+  public long getEvicted() {
+    return evicted.sum();
+  }
+
+  /** Evicts the values exceeding the age or the size limit. */
+  @VisibleForTesting
+  void reap(long now) {
+    caches.forEach(
+        (requester, requesterCaches) ->
+            requesterCaches.forEach(
+                (discriminator, cache) -> {
+                  int count = reap(cache, now);
+                  if (count > 0) {
+                    logger.warn(
+                        "Evicted {} entries from cache {} of {}, they were probably leaked",
+                        count,
+                        discriminator,
+                        requester);
+                  }
+                }));
+  }
+
+  private int reap(Map<Object, Object> cache, long now) {
+    List<Map.Entry<Object, Object>> candidates = new ArrayList<>();
+    int count = 0;
+    for (Map.Entry<Object, Object> entry : new ArrayList<>(cache.entrySet())) {
+      Object value = entry.getValue();
+      if (!(value instanceof Span) && !(value instanceof Evictable)) {
+        continue;
+      }
+      if (now - getCreatedNanos(value, now) > maxAgeNanos) {
+        count += evict(cache, entry);
+      } else {
+        candidates.add(entry);
+      }
+    }
+    int excess = candidates.size() - maxEntriesPerCache;
+    if (excess > 0) {
+      candidates.sort(Comparator.comparingLong(e -> getCreatedNanos(e.getValue(), now)));
+      for (Map.Entry<Object, Object> entry : candidates.subList(0, excess)) {
+        count += evict(cache, entry);
+      }
+    }
+    return count;
+  }
+
+  private long getCreatedNanos(Object value, long now) {
+    if (value instanceof Evictable) {
+      return ((Evictable) value).getCreatedNanos();
+    }
+    return cachedAt.computeIfAbsent((Span) value, s -> now);
+  }
+
+  private int evict(Map<Object, Object> cache, Map.Entry<Object, Object> entry) {
+    Object value = entry.getValue();
+    if (!cache.remove(entry.getKey(), value)) {
+      return 0;
+    }
+    evicted.increment();
+    if (value instanceof Evictable) {
+      ((Evictable) value).evict();
+    } else {
+      Span span = (Span) value;
+      cachedAt.remove(span);
+      span.setTag(EVICTED_TAG, true);
+      span.finish();
+    }
+    return 1;
+  }
+
+  /** Periodically evicts leaked spans. */
+  @Extension
+  public static final class Reaper extends PeriodicWork {
+    @Override
+    public long getRecurrencePeriod() {
+      return 5 * MIN;
+    }
+
+    @Override
+    protected void doRun() {
+      ExtensionList.lookupSingleton(SpanStorage.class).reap(System.nanoTime());
+    }
   }
 }
@@ -0,0 +1,125 @@
+package com.amadeus.jenkins.opentracing;
+
+import com.amadeus.jenkins.opentracing.config.OTConfig;
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import io.opentracing.Span;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import jenkins.util.SystemProperties;
+import org.jenkinsci.plugins.workflow.flow.FlowExecution;
+import org.jenkinsci.plugins.workflow.flow.FlowExecutionOwner;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Exports the traces of completed Pipeline runs after the fact, for builds which ran while tracing
+ * was disabled or with {@link OTConfig#isDisableLiveTracing() live tracing disabled}. The spans are
+ * rebuilt from the stored flow graph by an {@link OTGraphListener}, which takes the timing, errors,
+ * arguments and stage names from the actions of the nodes.
+ *
+ * <p>Runs are streamed from the build history of the jobs and exported by {@code threads} workers,
+ * only a few runs are loaded at any time.
+ */
+@Extension
+@Restricted(NoExternalUse.class)
+public final class TraceBackfill {
+  private static Logger logger = LoggerFactory.getLogger(TraceBackfill.class);
+
+  private static final String PREFIX = TraceBackfill.class.getName();
+  /** Tag of the run spans exported after the run completed. */
+  static final String BACKFILLED_TAG = "jenkins.backfilled";
+
+  private final int threads = Math.max(1, SystemProperties.getInteger(PREFIX + ".threads", 2));
+
+  /**
+   * Exports the completed runs of {@code jobs} which started in {@code [fromMillis, toMillis)}.
+   * Each run is sampled on its own, without taking from the budget of the running builds.
+   *
+   * @return the number of exported runs
+   */
+  @SuppressWarnings("rawtypes")
+  public int export(Iterable<? extends Job> jobs, long fromMillis, long toMillis)
+      throws InterruptedException {
+    OTConfig config = ExtensionList.lookupSingleton(OTConfig.class);
+    if (!config.isEnabled()) {
+      throw new IllegalStateException("No tracer is configured");
+    }
+    ExecutorService executor =
+        Executors.newFixedThreadPool(
+            threads, new NamingThreadFactory(new DaemonThreadFactory(), "OpenTracing backfill"));
+    // bounds the runs loaded at the same time
+    int permits = threads * 2;
+    Semaphore inFlight = new Semaphore(permits);
+    AtomicInteger exported = new AtomicInteger();
+    try {
+      for (Job<?, ?> job : jobs) {
+        for (Run<?, ?> run : job.getBuilds()) {
+          long start = run.getStartTimeInMillis();
+          if (start < fromMillis) {
+            // the newest runs come first
+            break;
+          }
+          if (start >= toMillis
+              || run.isBuilding()
+              || !config.isSampledForBackfill(job.getFullName(), run.getExternalizableId())) {
+            continue;
+          }
+          inFlight.acquire();
+          executor.execute(
+              () -> {
+                try {
+                  if (export(run)) {
+                    exported.incrementAndGet();
+                  }
+                } catch (IOException | RuntimeException e) {
+                  logger.warn("Could not export {}", run, e);
+                } finally {
+                  inFlight.release();
+                }
+              });
+        }
+      }
+      inFlight.acquire(permits);
+    } finally {
+      executor.shutdownNow();
+    }
+    return exported.get();
+  }
+
+  /** Exports a completed run, {@code false} if it is not a Pipeline. */
+  boolean export(Run<?, ?> run) throws IOException {
+    if (!(run instanceof FlowExecutionOwner.Executable)) {
+      return false;
+    }
+    FlowExecutionOwner owner = ((FlowExecutionOwner.Executable) run).asFlowExecutionOwner();
+    if (owner == null) {
+      return false;
+    }
+    FlowExecution execution = owner.get();
+
+    OTRunListener runListener = ExtensionList.lookupSingleton(OTRunListener.class);
+    Span span = runListener.startCompleted(run);
+    OTGraphListener listener = new OTGraphListener(span, null, Collections.emptyMap());
+    try {
+      for (FlowNode node : new GraphReplayer.NodeSequence(execution)) {
+        listener.replay(node);
+      }
+    } finally {
+      ExtensionList.lookupSingleton(SpanStorage.class).release(listener);
+      runListener.finishCompleted(span, run);
+    }
+    return true;
+  }
+}
@@ -8,14 +8,11 @@ import hudson.util.FormValidation;
 import io.opentracing.Span;
 import io.opentracing.Tracer.SpanBuilder;
 import io.opentracing.tag.Tags;
-import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.Iterator;
 import java.util.Optional;
 import javax.annotation.Nullable;
-import jenkins.model.Jenkins;
-import jenkins.model.JenkinsLocationConfiguration;
 import org.jenkinsci.plugins.workflow.actions.TimingAction;
 import org.jenkinsci.plugins.workflow.graph.BlockStartNode;
 import org.jenkinsci.plugins.workflow.graph.FlowNode;
@@ -60,18 +57,18 @@ public final class Utils {
     addUrlTag(span, run.getUrl());
   }
 
-  public static void addUrlTag(Span span, FlowNode node) {
-    try {
-      addUrlTag(span, node.getUrl());
-    } catch (IOException e) {
-      logger.trace("Could not get url of node {}", node, e);
-    }
-  }
-
   public static void addUrlTag(SpanBuilder spanBuilder, Queue.Item item) {
     addUrlTag(spanBuilder, item.getUrl());
   }
 
+  /** Full name of the job behind a task, the one matched by sampling rules. */
+  public static String getFullName(Queue.Task task) {
+    if (task instanceof Item) {
+      return ((Item) task).getFullName();
+    }
+    return task.getFullDisplayName();
+  }
+
   public static void setError(Span span, @Nullable String message) {
     Tags.ERROR.set(span, true);
     if (message != null) {
@@ -80,10 +77,10 @@ public final class Utils {
   }
 
   public static void addRootUrlTag(SpanBuilder spanBuilder) {
-    spanBuilder.withTag("jenkins.rooturl", Jenkins.get().getRootUrl());
+    spanBuilder.withTag("jenkins.rooturl", LocationCache.getRootUrl());
   }
 
-  private static void addUrlTag(Span span, String relativeUrl) {
+  static void addUrlTag(Span span, String relativeUrl) {
     getAbsoluteUrl(relativeUrl).ifPresent(url -> span.setTag("jenkins.url", url));
   }
 
@@ -92,18 +89,7 @@ public final class Utils {
   }
 
   private static Optional<String> getAbsoluteUrl(String relativeUrl) {
-    JenkinsLocationConfiguration locationConfig;
-    try {
-      locationConfig = JenkinsLocationConfiguration.get();
-    } catch (IllegalStateException e) {
-      /* baseurl not configured */
-      return Optional.empty();
-    }
-    String baseUrl = locationConfig.getUrl();
-    if (baseUrl == null) {
-      return Optional.empty();
-    }
-    return Optional.of(baseUrl + relativeUrl);
+    return LocationCache.getConfiguredUrl().map(baseUrl -> baseUrl + relativeUrl);
   }
 
   public static Optional<FlowNode> getEnclosing(FlowNode node) {
@@ -1,5 +1,6 @@
 package com.amadeus.jenkins.opentracing;
 
+import com.amadeus.jenkins.opentracing.config.OTConfig;
 import hudson.Extension;
 import hudson.ExtensionList;
 import org.jenkinsci.plugins.workflow.flow.GraphListener;
@@ -20,10 +21,11 @@ import org.kohsuke.accmod.restrictions.DoNotUse;
 public final class WorkaroundGraphListener implements GraphListener, GraphListener.Synchronous {
   private final OTFlowExecutionListener flowExecutionListener =
       ExtensionList.lookupSingleton(OTFlowExecutionListener.class);
+  private final OTConfig config = ExtensionList.lookupSingleton(OTConfig.class);
 
   @Override
   public void onNewHead(FlowNode node) {
-    if (node instanceof FlowStartNode) {
+    if (node instanceof FlowStartNode && config.isActive()) {
       OTGraphListener listener = flowExecutionListener.getListener(node.getExecution());
       if (listener != null) {
         listener.onNewHead(node);
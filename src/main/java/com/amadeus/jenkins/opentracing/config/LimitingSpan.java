@@ -0,0 +1,371 @@
+package com.amadeus.jenkins.opentracing.config;
+
+import io.opentracing.Span;
+import io.opentracing.SpanContext;
+import io.opentracing.Tracer.SpanBuilder;
+import io.opentracing.tag.Tag;
+import io.opentracing.tag.Tags;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
+
+/**
+ * {@link Span} enforcing the {@link SpanLimits}. Tags and log events exceeding them are dropped,
+ * overlong values are truncated. All spans of a trace share the remaining size of the trace, a
+ * child learns it from its parent span. The number of dropped tags and logs is added to the span
+ * when it is finished. The few tags telling the outcome of a span, such as {@code error}, only
+ * count toward the tags of the span and never against the size of the trace.
+ *
+ * <p>Also counts the started and finished spans in the {@link SpanCounters} of the tracer. Only the
+ * first call finishing a span is passed on and counted.
+ */
+final class LimitingSpan implements Span {
+  static final String DROPPED_TAGS = "jenkins.dropped.tags";
+  static final String DROPPED_LOGS = "jenkins.dropped.logs";
+  // set when the spans finish, the ones needed to see why a large build failed
+  private static final Set<String> STATUS_TAGS =
+      Collections.unmodifiableSet(
+          new HashSet<>(
+              Arrays.asList(Tags.ERROR.getKey(), "jenkins.result", "cancelled", "evicted")));
+
+  private final Span delegate;
+  private final SpanLimits limits;
+  private final SpanCounters counters;
+  // remaining size of the trace, shared by all its spans
+  private final AtomicLong traceBudget;
+  private final Set<String> tagKeys;
+  // later calls are ignored, they would count the span as finished again
+  private final AtomicBoolean finished = new AtomicBoolean();
+  private int logs;
+  private int droppedTags;
+  private int droppedLogs;
+
+  private LimitingSpan(
+      Span delegate,
+      SpanLimits limits,
+      SpanCounters counters,
+      AtomicLong traceBudget,
+      Set<String> tagKeys,
+      int droppedTags) {
+    this.delegate = delegate;
+    this.limits = limits;
+    this.counters = counters;
+    this.traceBudget = traceBudget;
+    this.tagKeys = tagKeys;
+    this.droppedTags = droppedTags;
+  }
+
+  /** The span created by the actual tracer. */
+  static Span unwrap(Span span) {
+    if (span instanceof LimitingSpan) {
+      return ((LimitingSpan) span).delegate;
+    }
+    return span;
+  }
+
+  @Override
+  public SpanContext context() {
+    return delegate.context();
+  }
+
+  @Override
+  public Span setTag(String key, String value) {
+    String truncated = limits.truncate(value);
+    if (admitTag(key, key.length() + truncated.length())) {
+      delegate.setTag(key, truncated);
+    }
+    return this;
+  }
+
+  @Override
+  public Span setTag(String key, boolean value) {
+    if (admitTag(key, key.length() + SpanLimits.NON_STRING_SIZE)) {
+      delegate.setTag(key, value);
+    }
+    return this;
+  }
+
+  @Override
+  public Span setTag(String key, Number value) {
+    if (admitTag(key, key.length() + SpanLimits.NON_STRING_SIZE)) {
+      delegate.setTag(key, value);
+    }
+    return this;
+  }
+
+  @Override
+  public <T> Span setTag(Tag<T> tag, T value) {
+    if (value instanceof String) {
+      return setTag(tag.getKey(), (String) value);
+    }
+    if (admitTag(tag.getKey(), tag.getKey().length() + SpanLimits.NON_STRING_SIZE)) {
+      delegate.setTag(tag, value);
+    }
+    return this;
+  }
+
+  @Override
+  public Span log(Map<String, ?> fields) {
+    Map<String, ?> truncated = truncate(fields);
+    if (admitLog(size(truncated))) {
+      delegate.log(truncated);
+    }
+    return this;
+  }
+
+  @Override
+  public Span log(long timestampMicroseconds, Map<String, ?> fields) {
+    Map<String, ?> truncated = truncate(fields);
+    if (admitLog(size(truncated))) {
+      delegate.log(timestampMicroseconds, truncated);
+    }
+    return this;
+  }
+
+  @Override
+  public Span log(String event) {
+    String truncated = limits.truncate(event);
+    if (admitLog(truncated.length())) {
+      delegate.log(truncated);
+    }
+    return this;
+  }
+
+  @Override
+  public Span log(long timestampMicroseconds, String event) {
+    String truncated = limits.truncate(event);
+    if (admitLog(truncated.length())) {
+      delegate.log(timestampMicroseconds, truncated);
+    }
+    return this;
+  }
+
+  @Override
+  public Span setBaggageItem(String key, String value) {
+    delegate.setBaggageItem(key, value);
+    return this;
+  }
+
+  @Override
+  public String getBaggageItem(String key) {
+    return delegate.getBaggageItem(key);
+  }
+
+  @Override
+  public Span setOperationName(String operationName) {
+    delegate.setOperationName(limits.truncate(operationName));
+    return this;
+  }
+
+  @Override
+  public void finish() {
+    if (!finished.compareAndSet(false, true)) {
+      return;
+    }
+    addDropped();
+    delegate.finish();
+    counters.spanFinished();
+  }
+
+  @Override
+  public void finish(long finishMicros) {
+    if (!finished.compareAndSet(false, true)) {
+      return;
+    }
+    addDropped();
+    delegate.finish(finishMicros);
+    counters.spanFinished();
+  }
+
+  @Override
+  public String toString() {
+    return "LimitingSpan{" + delegate + '}';
+  }
+
+  private synchronized boolean admitTag(String key, long size) {
+    if ((tagKeys.contains(key) || tagKeys.size() < limits.getMaxTags())
+        && (STATUS_TAGS.contains(key) || consume(size))) {
+      tagKeys.add(key);
+      return true;
+    }
+    droppedTags++;
+    limits.tagDropped();
+    return false;
+  }
+
+  private synchronized boolean admitLog(long size) {
+    if (logs < limits.getMaxLogs() && consume(size)) {
+      logs++;
+      return true;
+    }
+    droppedLogs++;
+    limits.logDropped();
+    return false;
+  }
+
+  private boolean consume(long size) {
+    if (traceBudget.addAndGet(-size) >= 0) {
+      return true;
+    }
+    traceBudget.addAndGet(size);
+    return false;
+  }
+
+  // bypasses the limits, the markers are always wanted
+  private synchronized void addDropped() {
+    if (droppedTags > 0) {
+      delegate.setTag(DROPPED_TAGS, droppedTags);
+    }
+    if (droppedLogs > 0) {
+      delegate.setTag(DROPPED_LOGS, droppedLogs);
+    }
+  }
+
+  private Map<String, ?> truncate(Map<String, ?> fields) {
+    Map<String, Object> truncated = null;
+    for (Map.Entry<String, ?> field : fields.entrySet()) {
+      Object value = field.getValue();
+      if (value instanceof String) {
+        String truncatedValue = limits.truncate((String) value);
+        if (truncatedValue != value) {
+          if (truncated == null) {
+            truncated = new LinkedHashMap<>(fields);
+          }
+          truncated.put(field.getKey(), truncatedValue);
+        }
+      }
+    }
+    return truncated != null ? truncated : fields;
+  }
+
+  private static long size(Map<String, ?> fields) {
+    long size = 0;
+    for (Map.Entry<String, ?> field : fields.entrySet()) {
+      size += field.getKey().length();
+      Object value = field.getValue();
+      size += value instanceof String ? ((String) value).length() : SpanLimits.NON_STRING_SIZE;
+    }
+    return size;
+  }
+
+  /** {@link SpanBuilder} of {@link LimitingSpan}s, tags are charged to the trace on start. */
+  static final class Builder implements SpanBuilder {
+    private final SpanBuilder delegate;
+    private final SpanLimits limits;
+    private final SpanCounters counters;
+    private final Set<String> tagKeys = new HashSet<>();
+    private @Nullable AtomicLong traceBudget;
+    private long size;
+    private int droppedTags;
+
+    Builder(SpanBuilder delegate, SpanLimits limits, SpanCounters counters) {
+      this.delegate = delegate;
+      this.limits = limits;
+      this.counters = counters;
+    }
+
+    @Override
+    public SpanBuilder asChildOf(SpanContext parent) {
+      delegate.asChildOf(parent);
+      return this;
+    }
+
+    @Override
+    public SpanBuilder asChildOf(Span parent) {
+      if (parent instanceof LimitingSpan) {
+        traceBudget = ((LimitingSpan) parent).traceBudget;
+        delegate.asChildOf(((LimitingSpan) parent).delegate);
+      } else {
+        delegate.asChildOf(parent);
+      }
+      return this;
+    }
+
+    @Override
+    public SpanBuilder addReference(String referenceType, SpanContext referencedContext) {
+      delegate.addReference(referenceType, referencedContext);
+      return this;
+    }
+
+    @Override
+    public SpanBuilder ignoreActiveSpan() {
+      delegate.ignoreActiveSpan();
+      return this;
+    }
+
+    @Override
+    public SpanBuilder withTag(String key, String value) {
+      String truncated = limits.truncate(value);
+      if (admitTag(key, key.length() + truncated.length())) {
+        delegate.withTag(key, truncated);
+      }
+      return this;
+    }
+
+    @Override
+    public SpanBuilder withTag(String key, boolean value) {
+      if (admitTag(key, key.length() + SpanLimits.NON_STRING_SIZE)) {
+        delegate.withTag(key, value);
+      }
+      return this;
+    }
+
+    @Override
+    public SpanBuilder withTag(String key, Number value) {
+      if (admitTag(key, key.length() + SpanLimits.NON_STRING_SIZE)) {
+        delegate.withTag(key, value);
+      }
+      return this;
+    }
+
+    @Override
+    public <T> SpanBuilder withTag(Tag<T> tag, T value) {
+      if (value instanceof String) {
+        return withTag(tag.getKey(), (String) value);
+      }
+      if (admitTag(tag.getKey(), tag.getKey().length() + SpanLimits.NON_STRING_SIZE)) {
+        delegate.withTag(tag, value);
+      }
+      return this;
+    }
+
+    @Override
+    public SpanBuilder withStartTimestamp(long microseconds) {
+      delegate.withStartTimestamp(microseconds);
+      return this;
+    }
+
+    @Override
+    public Span start() {
+      AtomicLong budget = traceBudget;
+      if (budget == null) {
+        budget = new AtomicLong(limits.getMaxTraceSize());
+      }
+      // a negative budget would hold back every later tag of the trace, even the smallest ones
+      budget.accumulateAndGet(size, (left, used) -> Math.max(0, left - used));
+      Span span = delegate.start();
+      counters.spanStarted();
+      return new LimitingSpan(span, limits, counters, budget, tagKeys, droppedTags);
+    }
+
+    // the size of the trace is only known on start, the tags of a new span are always admitted
+    private boolean admitTag(String key, long tagSize) {
+      if (tagKeys.contains(key) || tagKeys.size() < limits.getMaxTags()) {
+        tagKeys.add(key);
+        if (!STATUS_TAGS.contains(key)) {
+          size += tagSize;
+        }
+        return true;
+      }
+      droppedTags++;
+      limits.tagDropped();
+      return false;
+    }
+  }
+}
@@ -1,38 +1,49 @@
 package com.amadeus.jenkins.opentracing.config;
 
+import com.amadeus.jenkins.opentracing.GraphReplayer;
 import com.amadeus.jenkins.opentracing.SpanStorage;
 import com.amadeus.jenkins.opentracing.Utils;
 import com.amadeus.jenkins.opentracing.config.impl.NullConfig;
 import com.thoughtworks.xstream.annotations.XStreamOmitField;
+import hudson.BulkChange;
 import hudson.Extension;
 import hudson.ExtensionList;
 import hudson.init.Terminator;
+import hudson.util.FormValidation;
 import hudson.util.XStream2;
 import io.opentracing.Scope;
 import io.opentracing.ScopeManager;
 import io.opentracing.Span;
 import io.opentracing.SpanContext;
 import io.opentracing.Tracer;
+import io.opentracing.noop.NoopTracer;
 import io.opentracing.propagation.Format;
+import java.io.IOException;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
-import java.util.function.Function;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import javax.annotation.Nullable;
 import jenkins.YesNoMaybe;
 import jenkins.model.GlobalConfiguration;
+import jenkins.util.Timer;
 import net.sf.json.JSONObject;
 import org.jenkinsci.Symbol;
 import org.kohsuke.accmod.Restricted;
 import org.kohsuke.accmod.restrictions.DoNotUse;
 import org.kohsuke.accmod.restrictions.NoExternalUse;
 import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 
 /**
- * Global configuration (UI) for the plugin. Takes care of selecting the correct backend and
- * invalidating the {@link SpanStorage} on settings changes.
+ * Global configuration (UI) for the plugin. Takes care of selecting the correct backend,
+ * invalidating the {@link SpanStorage} on settings changes and replaying the running Pipelines
+ * afterwards.
  */
 @Extension(dynamicLoadable = YesNoMaybe.NO)
 @Restricted(NoExternalUse.class)
@@ -40,9 +51,24 @@ import org.kohsuke.stapler.StaplerRequest;
 public final class OTConfig extends GlobalConfiguration {
 
   private static final NullConfig NULL_CONFIG = new NullConfig();
+  private static final int DEFAULT_MAX_TAGS_PER_SPAN = 128;
+  private static final int DEFAULT_MAX_VALUE_LENGTH = 4096;
+  private static final int DEFAULT_MAX_LOGS_PER_SPAN = 128;
+  private static final int DEFAULT_MAX_TRACE_SIZE = 1024;
   @XStreamOmitField private Map<String, DelegatingTracer> tracers = makeMap();
 
   private TracerConfig tracer;
+  private boolean asynchronous;
+  private boolean coalesceQueueTransitions;
+  private boolean disableLiveTracing;
+  @XStreamOmitField private volatile boolean active;
+  @XStreamOmitField private volatile boolean reloadPending;
+  @XStreamOmitField private final SpanLimits limits = new SpanLimits(0, 0, 0, 0);
+  // not set in configurations of older versions, the getters take care of the defaults
+  private int maxTagsPerSpan;
+  private int maxValueLength;
+  private int maxLogsPerSpan;
+  private int maxTraceSize;
 
   public TracerConfig getTracer() {
     if (tracer == null) {
@@ -54,35 +80,224 @@ public final class OTConfig extends GlobalConfiguration {
   @DataBoundSetter
   public void setTracer(@Nullable TracerConfig tracer) {
     this.tracer = tracer;
-    reload();
+    reloadLater();
+  }
+
+  /**
+   * Whether tracing is enabled at all. Listeners check this before doing any other work, so that a
+   * controller without tracing does not pay for it.
+   */
+  public boolean isActive() {
+    return active;
+  }
+
+  /**
+   * Whether the Pipeline graph events are turned into spans by {@link
+   * com.amadeus.jenkins.opentracing.GraphEventDispatcher background workers} instead of the CPS VM
+   * thread.
+   */
+  public boolean isAsynchronous() {
+    return asynchronous;
+  }
+
+  @DataBoundSetter
+  public void setAsynchronous(boolean asynchronous) {
+    this.asynchronous = asynchronous;
+  }
+
+  /**
+   * Whether an item bouncing between blocked and buildable gets a single span for the whole period,
+   * instead of one span per bounce.
+   */
+  public boolean isCoalesceQueueTransitions() {
+    return coalesceQueueTransitions;
+  }
+
+  @DataBoundSetter
+  public void setCoalesceQueueTransitions(boolean coalesceQueueTransitions) {
+    this.coalesceQueueTransitions = coalesceQueueTransitions;
+  }
+
+  /**
+   * Whether the listeners stay inactive although a tracer is configured. Completed builds can still
+   * be exported by the {@link com.amadeus.jenkins.opentracing.TraceBackfill}.
+   */
+  public boolean isDisableLiveTracing() {
+    return disableLiveTracing;
+  }
+
+  @DataBoundSetter
+  public void setDisableLiveTracing(boolean disableLiveTracing) {
+    if (this.disableLiveTracing != disableLiveTracing) {
+      this.disableLiveTracing = disableLiveTracing;
+      reloadLater();
+    }
+  }
+
+  /** Whether a tracer is configured, regardless of {@link #isDisableLiveTracing()}. */
+  public boolean isEnabled() {
+    return getTracer().isEnabled();
+  }
+
+  /** Maximum number of distinct tags of a span. */
+  public int getMaxTagsPerSpan() {
+    return maxTagsPerSpan > 0 ? maxTagsPerSpan : DEFAULT_MAX_TAGS_PER_SPAN;
+  }
+
+  @DataBoundSetter
+  public void setMaxTagsPerSpan(int maxTagsPerSpan) {
+    this.maxTagsPerSpan = maxTagsPerSpan;
+    updateLimits();
+  }
+
+  /** Maximum length of string values of tags and logs, longer ones are truncated. */
+  public int getMaxValueLength() {
+    return maxValueLength > 0 ? maxValueLength : DEFAULT_MAX_VALUE_LENGTH;
+  }
+
+  @DataBoundSetter
+  public void setMaxValueLength(int maxValueLength) {
+    this.maxValueLength = maxValueLength;
+    updateLimits();
+  }
+
+  /** Maximum number of log events of a span. */
+  public int getMaxLogsPerSpan() {
+    return maxLogsPerSpan > 0 ? maxLogsPerSpan : DEFAULT_MAX_LOGS_PER_SPAN;
+  }
+
+  @DataBoundSetter
+  public void setMaxLogsPerSpan(int maxLogsPerSpan) {
+    this.maxLogsPerSpan = maxLogsPerSpan;
+    updateLimits();
+  }
+
+  /** Maximum size in kilo characters of the tags and logs of all spans of a trace. */
+  public int getMaxTraceSize() {
+    return maxTraceSize > 0 ? maxTraceSize : DEFAULT_MAX_TRACE_SIZE;
+  }
+
+  @DataBoundSetter
+  public void setMaxTraceSize(int maxTraceSize) {
+    this.maxTraceSize = maxTraceSize;
+    updateLimits();
+  }
+
+  public SpanLimits getLimits() {
+    return limits;
+  }
+
+  public FormValidation doCheckMaxTagsPerSpan(@QueryParameter String maxTagsPerSpan) {
+    return FormValidation.validatePositiveInteger(maxTagsPerSpan);
+  }
+
+  public FormValidation doCheckMaxValueLength(@QueryParameter String maxValueLength) {
+    return FormValidation.validatePositiveInteger(maxValueLength);
+  }
+
+  public FormValidation doCheckMaxLogsPerSpan(@QueryParameter String maxLogsPerSpan) {
+    return FormValidation.validatePositiveInteger(maxLogsPerSpan);
+  }
+
+  public FormValidation doCheckMaxTraceSize(@QueryParameter String maxTraceSize) {
+    return FormValidation.validatePositiveInteger(maxTraceSize);
   }
 
   public OTConfig() {
     super();
     load();
+    active = isEnabled() && !disableLiveTracing;
+    updateLimits();
+  }
+
+  private void updateLimits() {
+    limits.update(
+        getMaxTagsPerSpan(), getMaxValueLength(), getMaxLogsPerSpan(), getMaxTraceSize() * 1024L);
   }
 
   @Override
   public boolean configure(StaplerRequest req, JSONObject json) throws FormException {
-    super.configure(req, json);
-    save();
+    try (BulkChange bulkChange = new BulkChange(this)) {
+      super.configure(req, json);
+      bulkChange.commit();
+    } catch (IOException e) {
+      throw new FormException(e, "tracer");
+    }
     return true;
   }
 
+  /**
+   * Reloads the tracers once the configuration is saved if it is bound in a {@link BulkChange}, as
+   * it is by the form and by Configuration as Code, otherwise right away.
+   */
+  private void reloadLater() {
+    if (BulkChange.contains(this)) {
+      reloadPending = true;
+    } else {
+      reload();
+    }
+  }
+
+  @Override
+  public synchronized void save() {
+    super.save();
+    if (reloadPending && !BulkChange.contains(this)) {
+      reloadPending = false;
+      reload();
+    }
+  }
+
   private void reload() {
+    boolean wasActive = active;
+    active = isEnabled() && !disableLiveTracing;
+    Map<DelegatingTracer, Tracer> delegates = new HashMap<>();
+    synchronized (tracers) {
+      tracers.forEach((name, t) -> delegates.put(t, getTracer().getTracerForName(name)));
+    }
+    // the spans of the running builds go on if the new tracers understand their contexts
+    boolean keepSpans =
+        wasActive
+            && active
+            && delegates.entrySet().stream().allMatch(e -> e.getKey().accepts(e.getValue()));
     SpanStorage spanStorage = ExtensionList.lookupSingleton(SpanStorage.class);
-    spanStorage.flush();
-    tracers.forEach((s, t) -> t.setTracerFactory(n -> getTracer().getTracerForName(n)));
-    spanStorage.flush();
+    if (!keepSpans) {
+      spanStorage.flush();
+    }
+    delegates.forEach((t, delegate) -> t.swap(delegate, keepSpans));
+    if (!keepSpans) {
+      spanStorage.flush();
+      if (active) {
+        // the running Pipelines lost their spans
+        ExtensionList.lookupSingleton(GraphReplayer.class).replayRunning();
+      }
+    }
   }
 
   public Tracer getTracerForName(String serviceName) {
     return tracers.computeIfAbsent(
-        serviceName, s -> new DelegatingTracer(serviceName, n -> getTracer().getTracerForName(n)));
+        serviceName,
+        s -> new DelegatingTracer(serviceName, getTracer().getTracerForName(serviceName), limits));
+  }
+
+  public boolean isSampled(String jobName) {
+    return getTracer().isSampled(jobName);
+  }
+
+  public boolean isSampledForBackfill(String jobName, String runId) {
+    return getTracer().isSampledForBackfill(jobName, runId);
+  }
+
+  /** Spans started and finished by each of the tracers handed out, by their name. */
+  public Map<String, SpanCounters> getSpanCounters() {
+    Map<String, SpanCounters> counters = new TreeMap<>();
+    synchronized (tracers) {
+      tracers.forEach((name, tracer) -> counters.put(name, tracer.counters));
+    }
+    return counters;
   }
 
   public Optional<TracerUiLink> getLink(Span span) {
-    return getTracer().getTraceLinkAction(span);
+    return getTracer().getTraceLinkAction(LimitingSpan.unwrap(span));
   }
 
   @Restricted(DoNotUse.class)
@@ -97,64 +312,133 @@ public final class OTConfig extends GlobalConfiguration {
     return Collections.synchronizedMap(new HashMap<>());
   }
 
+  /**
+   * Tracer handed out to the listeners, which lets the configuration swap the implementation. Each
+   * implementation is an {@link Epoch}: new spans are started by the current one, the previous ones
+   * are closed once their last span finished.
+   */
   private static final class DelegatingTracer implements Tracer {
     private final String serviceName;
-    private Tracer delegate;
+    private final SpanLimits limits;
+    private final SpanCounters counters = new SpanCounters();
+    private final Set<Epoch> draining = ConcurrentHashMap.newKeySet();
+    private volatile Epoch epoch;
 
-    private DelegatingTracer(String serviceName, Function<String, Tracer> tracerFactory) {
+    private DelegatingTracer(String serviceName, Tracer delegate, SpanLimits limits) {
       this.serviceName = serviceName;
-      setTracerFactory(tracerFactory);
+      this.limits = limits;
+      this.epoch = new Epoch(delegate);
     }
 
-    private synchronized void setTracerFactory(Function<String, Tracer> tracerFactory) {
-      /* FIXME https://github.com/opentracing/opentracing-java/issues/346
-      if (delegate != null) {
-        delegate.close();
+    /** Whether the spans of the current delegate can be continued by {@code delegate}. */
+    private boolean accepts(Tracer delegate) {
+      return delegate.getClass() == epoch.tracer.getClass();
+    }
+
+    /**
+     * Starts the new spans with {@code delegate}. The current one is closed once its spans are
+     * finished if they are {@code kept}, otherwise right away.
+     */
+    private synchronized void swap(Tracer delegate, boolean kept) {
+      Epoch previous = epoch;
+      if (delegate == previous.tracer) {
+        return;
+      }
+      epoch = new Epoch(delegate);
+      if (kept) {
+        draining.add(previous);
+        previous.retire();
+      } else {
+        previous.closeLater();
       }
-      */
-      delegate = tracerFactory.apply(serviceName);
     }
 
     @Override
     public ScopeManager scopeManager() {
-      return delegate.scopeManager();
+      return epoch.tracer.scopeManager();
     }
 
     @Override
     public Span activeSpan() {
-      return delegate.activeSpan();
+      return epoch.tracer.activeSpan();
     }
 
     @Override
     public Scope activateSpan(Span span) {
-      return delegate.activateSpan(span);
+      return epoch.tracer.activateSpan(span);
     }
 
     @Override
     public SpanBuilder buildSpan(String operationName) {
-      SpanBuilder builder = delegate.buildSpan(operationName);
+      Epoch current = epoch;
+      SpanBuilder builder = current.tracer.buildSpan(operationName);
+      if (current.noop) {
+        return builder;
+      }
       Utils.addRootUrlTag(builder);
-      return builder;
+      return new LimitingSpan.Builder(builder, limits, current);
     }
 
     @Override
     public <C> void inject(SpanContext spanContext, Format<C> format, C carrier) {
-      delegate.inject(spanContext, format, carrier);
+      epoch.tracer.inject(spanContext, format, carrier);
     }
 
     @Override
     public <C> SpanContext extract(Format<C> format, C carrier) {
-      return delegate.extract(format, carrier);
+      return epoch.tracer.extract(format, carrier);
     }
 
     @Override
     public void close() {
-      delegate.close();
+      draining.forEach(Epoch::close);
+      epoch.close();
     }
 
     @Override
     public String toString() {
-      return "DelegatingTracer{" + ", delegate=" + delegate + '}';
+      return "DelegatingTracer{" + ", delegate=" + epoch.tracer + '}';
+    }
+
+    /** The spans started by one delegate, also counted in the totals of the tracer. */
+    private final class Epoch extends SpanCounters {
+      private final Tracer tracer;
+      private final boolean noop;
+      private final AtomicBoolean closed = new AtomicBoolean();
+      private volatile boolean retired;
+
+      private Epoch(Tracer tracer) {
+        super(counters);
+        this.tracer = tracer;
+        this.noop = tracer instanceof NoopTracer;
+      }
+
+      @Override
+      void spanFinished() {
+        super.spanFinished();
+        if (retired && getLive() <= 0) {
+          closeLater();
+        }
+      }
+
+      private void retire() {
+        retired = true;
+        if (getLive() <= 0) {
+          closeLater();
+        }
+      }
+
+      // closing waits for the reporter, not on the thread finishing the span
+      private void closeLater() {
+        Timer.get().execute(this::close);
+      }
+
+      private void close() {
+        if (closed.compareAndSet(false, true)) {
+          draining.remove(this);
+          tracer.close();
+        }
+      }
     }
   }
 
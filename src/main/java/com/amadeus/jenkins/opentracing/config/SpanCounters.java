@@ -0,0 +1,52 @@
+package com.amadeus.jenkins.opentracing.config;
+
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.Nullable;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/** Number of spans started and finished through one of the tracers of {@link OTConfig}. */
+@Restricted(NoExternalUse.class)
+public class SpanCounters {
+  private final LongAdder started = new LongAdder();
+  private final LongAdder finished = new LongAdder();
+  private final @Nullable SpanCounters total;
+
+  SpanCounters() {
+    this(null);
+  }
+
+  /** Counters of a part of the spans, which are also counted in {@code total}. */
+  SpanCounters(@Nullable SpanCounters total) {
+    this.total = total;
+  }
+
+  void spanStarted() {
+    started.increment();
+    if (total != null) {
+      total.spanStarted();
+    }
+  }
+
+  void spanFinished() {
+    finished.increment();
+    if (total != null) {
+      total.spanFinished();
+    }
+  }
+
+  public long getStarted() {
+    return started.sum();
+  }
+
+  public long getFinished() {
+    return finished.sum();
+  }
+
+  /** Spans started and not finished yet. */
+  long getLive() {
+    // reading the finished spans first never underestimates
+    long finishedSpans = getFinished();
+    return getStarted() - finishedSpans;
+  }
+}
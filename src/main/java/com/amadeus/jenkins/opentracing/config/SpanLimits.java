@@ -0,0 +1,79 @@
+package com.amadeus.jenkins.opentracing.config;
+
+import java.util.concurrent.atomic.LongAdder;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Limits enforced on all spans created through {@link OTConfig#getTracerForName(String)}, bounding
+ * the memory held by a span until it is flushed. Also counts the data dropped because of them.
+ *
+ * <p>Sizes are approximated by the number of characters of keys and values, other values count
+ * {@value #NON_STRING_SIZE} characters.
+ */
+@Restricted(NoExternalUse.class)
+public final class SpanLimits {
+  static final String TRUNCATION_MARKER = "...[truncated]";
+  static final int NON_STRING_SIZE = 8;
+
+  private volatile int maxTags;
+  private volatile int maxValueLength;
+  private volatile int maxLogs;
+  private volatile long maxTraceSize;
+
+  private final LongAdder droppedTags = new LongAdder();
+  private final LongAdder droppedLogs = new LongAdder();
+  private final LongAdder truncatedValues = new LongAdder();
+
+  SpanLimits(int maxTags, int maxValueLength, int maxLogs, long maxTraceSize) {
+    update(maxTags, maxValueLength, maxLogs, maxTraceSize);
+  }
+
+  void update(int maxTags, int maxValueLength, int maxLogs, long maxTraceSize) {
+    this.maxTags = maxTags;
+    this.maxValueLength = maxValueLength;
+    this.maxLogs = maxLogs;
+    this.maxTraceSize = maxTraceSize;
+  }
+
+  int getMaxTags() {
+    return maxTags;
+  }
+
+  int getMaxLogs() {
+    return maxLogs;
+  }
+
+  long getMaxTraceSize() {
+    return maxTraceSize;
+  }
+
+  String truncate(String value) {
+    int max = maxValueLength;
+    if (value.length() <= max) {
+      return value;
+    }
+    truncatedValues.increment();
+    return value.substring(0, max) + TRUNCATION_MARKER;
+  }
+
+  void tagDropped() {
+    droppedTags.increment();
+  }
+
+  void logDropped() {
+    droppedLogs.increment();
+  }
+
+  public long getDroppedTags() {
+    return droppedTags.sum();
+  }
+
+  public long getDroppedLogs() {
+    return droppedLogs.sum();
+  }
+
+  public long getTruncatedValues() {
+    return truncatedValues.sum();
+  }
+}
@@ -6,6 +6,8 @@ import hudson.model.Describable;
 import hudson.model.Descriptor;
 import io.opentracing.Span;
 import io.opentracing.Tracer;
+import java.util.Collections;
+import java.util.Map;
 import java.util.Optional;
 import javax.annotation.Nonnull;
 
@@ -31,6 +33,37 @@ public abstract class TracerConfig extends AbstractDescribableImpl<TracerConfig>
    */
   public abstract Optional<TracerUiLink> getTraceLinkAction(Span span);
 
+  /** Whether this configuration produces any spans. If not, the plugin skips all tracing work. */
+  public boolean isEnabled() {
+    return true;
+  }
+
+  /**
+   * Decide whether a build is traced. Called once per build, when it enters the queue or when it
+   * starts without having been queued. Builds which are not sampled do not produce any spans.
+   *
+   * @param jobName full name of the job
+   */
+  public boolean isSampled(String jobName) {
+    return true;
+  }
+
+  /**
+   * Decide whether a completed build is traced by a backfill. Called once per build, unlike {@link
+   * #isSampled(String)} it must not affect the sampling of the running builds.
+   *
+   * @param jobName full name of the job
+   * @param runId id of the build, unique across jobs
+   */
+  public boolean isSampledForBackfill(String jobName, String runId) {
+    return true;
+  }
+
+  /** Statistics of the export of finished spans, by name. Empty if the implementation has none. */
+  public Map<String, Number> getMetrics() {
+    return Collections.emptyMap();
+  }
+
   public static class ConfigDescriptor extends Descriptor<TracerConfig> {
     private String name;
 
@@ -0,0 +1,117 @@
+package com.amadeus.jenkins.opentracing.config.impl;
+
+import static com.amadeus.jenkins.opentracing.config.impl.TraceContextCodec.hex;
+import static com.amadeus.jenkins.opentracing.config.impl.TraceContextCodec.isHex;
+import static com.amadeus.jenkins.opentracing.config.impl.TraceContextCodec.parseHex;
+
+import io.jaegertracing.internal.JaegerSpanContext;
+import io.jaegertracing.spi.Codec;
+import io.opentracing.propagation.TextMap;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * Codec of the <a href="https://github.com/openzipkin/b3-propagation">B3</a> single header in the
+ * {@code B3} environment variable: {@code <trace id>-<span id>-<sampling>-<parent span id>}. Like
+ * the B3 headers, it does not carry any baggage.
+ */
+final class B3Codec implements Codec<TextMap> {
+  static final String B3 = "B3";
+
+  private static final byte SAMPLED = 1;
+  private static final byte DEBUG = 2;
+
+  @Override
+  public void inject(JaegerSpanContext spanContext, TextMap carrier) {
+    // 64 bit trace ids are written as such, for the older Zipkin instrumentations
+    boolean longTraceId = spanContext.getTraceIdHigh() != 0;
+    long parentId = spanContext.getParentId();
+    int length = (longTraceId ? 32 : 16) + 1 + 16 + 2 + (parentId != 0 ? 1 + 16 : 0);
+    char[] value = new char[length];
+    int i = 0;
+    if (longTraceId) {
+      hex(spanContext.getTraceIdHigh(), value, i);
+      i += 16;
+    }
+    hex(spanContext.getTraceIdLow(), value, i);
+    i += 16;
+    value[i++] = '-';
+    hex(spanContext.getSpanId(), value, i);
+    i += 16;
+    value[i++] = '-';
+    byte flags = spanContext.getFlags();
+    value[i++] = (flags & DEBUG) != 0 ? 'd' : (flags & SAMPLED) != 0 ? '1' : '0';
+    if (parentId != 0) {
+      value[i++] = '-';
+      hex(parentId, value, i);
+    }
+    carrier.put(B3, new String(value));
+  }
+
+  @Override
+  public @Nullable JaegerSpanContext extract(TextMap carrier) {
+    for (Map.Entry<String, String> entry : carrier) {
+      if (B3.equalsIgnoreCase(entry.getKey())) {
+        return parse(entry.getValue());
+      }
+    }
+    return null;
+  }
+
+  private static @Nullable JaegerSpanContext parse(@Nullable String value) {
+    if (value == null) {
+      return null;
+    }
+    // a sampling decision alone does not hold a context to continue
+    int traceIdLength = value.indexOf('-');
+    if (traceIdLength != 16 && traceIdLength != 32) {
+      return null;
+    }
+    int spanId = traceIdLength + 1;
+    int end = spanId + 16;
+    if (value.length() < end
+        || !isHex(value, 0, traceIdLength)
+        || !isHex(value, spanId, end)
+        || value.length() > end && value.charAt(end) != '-') {
+      return null;
+    }
+    long traceIdHigh = traceIdLength == 32 ? parseHex(value, 0) : 0;
+    long traceIdLow = parseHex(value, traceIdLength - 16);
+    long id = parseHex(value, spanId);
+    if (traceIdHigh == 0 && traceIdLow == 0 || id == 0) {
+      return null;
+    }
+
+    // the sampling decision is deferred if absent, the spans of Jenkins are always sampled
+    byte flags = SAMPLED;
+    long parentId = 0;
+    if (value.length() > end) {
+      int sampling = end + 1;
+      if (value.length() < sampling + 1) {
+        return null;
+      }
+      switch (value.charAt(sampling)) {
+        case '0':
+          flags = 0;
+          break;
+        case '1':
+          break;
+        case 'd':
+          flags |= DEBUG;
+          break;
+        default:
+          return null;
+      }
+      int parent = sampling + 2;
+      if (value.length() > sampling + 1) {
+        if (value.charAt(sampling + 1) != '-'
+            || value.length() != parent + 16
+            || !isHex(value, parent, parent + 16)) {
+          return null;
+        }
+        parentId = parseHex(value, parent);
+      }
+    }
+    return new JaegerSpanContext(traceIdHigh, traceIdLow, id, parentId, flags);
+  }
+}
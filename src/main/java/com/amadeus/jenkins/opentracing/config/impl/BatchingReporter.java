@@ -0,0 +1,290 @@
+package com.amadeus.jenkins.opentracing.config.impl;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import io.jaegertracing.internal.JaegerSpan;
+import io.jaegertracing.internal.exceptions.SenderException;
+import io.jaegertracing.spi.Reporter;
+import io.jaegertracing.spi.Sender;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import javax.annotation.Nullable;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link Reporter} exporting finished spans through a bounded queue and a pool of sender threads.
+ * Each thread owns its {@link Sender}, collects up to {@code batchSize} spans or waits at most
+ * {@code flushInterval} milliseconds and then flushes them in one go. A full queue is handled
+ * according to the {@link OverflowPolicy}.
+ *
+ * <p>The tracers of a configuration {@link #share() share} one reporter, so that the spans of all
+ * of them are batched together by a constant number of threads.
+ */
+@Restricted(NoExternalUse.class)
+public final class BatchingReporter implements Reporter {
+  private static Logger logger = LoggerFactory.getLogger(BatchingReporter.class);
+  private static final long CLOSE_TIMEOUT_MILLIS = 10_000;
+
+  private final BlockingQueue<JaegerSpan> queue;
+  private final int batchSize;
+  private final long flushIntervalMillis;
+  private final OverflowPolicy overflowPolicy;
+  private final List<Thread> workers = new ArrayList<>();
+  private volatile boolean closed;
+  private int handles;
+
+  private final LongAdder queued = new LongAdder();
+  private final LongAdder sent = new LongAdder();
+  private final LongAdder dropped = new LongAdder();
+  private final LongAdder failed = new LongAdder();
+  private final LongAdder batches = new LongAdder();
+  private final LongAdder totalBatchNanos = new LongAdder();
+  private final AtomicLong maxBatchNanos = new AtomicLong();
+
+  /** What to do with a finished span if the queue is full. */
+  public enum OverflowPolicy {
+    /** Drop the span, never slowing down the thread finishing it. */
+    DROP,
+    /** Wait for the senders to make room. */
+    BLOCK
+  }
+
+  BatchingReporter(
+      String name,
+      Supplier<Sender> senderFactory,
+      int queueSize,
+      int batchSize,
+      int senderThreads,
+      long flushIntervalMillis,
+      OverflowPolicy overflowPolicy) {
+    this.queue = new ArrayBlockingQueue<>(queueSize);
+    this.batchSize = batchSize;
+    this.flushIntervalMillis = flushIntervalMillis;
+    this.overflowPolicy = overflowPolicy;
+
+    ThreadFactory threadFactory =
+        new NamingThreadFactory(new DaemonThreadFactory(), "OpenTracing reporter " + name);
+    for (int i = 0; i < senderThreads; i++) {
+      Sender sender = senderFactory.get();
+      workers.add(threadFactory.newThread(() -> run(sender)));
+    }
+    workers.forEach(Thread::start);
+  }
+
+  @Override
+  public void report(JaegerSpan span) {
+    if (offer(span)) {
+      queued.increment();
+    } else {
+      dropped.increment();
+    }
+  }
+
+  private boolean offer(JaegerSpan span) {
+    if (closed) {
+      return false;
+    }
+    if (overflowPolicy == OverflowPolicy.DROP) {
+      return queue.offer(span);
+    }
+    try {
+      while (!closed) {
+        if (queue.offer(span, 100, TimeUnit.MILLISECONDS)) {
+          return true;
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return false;
+  }
+
+  private void run(Sender sender) {
+    List<JaegerSpan> batch = new ArrayList<>(batchSize);
+    try {
+      while (!closed || !queue.isEmpty()) {
+        if (fill(batch)) {
+          send(sender, batch);
+          batch.clear();
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      try {
+        sender.close();
+      } catch (SenderException e) {
+        failed.add(e.getDroppedSpanCount());
+        logger.warn("Could not close sender", e);
+      }
+    }
+  }
+
+  // waits for a first span, then for a full batch or the end of the flush interval
+  private boolean fill(List<JaegerSpan> batch) throws InterruptedException {
+    JaegerSpan span = queue.poll(flushIntervalMillis, TimeUnit.MILLISECONDS);
+    if (span == null) {
+      return false;
+    }
+    batch.add(span);
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+    while (batch.size() < batchSize) {
+      queue.drainTo(batch, batchSize - batch.size());
+      long remaining = deadline - System.nanoTime();
+      if (batch.size() >= batchSize || closed || remaining <= 0) {
+        break;
+      }
+      span = queue.poll(remaining, TimeUnit.NANOSECONDS);
+      if (span == null) {
+        break;
+      }
+      batch.add(span);
+    }
+    return true;
+  }
+
+  private void send(Sender sender, List<JaegerSpan> batch) {
+    long start = System.nanoTime();
+    int batchFailed = 0;
+    try {
+      for (JaegerSpan span : batch) {
+        sender.append(span);
+      }
+      sender.flush();
+    } catch (SenderException e) {
+      batchFailed = e.getDroppedSpanCount();
+      logger.warn("Could not send {} spans", batchFailed, e);
+    }
+    long duration = System.nanoTime() - start;
+    failed.add(batchFailed);
+    sent.add(Math.max(0, batch.size() - batchFailed));
+    batches.increment();
+    totalBatchNanos.add(duration);
+    maxBatchNanos.accumulateAndGet(duration, Math::max);
+  }
+
+  /**
+   * Returns a reporter for one of the tracers sharing this one. It is closed with the last of the
+   * returned reporters, after which {@code null} is returned and a new reporter must be created.
+   */
+  synchronized @Nullable Reporter share() {
+    if (closed) {
+      return null;
+    }
+    handles++;
+    return new Handle();
+  }
+
+  private void release() {
+    synchronized (this) {
+      if (--handles > 0 || closed) {
+        return;
+      }
+      closed = true;
+    }
+    awaitWorkers();
+  }
+
+  boolean isClosed() {
+    return closed;
+  }
+
+  /** Stops accepting spans and waits for the queued ones to be sent. */
+  @Override
+  public void close() {
+    synchronized (this) {
+      closed = true;
+    }
+    awaitWorkers();
+  }
+
+  private void awaitWorkers() {
+    long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT_MILLIS;
+    for (Thread worker : workers) {
+      try {
+        worker.join(Math.max(1, deadline - System.currentTimeMillis()));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  public int getQueueDepth() {
+    return queue.size();
+  }
+
+  public long getQueued() {
+    return queued.sum();
+  }
+
+  public long getSent() {
+    return sent.sum();
+  }
+
+  public long getDropped() {
+    return dropped.sum();
+  }
+
+  public long getFailed() {
+    return failed.sum();
+  }
+
+  public long getBatches() {
+    return batches.sum();
+  }
+
+  public double getAverageBatchMillis() {
+    long count = batches.sum();
+    if (count == 0) {
+      return 0;
+    }
+    return totalBatchNanos.sum() / (count * 1_000_000.0);
+  }
+
+  public long getMaxBatchMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(maxBatchNanos.get());
+  }
+
+  private final class Handle implements Reporter {
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    @Override
+    public void report(JaegerSpan span) {
+      BatchingReporter.this.report(span);
+    }
+
+    @Override
+    public void close() {
+      if (released.compareAndSet(false, true)) {
+        release();
+      }
+    }
+  }
+
+  /** Statistics of the export, by name, all zero if there is no {@code reporter} yet. */
+  static Map<String, Number> metrics(@Nullable BatchingReporter reporter) {
+    Map<String, Number> metrics = new TreeMap<>();
+    metrics.put("queueDepth", reporter != null ? reporter.getQueueDepth() : 0L);
+    metrics.put("queued", reporter != null ? reporter.getQueued() : 0L);
+    metrics.put("sent", reporter != null ? reporter.getSent() : 0L);
+    metrics.put("dropped", reporter != null ? reporter.getDropped() : 0L);
+    metrics.put("failed", reporter != null ? reporter.getFailed() : 0L);
+    metrics.put("batches", reporter != null ? reporter.getBatches() : 0L);
+    metrics.put("maxBatchMillis", reporter != null ? reporter.getMaxBatchMillis() : 0L);
+    return metrics;
+  }
+}
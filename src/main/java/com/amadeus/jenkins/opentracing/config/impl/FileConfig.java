@@ -0,0 +1,247 @@
+package com.amadeus.jenkins.opentracing.config.impl;
+
+import com.amadeus.jenkins.opentracing.config.TracerConfig;
+import com.amadeus.jenkins.opentracing.config.TracerUiLink;
+import com.amadeus.jenkins.opentracing.config.impl.BatchingReporter.OverflowPolicy;
+import hudson.Extension;
+import hudson.Util;
+import hudson.util.FormValidation;
+import io.jaegertracing.internal.JaegerSpan;
+import io.jaegertracing.internal.JaegerTracer;
+import io.jaegertracing.internal.exceptions.SenderException;
+import io.jaegertracing.internal.samplers.ConstSampler;
+import io.jaegertracing.spi.Reporter;
+import io.jaegertracing.spi.Sender;
+import io.opentracing.Span;
+import io.opentracing.Tracer;
+import io.opentracing.propagation.Format.Builtin;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import jenkins.model.Jenkins;
+import org.jenkinsci.Symbol;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Implementation of {@link TracerConfig} that writes the finished {@link Span}s to local files, one
+ * OTLP/JSON request per line, as read by the {@code otlpjsonfile} receiver of the OpenTelemetry
+ * collector. Builds do not depend on the availability of a collector, and the cost of the tracing
+ * can be measured without a network.
+ *
+ * <p>The files are rotated by size and age, see {@link SegmentWriter}.
+ */
+@Restricted(NoExternalUse.class)
+public final class FileConfig extends TracerConfig {
+  private static Logger logger = LoggerFactory.getLogger(FileConfig.class);
+
+  private static final String DEFAULT_DIRECTORY = "opentracing-spans";
+  private static final int DEFAULT_MAX_SEGMENT_SIZE = 64;
+  private static final int DEFAULT_MAX_SEGMENT_AGE = 60;
+  private static final int DEFAULT_MAX_SEGMENTS = 10;
+
+  private static final int QUEUE_SIZE = 10_000;
+  private static final int BATCH_SIZE = 100;
+  private static final int FLUSH_INTERVAL = 1000;
+
+  private final @Nullable String directory;
+  // 0 unless configured, the getters take care of the defaults
+  private int maxSegmentSize;
+  private int maxSegmentAge;
+  private int maxSegments;
+  private transient SegmentWriter writer;
+  private Propagation propagation;
+  // shared by the tracers handed out
+  private transient BatchingReporter reporter;
+
+  @DataBoundConstructor
+  public FileConfig(@Nullable String directory) {
+    this.directory = Util.fixEmptyAndTrim(directory);
+  }
+
+  /** Directory of the files, relative to {@code JENKINS_HOME} unless absolute. */
+  public @Nullable String getDirectory() {
+    return directory;
+  }
+
+  /** Size in megabytes after which the current file is rotated. */
+  public int getMaxSegmentSize() {
+    return maxSegmentSize > 0 ? maxSegmentSize : DEFAULT_MAX_SEGMENT_SIZE;
+  }
+
+  @DataBoundSetter
+  public void setMaxSegmentSize(int maxSegmentSize) {
+    this.maxSegmentSize = maxSegmentSize;
+  }
+
+  /** Age in minutes after which the current file is rotated. */
+  public int getMaxSegmentAge() {
+    return maxSegmentAge > 0 ? maxSegmentAge : DEFAULT_MAX_SEGMENT_AGE;
+  }
+
+  @DataBoundSetter
+  public void setMaxSegmentAge(int maxSegmentAge) {
+    this.maxSegmentAge = maxSegmentAge;
+  }
+
+  /** Number of rotated and compressed files which are kept. */
+  public int getMaxSegments() {
+    return maxSegments > 0 ? maxSegments : DEFAULT_MAX_SEGMENTS;
+  }
+
+  @DataBoundSetter
+  public void setMaxSegments(int maxSegments) {
+    this.maxSegments = maxSegments;
+  }
+
+  /** Format of the span contexts in the environment of the processes launched by the steps. */
+  public Propagation getPropagation() {
+    return propagation != null ? propagation : Propagation.JAEGER;
+  }
+
+  @DataBoundSetter
+  public void setPropagation(@Nullable Propagation propagation) {
+    this.propagation = propagation;
+  }
+
+  @Override
+  public Tracer getTracerForName(String name) {
+    return new JaegerTracer.Builder(name)
+        .withReporter(shareReporter())
+        .withSampler(new ConstSampler(true))
+        .registerInjector(Builtin.TEXT_MAP, getPropagation().getCodec())
+        .registerExtractor(Builtin.TEXT_MAP, getPropagation().getCodec())
+        .build();
+  }
+
+  private synchronized Reporter shareReporter() {
+    Reporter shared = reporter != null ? reporter.share() : null;
+    if (shared == null) {
+      SegmentWriter segmentWriter = getWriter();
+      reporter =
+          new BatchingReporter(
+              "file",
+              () -> new FileSender(segmentWriter),
+              QUEUE_SIZE,
+              BATCH_SIZE,
+              1,
+              FLUSH_INTERVAL,
+              OverflowPolicy.DROP);
+      shared = reporter.share();
+    }
+    return shared;
+  }
+
+  private synchronized SegmentWriter getWriter() {
+    if (writer == null) {
+      Path path = Paths.get(directory != null ? directory : DEFAULT_DIRECTORY);
+      if (!path.isAbsolute()) {
+        path = Jenkins.get().getRootDir().toPath().resolve(path);
+      }
+      writer =
+          SegmentWriter.get(
+              path,
+              getMaxSegmentSize() * 1024L * 1024L,
+              TimeUnit.MINUTES.toMillis(getMaxSegmentAge()),
+              getMaxSegments());
+    }
+    return writer;
+  }
+
+  @Override
+  public Map<String, Number> getMetrics() {
+    Map<String, Number> metrics;
+    synchronized (this) {
+      metrics = BatchingReporter.metrics(reporter);
+    }
+    SegmentWriter segmentWriter = getWriter();
+    metrics.put("bytesWritten", segmentWriter.getBytesWritten());
+    metrics.put("rotations", segmentWriter.getRotations());
+    return metrics;
+  }
+
+  @Override
+  public Optional<TracerUiLink> getTraceLinkAction(Span span) {
+    return Optional.empty();
+  }
+
+  // buffers a batch and writes it as a single line
+  private static final class FileSender implements Sender {
+    private final SegmentWriter writer;
+    private final OtlpJsonEncoder encoder = new OtlpJsonEncoder();
+    private final List<JaegerSpan> spans = new ArrayList<>();
+
+    private FileSender(SegmentWriter writer) {
+      this.writer = writer;
+      writer.acquire();
+    }
+
+    @Override
+    public int append(JaegerSpan span) {
+      spans.add(span);
+      return 0;
+    }
+
+    @Override
+    public int flush() throws SenderException {
+      if (spans.isEmpty()) {
+        return 0;
+      }
+      int count = spans.size();
+      try {
+        writer.write(encoder.encode(spans));
+      } catch (IOException e) {
+        throw new SenderException("Could not write the spans", e, count);
+      } finally {
+        spans.clear();
+      }
+      return count;
+    }
+
+    @Override
+    public int close() throws SenderException {
+      try {
+        return flush();
+      } finally {
+        try {
+          writer.release();
+        } catch (IOException e) {
+          // the spans made it to the file
+          logger.warn("Could not close the span file", e);
+        }
+      }
+    }
+  }
+
+  @Extension
+  @Symbol("file")
+  public static final class DescriptorImpl extends TracerConfig.ConfigDescriptor {
+
+    public DescriptorImpl() {
+      super("Local files");
+    }
+
+    public FormValidation doCheckMaxSegmentSize(@QueryParameter String maxSegmentSize) {
+      return FormValidation.validatePositiveInteger(maxSegmentSize);
+    }
+
+    public FormValidation doCheckMaxSegmentAge(@QueryParameter String maxSegmentAge) {
+      return FormValidation.validatePositiveInteger(maxSegmentAge);
+    }
+
+    public FormValidation doCheckMaxSegments(@QueryParameter String maxSegments) {
+      return FormValidation.validatePositiveInteger(maxSegments);
+    }
+  }
+}
@@ -4,6 +4,8 @@ import com.amadeus.jenkins.opentracing.Utils;
 import com.amadeus.jenkins.opentracing.config.BackwardCompatConverter;
 import com.amadeus.jenkins.opentracing.config.TracerConfig;
 import com.amadeus.jenkins.opentracing.config.TracerUiLink;
+import com.amadeus.jenkins.opentracing.config.impl.BatchingReporter.OverflowPolicy;
+import com.amadeus.jenkins.opentracing.config.impl.SamplerConfig.ConstSamplerConfig;
 import com.google.common.annotations.VisibleForTesting;
 import hudson.Extension;
 import hudson.ExtensionPoint;
@@ -12,18 +14,24 @@ import hudson.model.Describable;
 import hudson.model.Descriptor;
 import hudson.util.FormValidation;
 import hudson.util.XStream2;
-import io.jaegertracing.Configuration;
-import io.jaegertracing.Configuration.ReporterConfiguration;
-import io.jaegertracing.Configuration.SamplerConfiguration;
 import io.jaegertracing.Configuration.SenderConfiguration;
 import io.jaegertracing.internal.JaegerSpan;
-import io.jaegertracing.internal.propagation.TextMapCodec;
-import io.jaegertracing.spi.Codec;
+import io.jaegertracing.internal.JaegerTracer;
+import io.jaegertracing.internal.exceptions.SenderException;
+import io.jaegertracing.internal.samplers.ConstSampler;
+import io.jaegertracing.spi.Reporter;
+import io.jaegertracing.spi.Sender;
 import io.opentracing.Span;
 import io.opentracing.Tracer;
 import io.opentracing.propagation.Format.Builtin;
-import io.opentracing.propagation.TextMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.SplittableRandom;
+import java.util.function.Supplier;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import org.jenkinsci.Symbol;
@@ -31,6 +39,7 @@ import org.kohsuke.accmod.Restricted;
 import org.kohsuke.accmod.restrictions.DoNotUse;
 import org.kohsuke.accmod.restrictions.NoExternalUse;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 
 /**
@@ -39,11 +48,25 @@ import org.kohsuke.stapler.QueryParameter;
  */
 @Restricted(NoExternalUse.class)
 public final class JaegerConfig extends TracerConfig {
-  private static final SenderConfiguration NULL_SENDER_CONFIG =
-      new SenderConfiguration().withAgentPort(1);
+  private static final int DEFAULT_QUEUE_SIZE = 10_000;
+  private static final int DEFAULT_BATCH_SIZE = 100;
+  private static final int DEFAULT_SENDER_THREADS = 1;
+  private static final int DEFAULT_FLUSH_INTERVAL = 1000;
+  private static final SamplerConfig DEFAULT_SAMPLER = new ConstSamplerConfig(true);
 
   private final String ui;
   private final SenderConfig sender;
+  // not set in configurations of older versions, the getters take care of the defaults
+  private int queueSize;
+  private int batchSize;
+  private int senderThreads;
+  private int flushInterval;
+  private OverflowPolicy overflowPolicy;
+  private SamplerConfig sampler;
+  private List<SamplingRule> samplingRules;
+  private Propagation propagation;
+  // shared by the tracers handed out
+  private transient BatchingReporter reporter;
 
   @DataBoundConstructor
   public JaegerConfig(@Nonnull SenderConfig sender, @Nonnull String ui) {
@@ -55,28 +78,149 @@ public final class JaegerConfig extends TracerConfig {
     return sender;
   }
 
-  private Configuration getConfiguration(String name) {
-    return new Configuration(name)
-        .withSampler(new SamplerConfiguration().withType("const").withParam(1))
-        .withReporter(
-            new ReporterConfiguration().withSender(sender.getConfig()).withFlushInterval(2000))
-        .withCodec(
-            new Configuration.CodecConfiguration().withCodec(Builtin.TEXT_MAP, ENVIRONMENT_CODEC));
+  /** Maximum number of finished spans waiting to be sent. */
+  public int getQueueSize() {
+    return queueSize > 0 ? queueSize : DEFAULT_QUEUE_SIZE;
   }
 
-  private static final String SPAN_CONTEXT_KEY = "uber_trace_id";
-  private static final String BAGGAGE_KEY_PREFIX = "uberctx_";
+  @DataBoundSetter
+  public void setQueueSize(int queueSize) {
+    this.queueSize = queueSize;
+  }
+
+  /** Maximum number of spans flushed at once by a sender. */
+  public int getBatchSize() {
+    return batchSize > 0 ? batchSize : DEFAULT_BATCH_SIZE;
+  }
+
+  @DataBoundSetter
+  public void setBatchSize(int batchSize) {
+    this.batchSize = batchSize;
+  }
+
+  /** Number of threads, each with its own connection, sending spans in parallel. */
+  public int getSenderThreads() {
+    return senderThreads > 0 ? senderThreads : DEFAULT_SENDER_THREADS;
+  }
+
+  @DataBoundSetter
+  public void setSenderThreads(int senderThreads) {
+    this.senderThreads = senderThreads;
+  }
+
+  /** Maximum time in milliseconds a span waits for its batch to fill up. */
+  public int getFlushInterval() {
+    return flushInterval > 0 ? flushInterval : DEFAULT_FLUSH_INTERVAL;
+  }
 
-  private static final Codec<TextMap> ENVIRONMENT_CODEC =
-      new TextMapCodec.Builder()
-          .withSpanContextKey(SPAN_CONTEXT_KEY)
-          .withBaggagePrefix(BAGGAGE_KEY_PREFIX)
-          .withUrlEncoding(true)
-          .build();
+  @DataBoundSetter
+  public void setFlushInterval(int flushInterval) {
+    this.flushInterval = flushInterval;
+  }
+
+  public OverflowPolicy getOverflowPolicy() {
+    return overflowPolicy != null ? overflowPolicy : OverflowPolicy.DROP;
+  }
+
+  @DataBoundSetter
+  public void setOverflowPolicy(@Nullable OverflowPolicy overflowPolicy) {
+    this.overflowPolicy = overflowPolicy;
+  }
+
+  /** Sampler for the jobs not matched by any of the {@link #getSamplingRules() rules}. */
+  public SamplerConfig getSampler() {
+    return sampler != null ? sampler : DEFAULT_SAMPLER;
+  }
+
+  @DataBoundSetter
+  public void setSampler(@Nullable SamplerConfig sampler) {
+    this.sampler = sampler;
+  }
+
+  /** Job specific samplers, the first matching rule wins. */
+  public List<SamplingRule> getSamplingRules() {
+    return samplingRules != null ? samplingRules : Collections.emptyList();
+  }
+
+  @DataBoundSetter
+  public void setSamplingRules(@Nullable List<SamplingRule> samplingRules) {
+    this.samplingRules = samplingRules != null ? new ArrayList<>(samplingRules) : null;
+  }
+
+  @Override
+  public boolean isSampled(String jobName) {
+    return getSampler(jobName).isSampled(jobName);
+  }
+
+  @Override
+  public boolean isSampledForBackfill(String jobName, String runId) {
+    // the same runs are picked again when a backfill is repeated
+    double draw = new SplittableRandom(runId.hashCode()).nextDouble();
+    return draw < getSampler(jobName).getBackfillProbability();
+  }
+
+  private SamplerConfig getSampler(String jobName) {
+    for (SamplingRule rule : getSamplingRules()) {
+      if (rule.matches(jobName)) {
+        return rule.getSampler();
+      }
+    }
+    return getSampler();
+  }
+
+  private void spanReported() {
+    getSampler().spanReported();
+    for (SamplingRule rule : getSamplingRules()) {
+      rule.getSampler().spanReported();
+    }
+  }
+
+  /** Format of the span contexts in the environment of the processes launched by the steps. */
+  public Propagation getPropagation() {
+    return propagation != null ? propagation : Propagation.JAEGER;
+  }
+
+  @DataBoundSetter
+  public void setPropagation(@Nullable Propagation propagation) {
+    this.propagation = propagation;
+  }
 
   @Override
   public Tracer getTracerForName(String name) {
-    return getConfiguration(name).getTracer();
+    // unsampled builds do not create any spans, so everything reaching the tracer is sampled
+    return new JaegerTracer.Builder(name)
+        .withReporter(new FeedbackReporter(shareReporter(), this::spanReported))
+        .withSampler(new ConstSampler(true))
+        .registerInjector(Builtin.TEXT_MAP, getPropagation().getCodec())
+        .registerExtractor(Builtin.TEXT_MAP, getPropagation().getCodec())
+        .build();
+  }
+
+  // a closed reporter does not hand out any more handles, the next tracer gets a new one
+  private synchronized Reporter shareReporter() {
+    Reporter shared = reporter != null ? reporter.share() : null;
+    if (shared == null) {
+      // a configuration creates a single sender, which is not thread-safe: every service of every
+      // worker needs a configuration of its own
+      reporter =
+          new BatchingReporter(
+              "Jaeger",
+              () -> new ProcessSender(() -> sender.getConfig().getSender()),
+              getQueueSize(),
+              getBatchSize(),
+              getSenderThreads(),
+              getFlushInterval(),
+              getOverflowPolicy());
+      shared = reporter.share();
+    }
+    return shared;
+  }
+
+  @Override
+  public Map<String, Number> getMetrics() {
+    synchronized (this) {
+      return BatchingReporter.metrics(reporter);
+    }
   }
 
   @Override
@@ -110,6 +254,22 @@ public final class JaegerConfig extends TracerConfig {
     public DescriptorImpl() {
       super("Jaeger");
     }
+
+    public FormValidation doCheckQueueSize(@QueryParameter String queueSize) {
+      return FormValidation.validatePositiveInteger(queueSize);
+    }
+
+    public FormValidation doCheckBatchSize(@QueryParameter String batchSize) {
+      return FormValidation.validatePositiveInteger(batchSize);
+    }
+
+    public FormValidation doCheckSenderThreads(@QueryParameter String senderThreads) {
+      return FormValidation.validatePositiveInteger(senderThreads);
+    }
+
+    public FormValidation doCheckFlushInterval(@QueryParameter String flushInterval) {
+      return FormValidation.validatePositiveInteger(flushInterval);
+    }
   }
 
   @VisibleForTesting
@@ -215,7 +375,7 @@ public final class JaegerConfig extends TracerConfig {
 
     @Override
     SenderConfiguration getConfig() {
-      return NULL_SENDER_CONFIG;
+      return new SenderConfiguration().withAgentPort(1);
     }
 
     @Extension(ordinal = 99)
@@ -227,6 +387,81 @@ public final class JaegerConfig extends TracerConfig {
     }
   }
 
+  // lets the samplers know about the reported spans
+  private static final class FeedbackReporter implements Reporter {
+    private final Reporter delegate;
+    private final Runnable onReport;
+
+    private FeedbackReporter(Reporter delegate, Runnable onReport) {
+      this.delegate = delegate;
+      this.onReport = onReport;
+    }
+
+    @Override
+    public void report(JaegerSpan span) {
+      onReport.run();
+      delegate.report(span);
+    }
+
+    @Override
+    public void close() {
+      delegate.close();
+    }
+  }
+
+  /**
+   * The Thrift senders describe the process of a batch with the service of its first span, so each
+   * service gets its own sender.
+   */
+  private static final class ProcessSender implements Sender {
+    private final Supplier<Sender> senderFactory;
+    private final Map<String, Sender> senders = new HashMap<>();
+
+    private ProcessSender(Supplier<Sender> senderFactory) {
+      this.senderFactory = senderFactory;
+    }
+
+    @Override
+    public int append(JaegerSpan span) throws SenderException {
+      return senders
+          .computeIfAbsent(span.getTracer().getServiceName(), s -> senderFactory.get())
+          .append(span);
+    }
+
+    @Override
+    public int flush() throws SenderException {
+      return forEach(Sender::flush);
+    }
+
+    @Override
+    public int close() throws SenderException {
+      return forEach(Sender::close);
+    }
+
+    // goes through all senders even if some fail, the dropped spans add up
+    private int forEach(SenderOperation operation) throws SenderException {
+      int done = 0;
+      int dropped = 0;
+      SenderException failure = null;
+      for (Sender sender : senders.values()) {
+        try {
+          done += operation.apply(sender);
+        } catch (SenderException e) {
+          dropped += e.getDroppedSpanCount();
+          failure = e;
+        }
+      }
+      if (failure != null) {
+        throw new SenderException(failure.getMessage(), failure, dropped);
+      }
+      return done;
+    }
+
+    private interface SenderOperation {
+      int apply(Sender sender) throws SenderException;
+    }
+  }
+
   private static final class JaegerUIAction implements TracerUiLink {
     private final String url;
 
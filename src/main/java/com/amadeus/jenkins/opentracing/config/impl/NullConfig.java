@@ -28,6 +28,11 @@ public final class NullConfig extends TracerConfig {
     return NoopTracerFactory.create();
   }
 
+  @Override
+  public boolean isEnabled() {
+    return false;
+  }
+
   @Override
   public Optional<TracerUiLink> getTraceLinkAction(@Nonnull Span span) {
     return Optional.empty();
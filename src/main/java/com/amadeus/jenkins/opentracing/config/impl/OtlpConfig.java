@@ -0,0 +1,300 @@
+package com.amadeus.jenkins.opentracing.config.impl;
+
+import com.amadeus.jenkins.opentracing.Utils;
+import com.amadeus.jenkins.opentracing.config.TracerConfig;
+import com.amadeus.jenkins.opentracing.config.TracerUiLink;
+import com.amadeus.jenkins.opentracing.config.impl.BatchingReporter.OverflowPolicy;
+import hudson.Extension;
+import hudson.util.FormValidation;
+import io.jaegertracing.internal.JaegerSpan;
+import io.jaegertracing.internal.JaegerTracer;
+import io.jaegertracing.internal.exceptions.SenderException;
+import io.jaegertracing.internal.samplers.ConstSampler;
+import io.jaegertracing.spi.Reporter;
+import io.jaegertracing.spi.Sender;
+import io.opentracing.Span;
+import io.opentracing.Tracer;
+import io.opentracing.propagation.Format.Builtin;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.zip.GZIPOutputStream;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import org.jenkinsci.Symbol;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+
+/**
+ * Implementation of {@link TracerConfig} that exports the {@link Span}s to an OpenTelemetry
+ * collector with OTLP over HTTP, in the JSON encoding. Each batch of the {@link BatchingReporter}
+ * is posted as one request, compressed with gzip unless disabled.
+ */
+@Restricted(NoExternalUse.class)
+public final class OtlpConfig extends TracerConfig {
+  private static final int DEFAULT_QUEUE_SIZE = 10_000;
+  private static final int DEFAULT_BATCH_SIZE = 512;
+  private static final int DEFAULT_FLUSH_INTERVAL = 1000;
+  private static final int DEFAULT_TIMEOUT = 10_000;
+
+  private final String endpoint;
+  // 0 unless configured, the getters take care of the defaults
+  private int queueSize;
+  private int batchSize;
+  private int flushInterval;
+  private int timeout;
+  private boolean compression = true;
+  private OverflowPolicy overflowPolicy;
+  private Propagation propagation;
+  // shared by the tracers handed out
+  private transient BatchingReporter reporter;
+
+  @DataBoundConstructor
+  public OtlpConfig(@Nonnull String endpoint) {
+    this.endpoint = endpoint;
+  }
+
+  /** URL receiving the traces, usually ending with {@code /v1/traces}. */
+  public String getEndpoint() {
+    return endpoint;
+  }
+
+  /** Maximum number of finished spans waiting to be exported. */
+  public int getQueueSize() {
+    return queueSize > 0 ? queueSize : DEFAULT_QUEUE_SIZE;
+  }
+
+  @DataBoundSetter
+  public void setQueueSize(int queueSize) {
+    this.queueSize = queueSize;
+  }
+
+  /** Maximum number of spans exported in one request. */
+  public int getBatchSize() {
+    return batchSize > 0 ? batchSize : DEFAULT_BATCH_SIZE;
+  }
+
+  @DataBoundSetter
+  public void setBatchSize(int batchSize) {
+    this.batchSize = batchSize;
+  }
+
+  /** Maximum time in milliseconds a span waits for its batch to fill up. */
+  public int getFlushInterval() {
+    return flushInterval > 0 ? flushInterval : DEFAULT_FLUSH_INTERVAL;
+  }
+
+  @DataBoundSetter
+  public void setFlushInterval(int flushInterval) {
+    this.flushInterval = flushInterval;
+  }
+
+  /** Timeout in milliseconds of the connection and of the response to an export. */
+  public int getTimeout() {
+    return timeout > 0 ? timeout : DEFAULT_TIMEOUT;
+  }
+
+  @DataBoundSetter
+  public void setTimeout(int timeout) {
+    this.timeout = timeout;
+  }
+
+  /** Whether the requests are compressed with gzip. */
+  public boolean isCompression() {
+    return compression;
+  }
+
+  @DataBoundSetter
+  public void setCompression(boolean compression) {
+    this.compression = compression;
+  }
+
+  public OverflowPolicy getOverflowPolicy() {
+    return overflowPolicy != null ? overflowPolicy : OverflowPolicy.DROP;
+  }
+
+  @DataBoundSetter
+  public void setOverflowPolicy(@Nullable OverflowPolicy overflowPolicy) {
+    this.overflowPolicy = overflowPolicy;
+  }
+
+  /** Format of the span contexts in the environment of the processes launched by the steps. */
+  public Propagation getPropagation() {
+    return propagation != null ? propagation : Propagation.JAEGER;
+  }
+
+  @DataBoundSetter
+  public void setPropagation(@Nullable Propagation propagation) {
+    this.propagation = propagation;
+  }
+
+  @Override
+  public Tracer getTracerForName(String name) {
+    return new JaegerTracer.Builder(name)
+        .withReporter(shareReporter())
+        .withSampler(new ConstSampler(true))
+        .registerInjector(Builtin.TEXT_MAP, getPropagation().getCodec())
+        .registerExtractor(Builtin.TEXT_MAP, getPropagation().getCodec())
+        .build();
+  }
+
+  private synchronized Reporter shareReporter() {
+    Reporter shared = reporter != null ? reporter.share() : null;
+    if (shared == null) {
+      reporter =
+          new BatchingReporter(
+              "OTLP",
+              () -> new OtlpSender(endpoint, getTimeout(), compression),
+              getQueueSize(),
+              getBatchSize(),
+              1,
+              getFlushInterval(),
+              getOverflowPolicy());
+      shared = reporter.share();
+    }
+    return shared;
+  }
+
+  @Override
+  public Map<String, Number> getMetrics() {
+    synchronized (this) {
+      return BatchingReporter.metrics(reporter);
+    }
+  }
+
+  @Override
+  public Optional<TracerUiLink> getTraceLinkAction(Span span) {
+    return Optional.empty();
+  }
+
+  // posts a batch as one request
+  private static final class OtlpSender implements Sender {
+    private final URL url;
+    private final int timeout;
+    private final boolean compression;
+    private final OtlpJsonEncoder encoder = new OtlpJsonEncoder();
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream(16 * 1024);
+    private final List<JaegerSpan> spans = new ArrayList<>();
+
+    private OtlpSender(String endpoint, int timeout, boolean compression) {
+      try {
+        this.url = new URL(endpoint);
+      } catch (IOException e) {
+        throw new IllegalArgumentException("Invalid OTLP endpoint: " + endpoint, e);
+      }
+      this.timeout = timeout;
+      this.compression = compression;
+    }
+
+    @Override
+    public int append(JaegerSpan span) {
+      spans.add(span);
+      return 0;
+    }
+
+    @Override
+    public int flush() throws SenderException {
+      if (spans.isEmpty()) {
+        return 0;
+      }
+      int count = spans.size();
+      try {
+        post(encoder.encode(spans));
+      } catch (IOException e) {
+        throw new SenderException("Could not export the spans to " + url, e, count);
+      } finally {
+        spans.clear();
+      }
+      return count;
+    }
+
+    private void post(CharSequence json) throws IOException {
+      body.reset();
+      try (Writer writer =
+          new OutputStreamWriter(
+              compression ? new GZIPOutputStream(body) : body, StandardCharsets.UTF_8)) {
+        writer.append(json);
+      }
+
+      HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+      try {
+        connection.setConnectTimeout(timeout);
+        connection.setReadTimeout(timeout);
+        connection.setDoOutput(true);
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Content-Type", "application/json");
+        if (compression) {
+          connection.setRequestProperty("Content-Encoding", "gzip");
+        }
+        connection.setFixedLengthStreamingMode(body.size());
+        try (OutputStream out = connection.getOutputStream()) {
+          body.writeTo(out);
+        }
+        int status = connection.getResponseCode();
+        // reading the whole response lets the connection be reused
+        try (InputStream in =
+            status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+          if (in != null) {
+            byte[] discard = new byte[1024];
+            while (in.read(discard) >= 0) {
+              // the partial successes are not tracked
+            }
+          }
+        }
+        if (status / 100 != 2) {
+          throw new IOException("The collector responded with HTTP " + status);
+        }
+      } catch (IOException e) {
+        connection.disconnect();
+        throw e;
+      }
+    }
+
+    @Override
+    public int close() throws SenderException {
+      return flush();
+    }
+  }
+
+  @Extension
+  @Symbol("otlp")
+  public static final class DescriptorImpl extends TracerConfig.ConfigDescriptor {
+
+    public DescriptorImpl() {
+      super("OpenTelemetry (OTLP/HTTP)");
+    }
+
+    public FormValidation doCheckEndpoint(@QueryParameter String endpoint) {
+      return Utils.validateHTTPUrl(endpoint);
+    }
+
+    public FormValidation doCheckQueueSize(@QueryParameter String queueSize) {
+      return FormValidation.validatePositiveInteger(queueSize);
+    }
+
+    public FormValidation doCheckBatchSize(@QueryParameter String batchSize) {
+      return FormValidation.validatePositiveInteger(batchSize);
+    }
+
+    public FormValidation doCheckFlushInterval(@QueryParameter String flushInterval) {
+      return FormValidation.validatePositiveInteger(flushInterval);
+    }
+
+    public FormValidation doCheckTimeout(@QueryParameter String timeout) {
+      return FormValidation.validatePositiveInteger(timeout);
+    }
+  }
+}
@@ -0,0 +1,243 @@
+package com.amadeus.jenkins.opentracing.config.impl;
+
+import io.jaegertracing.internal.JaegerSpan;
+import io.jaegertracing.internal.JaegerSpanContext;
+import io.jaegertracing.internal.LogData;
+import io.jaegertracing.internal.Reference;
+import io.opentracing.References;
+import io.opentracing.tag.Tags;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes finished spans as an OTLP {@code ExportTraceServiceRequest} in the JSON encoding of the
+ * OpenTelemetry protocol: ids in hexadecimal, 64 bit integers as strings. Logs become events, the
+ * {@code follows_from} references become links.
+ *
+ * <p>An encoder reuses its buffer and is not thread-safe.
+ */
+final class OtlpJsonEncoder {
+  private static final String SCOPE_NAME = "jenkins-opentracing";
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  // OTLP span kinds
+  private static final int KIND_INTERNAL = 1;
+  private static final int KIND_SERVER = 2;
+  private static final int KIND_CLIENT = 3;
+  private static final int KIND_PRODUCER = 4;
+  private static final int KIND_CONSUMER = 5;
+  private static final int STATUS_ERROR = 2;
+
+  private final StringBuilder out = new StringBuilder(16 * 1024);
+
+  /** Encodes {@code spans} as one request, the returned buffer is valid until the next call. */
+  CharSequence encode(List<JaegerSpan> spans) {
+    out.setLength(0);
+    Map<String, List<JaegerSpan>> byService = new LinkedHashMap<>();
+    for (JaegerSpan span : spans) {
+      byService
+          .computeIfAbsent(span.getTracer().getServiceName(), s -> new ArrayList<>())
+          .add(span);
+    }
+    out.append("{\"resourceSpans\":[");
+    boolean first = true;
+    for (Map.Entry<String, List<JaegerSpan>> service : byService.entrySet()) {
+      if (!first) {
+        out.append(',');
+      }
+      first = false;
+      out.append("{\"resource\":{\"attributes\":[");
+      attribute("service.name", service.getKey());
+      out.append("]},\"scopeSpans\":[{\"scope\":{\"name\":\"").append(SCOPE_NAME);
+      out.append("\"},\"spans\":[");
+      boolean firstSpan = true;
+      for (JaegerSpan span : service.getValue()) {
+        if (!firstSpan) {
+          out.append(',');
+        }
+        firstSpan = false;
+        span(span);
+      }
+      out.append("]}]}");
+    }
+    out.append("]}");
+    return out;
+  }
+
+  private void span(JaegerSpan span) {
+    JaegerSpanContext context = span.context();
+    Map<String, Object> tags = span.getTags();
+    out.append("{\"traceId\":");
+    traceId(context);
+    out.append(",\"spanId\":");
+    spanId(context.getSpanId());
+    if (context.getParentId() != 0) {
+      out.append(",\"parentSpanId\":");
+      spanId(context.getParentId());
+    }
+    out.append(",\"name\":");
+    string(span.getOperationName());
+    out.append(",\"kind\":").append(kind(tags.get(Tags.SPAN_KIND.getKey())));
+    long startMicros = span.getStart();
+    out.append(",\"startTimeUnixNano\":\"").append(startMicros * 1000);
+    out.append("\",\"endTimeUnixNano\":\"").append((startMicros + span.getDuration()) * 1000);
+    out.append("\",\"attributes\":[");
+    attributes(tags);
+    out.append(']');
+
+    List<LogData> logs = span.getLogs();
+    if (logs != null && !logs.isEmpty()) {
+      out.append(",\"events\":[");
+      for (int i = 0; i < logs.size(); i++) {
+        if (i > 0) {
+          out.append(',');
+        }
+        event(logs.get(i));
+      }
+      out.append(']');
+    }
+
+    boolean firstLink = true;
+    for (Reference reference : span.getReferences()) {
+      if (!References.FOLLOWS_FROM.equals(reference.getType())) {
+        continue;
+      }
+      out.append(firstLink ? ",\"links\":[" : ",");
+      firstLink = false;
+      out.append("{\"traceId\":");
+      traceId(reference.getSpanContext());
+      out.append(",\"spanId\":");
+      spanId(reference.getSpanContext().getSpanId());
+      out.append('}');
+    }
+    if (!firstLink) {
+      out.append(']');
+    }
+
+    if (Boolean.TRUE.equals(tags.get(Tags.ERROR.getKey()))) {
+      out.append(",\"status\":{\"code\":").append(STATUS_ERROR).append('}');
+    }
+    out.append('}');
+  }
+
+  private void event(LogData log) {
+    Map<String, ?> fields = log.getFields();
+    String name = log.getMessage();
+    if (name == null && fields != null && fields.get("event") instanceof String) {
+      name = (String) fields.get("event");
+    }
+    out.append("{\"timeUnixNano\":\"").append(log.getTime() * 1000).append("\",\"name\":");
+    string(name != null ? name : "log");
+    out.append(",\"attributes\":[");
+    if (fields != null) {
+      attributes(fields);
+    }
+    out.append("]}");
+  }
+
+  private void attributes(Map<String, ?> values) {
+    boolean first = true;
+    for (Map.Entry<String, ?> entry : values.entrySet()) {
+      if (entry.getValue() == null) {
+        continue;
+      }
+      if (!first) {
+        out.append(',');
+      }
+      first = false;
+      attribute(entry.getKey(), entry.getValue());
+    }
+  }
+
+  private void attribute(String key, Object value) {
+    out.append("{\"key\":");
+    string(key);
+    out.append(",\"value\":{");
+    if (value instanceof Boolean) {
+      out.append("\"boolValue\":").append(value);
+    } else if (value instanceof Long
+        || value instanceof Integer
+        || value instanceof Short
+        || value instanceof Byte) {
+      out.append("\"intValue\":\"").append(value).append('"');
+    } else if (value instanceof Number) {
+      double number = ((Number) value).doubleValue();
+      out.append("\"doubleValue\":");
+      if (Double.isNaN(number) || Double.isInfinite(number)) {
+        // the JSON mapping of protobuf spells these out as strings
+        out.append('"').append(number).append('"');
+      } else {
+        out.append(number);
+      }
+    } else {
+      out.append("\"stringValue\":");
+      string(value.toString());
+    }
+    out.append("}}");
+  }
+
+  private static int kind(Object spanKind) {
+    if (Tags.SPAN_KIND_SERVER.equals(spanKind)) {
+      return KIND_SERVER;
+    } else if (Tags.SPAN_KIND_CLIENT.equals(spanKind)) {
+      return KIND_CLIENT;
+    } else if (Tags.SPAN_KIND_PRODUCER.equals(spanKind)) {
+      return KIND_PRODUCER;
+    } else if (Tags.SPAN_KIND_CONSUMER.equals(spanKind)) {
+      return KIND_CONSUMER;
+    }
+    return KIND_INTERNAL;
+  }
+
+  private void traceId(JaegerSpanContext context) {
+    out.append('"');
+    hex(context.getTraceIdHigh());
+    hex(context.getTraceIdLow());
+    out.append('"');
+  }
+
+  private void spanId(long id) {
+    out.append('"');
+    hex(id);
+    out.append('"');
+  }
+
+  private void hex(long value) {
+    for (int shift = 60; shift >= 0; shift -= 4) {
+      out.append(HEX[(int) (value >>> shift) & 0xf]);
+    }
+  }
+
+  private void string(String value) {
+    out.append('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+        case '"':
+          out.append("\\\"");
+          break;
+        case '\\':
+          out.append("\\\\");
+          break;
+        case '\n':
+          out.append("\\n");
+          break;
+        case '\r':
+          out.append("\\r");
+          break;
+        case '\t':
+          out.append("\\t");
+          break;
+        default:
+          if (c < 0x20) {
+            out.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xf]);
+          } else {
+            out.append(c);
+          }
+      }
+    }
+    out.append('"');
+  }
+}
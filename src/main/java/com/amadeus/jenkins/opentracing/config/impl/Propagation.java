@@ -0,0 +1,68 @@
+package com.amadeus.jenkins.opentracing.config.impl;
+
+import io.jaegertracing.internal.JaegerSpanContext;
+import io.jaegertracing.internal.propagation.TextMapCodec;
+import io.jaegertracing.spi.Codec;
+import io.opentracing.propagation.TextMap;
+import javax.annotation.Nullable;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Format of the span contexts handed to the processes launched by the steps in their environment.
+ * Contexts are extracted in any of the formats, starting with the configured one, so contexts
+ * recorded before the format was changed can still be continued.
+ */
+@Restricted(NoExternalUse.class)
+public enum Propagation {
+  /** {@code uber_trace_id} and one {@code uberctx_} variable per baggage item. */
+  JAEGER(
+      new TextMapCodec.Builder()
+          .withSpanContextKey("uber_trace_id")
+          .withBaggagePrefix("uberctx_")
+          .withUrlEncoding(true)
+          .build()),
+  /** {@code TRACEPARENT} and {@code BAGGAGE}, as read by the OpenTelemetry SDKs. */
+  W3C(new TraceContextCodec()),
+  /** The single {@code B3} header of Zipkin. */
+  B3(new B3Codec());
+
+  private final Codec<TextMap> codec;
+
+  Propagation(Codec<TextMap> codec) {
+    this.codec = new FallbackCodec(codec);
+  }
+
+  public Codec<TextMap> getCodec() {
+    return codec;
+  }
+
+  private static final class FallbackCodec implements Codec<TextMap> {
+    private final Codec<TextMap> delegate;
+
+    private FallbackCodec(Codec<TextMap> delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public void inject(JaegerSpanContext spanContext, TextMap carrier) {
+      delegate.inject(spanContext, carrier);
+    }
+
+    @Override
+    public @Nullable JaegerSpanContext extract(TextMap carrier) {
+      JaegerSpanContext context = delegate.extract(carrier);
+      if (context == null) {
+        for (Propagation other : values()) {
+          if (other.codec != this) {
+            context = ((FallbackCodec) other.codec).delegate.extract(carrier);
+            if (context != null) {
+              break;
+            }
+          }
+        }
+      }
+      return context;
+    }
+  }
+}
@@ -0,0 +1,268 @@
+package com.amadeus.jenkins.opentracing.config.impl;
+
+import hudson.Extension;
+import hudson.ExtensionPoint;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Describable;
+import hudson.model.Descriptor;
+import hudson.util.FormValidation;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.Nonnull;
+import org.jenkinsci.Symbol;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+
+/**
+ * Head based sampling of builds for {@link JaegerConfig}. The decision is taken once per build,
+ * when it enters the queue, and builds which are not sampled do not produce any spans at all.
+ */
+@Restricted(NoExternalUse.class)
+public abstract class SamplerConfig extends AbstractDescribableImpl<SamplerConfig>
+    implements ExtensionPoint, Describable<SamplerConfig> {
+
+  /**
+   * Decide whether a build is traced.
+   *
+   * @param jobName full name of the job
+   */
+  abstract boolean isSampled(String jobName);
+
+  /**
+   * Fraction of the completed builds traced by a backfill. Reading it must not take anything from
+   * the budget of the builds sampled while they run.
+   */
+  double getBackfillProbability() {
+    return 1;
+  }
+
+  /** Called for every reported span, lets samplers adapt to the volume. */
+  void spanReported() {
+    /* most samplers do not care */
+  }
+
+  private abstract static class SamplerDescriptor extends Descriptor<SamplerConfig> {
+    private String name;
+
+    SamplerDescriptor(String name) {
+      this.name = name;
+    }
+
+    @Nonnull
+    @Override
+    public String getDisplayName() {
+      return name;
+    }
+  }
+
+  private static FormValidation validatePositiveNumber(String value) {
+    try {
+      if (Double.parseDouble(value) > 0) {
+        return FormValidation.ok();
+      }
+    } catch (NumberFormatException e) {
+      /* handled below */
+    }
+    return FormValidation.error("Not a positive number");
+  }
+
+  /** Traces either all or no builds. */
+  public static final class ConstSamplerConfig extends SamplerConfig {
+    private final boolean sampled;
+
+    @DataBoundConstructor
+    public ConstSamplerConfig(boolean sampled) {
+      this.sampled = sampled;
+    }
+
+    public boolean isSampled() {
+      return sampled;
+    }
+
+    @Override
+    boolean isSampled(String jobName) {
+      return sampled;
+    }
+
+    @Override
+    double getBackfillProbability() {
+      return sampled ? 1 : 0;
+    }
+
+    @Extension(ordinal = 99)
+    @Symbol("const")
+    public static final class DescriptorImpl extends SamplerDescriptor {
+      public DescriptorImpl() {
+        super("Constant");
+      }
+    }
+  }
+
+  /** Traces a random fraction of the builds. */
+  public static final class ProbabilisticSamplerConfig extends SamplerConfig {
+    private final double probability;
+
+    @DataBoundConstructor
+    public ProbabilisticSamplerConfig(double probability) {
+      this.probability = probability;
+    }
+
+    public double getProbability() {
+      return probability;
+    }
+
+    @Override
+    boolean isSampled(String jobName) {
+      return ThreadLocalRandom.current().nextDouble() < probability;
+    }
+
+    @Override
+    double getBackfillProbability() {
+      return probability;
+    }
+
+    @Extension
+    @Symbol("probabilistic")
+    public static final class DescriptorImpl extends SamplerDescriptor {
+      public DescriptorImpl() {
+        super("Probabilistic");
+      }
+
+      public FormValidation doCheckProbability(@QueryParameter String probability) {
+        try {
+          double value = Double.parseDouble(probability);
+          if (value >= 0 && value <= 1) {
+            return FormValidation.ok();
+          }
+        } catch (NumberFormatException e) {
+          /* handled below */
+        }
+        return FormValidation.error("Has to be a number between 0 and 1");
+      }
+    }
+  }
+
+  /**
+   * Traces at most a given number of builds per second, bursts are smoothed by a token bucket.
+   * Backfills export all builds, their pace is bounded by the threads of the backfill.
+   */
+  public static final class RateLimitingSamplerConfig extends SamplerConfig {
+    private final double maxTracesPerSecond;
+    private transient double balance;
+    private transient long lastTick;
+
+    @DataBoundConstructor
+    public RateLimitingSamplerConfig(double maxTracesPerSecond) {
+      this.maxTracesPerSecond = maxTracesPerSecond;
+    }
+
+    public double getMaxTracesPerSecond() {
+      return maxTracesPerSecond;
+    }
+
+    @Override
+    synchronized boolean isSampled(String jobName) {
+      long now = System.nanoTime();
+      double maxBalance = Math.max(1, maxTracesPerSecond);
+      if (lastTick == 0) {
+        balance = maxBalance;
+      } else {
+        double elapsedSeconds = (now - lastTick) / (double) TimeUnit.SECONDS.toNanos(1);
+        balance = Math.min(maxBalance, balance + elapsedSeconds * maxTracesPerSecond);
+      }
+      lastTick = now;
+      if (balance < 1) {
+        return false;
+      }
+      balance -= 1;
+      return true;
+    }
+
+    @Extension
+    @Symbol("rateLimiting")
+    public static final class DescriptorImpl extends SamplerDescriptor {
+      public DescriptorImpl() {
+        super("Rate limiting");
+      }
+
+      public FormValidation doCheckMaxTracesPerSecond(@QueryParameter String maxTracesPerSecond) {
+        return validatePositiveNumber(maxTracesPerSecond);
+      }
+    }
+  }
+
+  /**
+   * Adjusts the probability of tracing a build so that the spans reported by Jenkins stay within a
+   * budget. As spans are reported while the sampled builds run, the adjustment lags behind and is
+   * dampened to at most a factor of two per window.
+   */
+  public static final class AdaptiveSamplerConfig extends SamplerConfig {
+    private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final double MIN_PROBABILITY = 0.001;
+
+    private final double spansPerSecond;
+    private transient LongAdder spans;
+    private transient double probability;
+    private transient long windowStart;
+
+    @DataBoundConstructor
+    public AdaptiveSamplerConfig(double spansPerSecond) {
+      this.spansPerSecond = spansPerSecond;
+      readResolve();
+    }
+
+    private Object readResolve() {
+      spans = new LongAdder();
+      probability = 1;
+      windowStart = System.nanoTime();
+      return this;
+    }
+
+    public double getSpansPerSecond() {
+      return spansPerSecond;
+    }
+
+    @Override
+    void spanReported() {
+      spans.increment();
+    }
+
+    @Override
+    boolean isSampled(String jobName) {
+      return ThreadLocalRandom.current().nextDouble() < getProbability(System.nanoTime());
+    }
+
+    @Override
+    synchronized double getBackfillProbability() {
+      // the current probability, the backfilled spans are not counted in the window
+      return probability;
+    }
+
+    synchronized double getProbability(long now) {
+      long elapsed = now - windowStart;
+      if (elapsed >= WINDOW_NANOS) {
+        double rate = spans.sumThenReset() * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+        double factor = rate > 0 ? spansPerSecond / rate : 2;
+        factor = Math.max(0.5, Math.min(2, factor));
+        probability = Math.max(MIN_PROBABILITY, Math.min(1, probability * factor));
+        windowStart = now;
+      }
+      return probability;
+    }
+
+    @Extension
+    @Symbol("adaptive")
+    public static final class DescriptorImpl extends SamplerDescriptor {
+      public DescriptorImpl() {
+        super("Adaptive");
+      }
+
+      public FormValidation doCheckSpansPerSecond(@QueryParameter String spansPerSecond) {
+        return validatePositiveNumber(spansPerSecond);
+      }
+    }
+  }
+}
@@ -0,0 +1,73 @@
+package com.amadeus.jenkins.opentracing.config.impl;
+
+import hudson.Extension;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.util.FormValidation;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import javax.annotation.Nonnull;
+import org.jenkinsci.Symbol;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+
+/**
+ * Applies a specific {@link SamplerConfig} to the jobs whose full name matches a regular
+ * expression, for example {@code folder/.*} for all jobs of a folder.
+ */
+@Restricted(NoExternalUse.class)
+public final class SamplingRule extends AbstractDescribableImpl<SamplingRule> {
+  private final String pattern;
+  private final SamplerConfig sampler;
+  private transient Pattern compiled;
+
+  @DataBoundConstructor
+  public SamplingRule(@Nonnull String pattern, @Nonnull SamplerConfig sampler) {
+    this.pattern = pattern;
+    this.sampler = sampler;
+    readResolve();
+  }
+
+  private Object readResolve() {
+    compiled = Pattern.compile(pattern);
+    return this;
+  }
+
+  public String getPattern() {
+    return pattern;
+  }
+
+  public SamplerConfig getSampler() {
+    return sampler;
+  }
+
+  boolean matches(String jobName) {
+    return compiled.matcher(jobName).matches();
+  }
+
+  @Extension
+  @Symbol("rule")
+  public static final class DescriptorImpl extends Descriptor<SamplingRule> {
+
+    @Nonnull
+    @Override
+    public String getDisplayName() {
+      return "Sampling rule";
+    }
+
+    public FormValidation doCheckPattern(@QueryParameter String pattern) {
+      FormValidation required = FormValidation.validateRequired(pattern);
+      if (!required.kind.equals(FormValidation.Kind.OK)) {
+        return required;
+      }
+      try {
+        Pattern.compile(pattern);
+      } catch (PatternSyntaxException e) {
+        return FormValidation.error("Invalid regular expression: %s", e.getDescription());
+      }
+      return FormValidation.ok();
+    }
+  }
+}
@@ -0,0 +1,232 @@
+package com.amadeus.jenkins.opentracing.config.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+import javax.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Appends lines to {@code spans.jsonl} in a directory through a {@link FileChannel}. Once the
+ * segment is larger than {@code maxBytes} or older than {@code maxAgeMillis}, it is renamed after
+ * the time of the rotation and compressed to {@code spans-<time>.jsonl.gz}. Only the {@code
+ * maxSegments} newest compressed segments are kept.
+ *
+ * <p>There is a single writer per directory, shared by the senders of all tracers of all
+ * configurations: the tracers retired by a reconfiguration still report their last spans while the
+ * new ones start. Each sender {@link #acquire() acquires} it and {@link #release() releases} it
+ * once closed, the file is closed with the last one.
+ */
+final class SegmentWriter {
+  private static Logger logger = LoggerFactory.getLogger(SegmentWriter.class);
+
+  static final String CURRENT = "spans.jsonl";
+  private static final String PREFIX = "spans-";
+  private static final String SUFFIX = ".jsonl";
+  private static final String GZIP_SUFFIX = SUFFIX + ".gz";
+  private static final DateTimeFormatter ROTATION_TIME =
+      DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss.SSS'Z'").withZone(ZoneOffset.UTC);
+
+  private static final Map<Path, SegmentWriter> writers = new ConcurrentHashMap<>();
+
+  private final Path directory;
+  private long maxBytes;
+  private long maxAgeMillis;
+  private int maxSegments;
+
+  private final ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+  private final CharsetEncoder encoder =
+      StandardCharsets.UTF_8
+          .newEncoder()
+          .onMalformedInput(CodingErrorAction.REPLACE)
+          .onUnmappableCharacter(CodingErrorAction.REPLACE);
+  private final AtomicLong bytesWritten = new AtomicLong();
+  private final AtomicLong rotations = new AtomicLong();
+  private @Nullable FileChannel channel;
+  private long size;
+  private long openedAt;
+  private int users;
+
+  private SegmentWriter(Path directory) {
+    this.directory = directory;
+  }
+
+  /** The writer of {@code directory}, which applies the given limits from now on. */
+  static SegmentWriter get(Path directory, long maxBytes, long maxAgeMillis, int maxSegments) {
+    SegmentWriter writer =
+        writers.computeIfAbsent(directory.toAbsolutePath().normalize(), SegmentWriter::new);
+    writer.configure(maxBytes, maxAgeMillis, maxSegments);
+    return writer;
+  }
+
+  private synchronized void configure(long maxBytes, long maxAgeMillis, int maxSegments) {
+    this.maxBytes = maxBytes;
+    this.maxAgeMillis = maxAgeMillis;
+    this.maxSegments = maxSegments;
+  }
+
+  synchronized void acquire() {
+    users++;
+  }
+
+  synchronized void release() throws IOException {
+    if (--users == 0 && channel != null) {
+      channel.close();
+      channel = null;
+    }
+  }
+
+  /** Appends {@code line} and a line feed, rotating the segment before if it is due. */
+  void write(CharSequence line) throws IOException {
+    Path rotated;
+    synchronized (this) {
+      rotated = rotateIfDue();
+      FileChannel out = open();
+      encoder.reset();
+      CharBuffer chars = CharBuffer.wrap(line);
+      CoderResult result;
+      do {
+        result = encoder.encode(chars, buffer, true);
+        if (result.isOverflow()) {
+          drain(out);
+        }
+      } while (result.isOverflow());
+      while (encoder.flush(buffer).isOverflow()) {
+        drain(out);
+      }
+      if (!buffer.hasRemaining()) {
+        drain(out);
+      }
+      buffer.put((byte) '\n');
+      drain(out);
+    }
+    // compressing does not hold up the other senders
+    if (rotated != null) {
+      compress(rotated);
+    }
+  }
+
+  private FileChannel open() throws IOException {
+    if (channel == null) {
+      Files.createDirectories(directory);
+      channel =
+          FileChannel.open(
+              directory.resolve(CURRENT),
+              StandardOpenOption.CREATE,
+              StandardOpenOption.WRITE,
+              StandardOpenOption.APPEND);
+      size = channel.size();
+      openedAt = System.currentTimeMillis();
+    }
+    return channel;
+  }
+
+  private void drain(FileChannel out) throws IOException {
+    buffer.flip();
+    try {
+      while (buffer.hasRemaining()) {
+        int written = out.write(buffer);
+        size += written;
+        bytesWritten.addAndGet(written);
+      }
+    } finally {
+      buffer.clear();
+    }
+  }
+
+  private @Nullable Path rotateIfDue() throws IOException {
+    if (channel == null) {
+      return null;
+    }
+    long now = System.currentTimeMillis();
+    if (size < maxBytes && now - openedAt < maxAgeMillis) {
+      return null;
+    }
+    channel.close();
+    channel = null;
+    // several rotations within a millisecond take the following free names
+    Path rotated;
+    long time = now;
+    do {
+      rotated =
+          directory.resolve(PREFIX + ROTATION_TIME.format(Instant.ofEpochMilli(time++)) + SUFFIX);
+    } while (Files.exists(rotated) || Files.exists(compressed(rotated)));
+    Files.move(directory.resolve(CURRENT), rotated);
+    rotations.incrementAndGet();
+    return rotated;
+  }
+
+  private void compress(Path segment) {
+    Path compressed = compressed(segment);
+    Path temporary = segment.resolveSibling(segment.getFileName() + ".gz.tmp");
+    try {
+      try (InputStream in = Files.newInputStream(segment);
+          OutputStream out = new GZIPOutputStream(Files.newOutputStream(temporary), 64 * 1024)) {
+        byte[] bytes = new byte[64 * 1024];
+        int read;
+        while ((read = in.read(bytes)) >= 0) {
+          out.write(bytes, 0, read);
+        }
+      }
+      Files.move(temporary, compressed);
+      Files.delete(segment);
+    } catch (IOException e) {
+      logger.warn("Could not compress {}", segment, e);
+      return;
+    }
+    prune();
+  }
+
+  private static Path compressed(Path segment) {
+    return segment.resolveSibling(segment.getFileName() + ".gz");
+  }
+
+  private synchronized void prune() {
+    List<Path> segments = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + GZIP_SUFFIX)) {
+      stream.forEach(segments::add);
+    } catch (IOException e) {
+      logger.warn("Could not list the segments in {}", directory, e);
+      return;
+    }
+    // the time in the names sorts them from the oldest
+    Collections.sort(segments);
+    for (int i = 0; i < segments.size() - maxSegments; i++) {
+      try {
+        Files.deleteIfExists(segments.get(i));
+      } catch (IOException e) {
+        logger.warn("Could not delete {}", segments.get(i), e);
+      }
+    }
+  }
+
+  long getBytesWritten() {
+    return bytesWritten.get();
+  }
+
+  long getRotations() {
+    return rotations.get();
+  }
+}
@@ -0,0 +1,159 @@
+package com.amadeus.jenkins.opentracing.config.impl;
+
+import io.jaegertracing.internal.JaegerSpanContext;
+import io.jaegertracing.spi.Codec;
+import io.opentracing.propagation.TextMap;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.HashMap;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * Codec of the <a href="https://www.w3.org/TR/trace-context/">W3C Trace Context</a> in environment
+ * variables, as specified by OpenTelemetry: {@code TRACEPARENT} holds the ids and {@code BAGGAGE}
+ * the baggage items. The context of a span is written into a single {@code char[]}, the only other
+ * allocation is the resulting string.
+ *
+ * <p>{@code TRACESTATE} is accepted but not propagated, Jaeger contexts cannot carry vendor
+ * entries.
+ */
+final class TraceContextCodec implements Codec<TextMap> {
+  static final String TRACEPARENT = "TRACEPARENT";
+  static final String BAGGAGE = "BAGGAGE";
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+  // 00-<trace id>-<span id>-<flags>
+  private static final int LENGTH = 2 + 1 + 32 + 1 + 16 + 1 + 2;
+  private static final int TRACE_ID = 3;
+  private static final int SPAN_ID = TRACE_ID + 32 + 1;
+  private static final int FLAGS = SPAN_ID + 16 + 1;
+  private static final byte SAMPLED = 1;
+
+  @Override
+  public void inject(JaegerSpanContext spanContext, TextMap carrier) {
+    char[] value = new char[LENGTH];
+    value[0] = '0';
+    value[1] = '0';
+    value[TRACE_ID - 1] = '-';
+    hex(spanContext.getTraceIdHigh(), value, TRACE_ID);
+    hex(spanContext.getTraceIdLow(), value, TRACE_ID + 16);
+    value[SPAN_ID - 1] = '-';
+    hex(spanContext.getSpanId(), value, SPAN_ID);
+    value[FLAGS - 1] = '-';
+    value[FLAGS] = '0';
+    value[FLAGS + 1] = spanContext.isSampled() ? '1' : '0';
+    carrier.put(TRACEPARENT, new String(value));
+
+    StringBuilder baggage = null;
+    for (Map.Entry<String, String> item : spanContext.baggageItems()) {
+      baggage = baggage == null ? new StringBuilder() : baggage.append(',');
+      baggage.append(item.getKey()).append('=').append(encode(item.getValue()));
+    }
+    if (baggage != null) {
+      carrier.put(BAGGAGE, baggage.toString());
+    }
+  }
+
+  @Override
+  public @Nullable JaegerSpanContext extract(TextMap carrier) {
+    JaegerSpanContext context = null;
+    String baggage = null;
+    for (Map.Entry<String, String> entry : carrier) {
+      if (TRACEPARENT.equalsIgnoreCase(entry.getKey())) {
+        context = parse(entry.getValue());
+      } else if (BAGGAGE.equalsIgnoreCase(entry.getKey())) {
+        baggage = entry.getValue();
+      }
+    }
+    if (context == null || baggage == null || baggage.isEmpty()) {
+      return context;
+    }
+    Map<String, String> items = new HashMap<>();
+    for (String member : baggage.split(",")) {
+      // properties after ';' are not supported by Jaeger contexts
+      int end = member.indexOf(';');
+      String item = end < 0 ? member : member.substring(0, end);
+      int separator = item.indexOf('=');
+      if (separator > 0) {
+        String key = item.substring(0, separator).trim();
+        items.put(key, decode(item.substring(separator + 1).trim()));
+      }
+    }
+    return context.withBaggage(items);
+  }
+
+  private static @Nullable JaegerSpanContext parse(@Nullable String value) {
+    if (value == null || value.length() < LENGTH) {
+      return null;
+    }
+    // version ff is invalid, later versions may append fields
+    if (!isHex(value, 0, 2) || value.startsWith("ff")) {
+      return null;
+    }
+    if (value.length() > LENGTH && (value.startsWith("00") || value.charAt(LENGTH) != '-')) {
+      return null;
+    }
+    if (value.charAt(TRACE_ID - 1) != '-'
+        || value.charAt(SPAN_ID - 1) != '-'
+        || value.charAt(FLAGS - 1) != '-'
+        || !isHex(value, TRACE_ID, SPAN_ID - 1)
+        || !isHex(value, SPAN_ID, FLAGS - 1)
+        || !isHex(value, FLAGS, LENGTH)) {
+      return null;
+    }
+    long traceIdHigh = parseHex(value, TRACE_ID);
+    long traceIdLow = parseHex(value, TRACE_ID + 16);
+    long spanId = parseHex(value, SPAN_ID);
+    if (traceIdHigh == 0 && traceIdLow == 0 || spanId == 0) {
+      return null;
+    }
+    byte flags = (byte) (Character.digit(value.charAt(FLAGS + 1), 16) & SAMPLED);
+    return new JaegerSpanContext(traceIdHigh, traceIdLow, spanId, 0, flags);
+  }
+
+  /** Writes the 16 hexadecimal digits of {@code value} to {@code out} from {@code offset}. */
+  static void hex(long value, char[] out, int offset) {
+    for (int i = 15; i >= 0; i--) {
+      out[offset + i] = HEX[(int) value & 0xf];
+      value >>>= 4;
+    }
+  }
+
+  static boolean isHex(CharSequence value, int from, int to) {
+    for (int i = from; i < to; i++) {
+      char c = value.charAt(i);
+      if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Parses the 16 hexadecimal digits of {@code value} from {@code offset}, already validated. */
+  static long parseHex(CharSequence value, int offset) {
+    long result = 0;
+    for (int i = offset; i < offset + 16; i++) {
+      result = result << 4 | Character.digit(value.charAt(i), 16);
+    }
+    return result;
+  }
+
+  private static String encode(String value) {
+    try {
+      // spaces must be percent-encoded in baggage values
+      return URLEncoder.encode(value, "UTF-8").replace("+", "%20");
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static String decode(String value) {
+    try {
+      return URLDecoder.decode(value.replace("+", "%2B"), "UTF-8");
+    } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+      return value;
+    }
+  }
+}
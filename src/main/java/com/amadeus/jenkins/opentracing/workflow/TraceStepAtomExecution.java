@@ -12,7 +12,7 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import org.jenkinsci.plugins.workflow.graph.FlowNode;
 import org.jenkinsci.plugins.workflow.steps.StepContext;
-import org.jenkinsci.plugins.workflow.steps.SynchronousStepExecution;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
 import org.kohsuke.accmod.Restricted;
 import org.kohsuke.accmod.restrictions.NoExternalUse;
 
@@ -20,10 +20,13 @@ import org.kohsuke.accmod.restrictions.NoExternalUse;
  * Any configuration parameters passed are added to the {@link Span} of the currently active {@link
  * org.jenkinsci.plugins.workflow.steps.Step}. It then also return a {@link WorkflowSpan} that can
  * be used to further configure the enclosing span.
+ *
+ * <p>The few tags are set inline when the step starts, on the CPS VM thread, instead of handing
+ * them over to another thread like a {@link
+ * org.jenkinsci.plugins.workflow.steps.SynchronousStepExecution} would.
  */
 @Restricted(NoExternalUse.class)
-final class TraceStepAtomExecution extends SynchronousStepExecution<WorkflowSpan>
-    implements WorkflowUtils.SpanInformation {
+final class TraceStepAtomExecution extends StepExecution implements WorkflowUtils.SpanInformation {
 
   private static final long serialVersionUID = 2205795792072338316L;
 
@@ -36,7 +39,12 @@ final class TraceStepAtomExecution extends SynchronousStepExecution<WorkflowSpan
   }
 
   @Override
-  protected @Nullable WorkflowSpan run() throws IOException, InterruptedException {
+  public boolean start() throws IOException, InterruptedException {
+    getContext().onSuccess(run());
+    return true;
+  }
+
+  private @Nullable WorkflowSpan run() throws IOException, InterruptedException {
     final StepContext context = getContext();
     final OTFlowExecutionListener flowListener =
         Utils.tryLookupSingleton(OTFlowExecutionListener.class);
@@ -51,14 +59,11 @@ final class TraceStepAtomExecution extends SynchronousStepExecution<WorkflowSpan
     if (graphListener == null) {
       return null;
     }
-    Optional<FlowNode> enclosing = Utils.getEnclosing(node);
+    Optional<Span> span = graphListener.getEnclosingSpan(node);
 
-    if (enclosing.isPresent()) {
-      Span span = graphListener.onNewStartOrAtomNode(enclosing.get());
-      if (span != null) {
-        WorkflowUtils.addInformation(span, this);
-        return new WorkflowSpan(span, context.get(TaskListener.class));
-      }
+    if (span.isPresent()) {
+      WorkflowUtils.addInformation(span.get(), this);
+      return new WorkflowSpan(span.get(), context.get(TaskListener.class));
     }
     return null;
   }
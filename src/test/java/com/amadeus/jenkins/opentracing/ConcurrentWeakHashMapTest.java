@@ -0,0 +1,72 @@
+package com.amadeus.jenkins.opentracing;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Test;
+
+public class ConcurrentWeakHashMapTest {
+
+  @Test
+  public void testBasicOperations() {
+    Map<Object, String> map = new ConcurrentWeakHashMap<>();
+    Object key = new Object();
+
+    assertThat(map.put(key, "foo")).isNull();
+    assertThat(map.put(key, "bar")).isEqualTo("foo");
+    assertThat(map.get(key)).isEqualTo("bar");
+    assertThat(map.get(null)).isNull();
+    assertThat(map).hasSize(1).containsEntry(key, "bar");
+
+    assertThat(map.remove(key)).isEqualTo("bar");
+    assertThat(map).isEmpty();
+  }
+
+  @Test
+  public void testKeysAreComparedByEquality() {
+    Map<Long, String> map = new ConcurrentWeakHashMap<>();
+    Long key = 123456789L;
+
+    map.put(key, "foo");
+    assertThat(map.get(Long.valueOf(123456789L))).isEqualTo("foo");
+  }
+
+  @Test
+  public void testEntriesOfCollectedKeysAreExpunged() throws Exception {
+    Map<Object, String> map = new ConcurrentWeakHashMap<>();
+    map.put(new Object(), "foo");
+
+    for (int i = 0; i < 100 && !map.isEmpty(); i++) {
+      System.gc();
+      Thread.sleep(10);
+    }
+    assertThat(map).isEmpty();
+  }
+
+  @Test
+  public void testConcurrentComputeIfAbsentCreatesSingleValue() throws Exception {
+    Map<String, Object> map = new ConcurrentWeakHashMap<>();
+    String key = "key";
+    Callable<Object> compute = () -> map.computeIfAbsent(key, k -> new Object());
+
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<Object>> results = new ArrayList<>();
+      for (int i = 0; i < 100; i++) {
+        results.add(executor.submit(compute));
+      }
+      Object expected = results.get(0).get();
+      for (Future<Object> result : results) {
+        assertThat(result.get()).isSameAs(expected);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,76 @@
+package com.amadeus.jenkins.opentracing;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.jenkinsci.plugins.workflow.graph.AtomNode;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.junit.Test;
+
+public class FlowNodeMapTest {
+
+  @Test
+  public void testParseId() {
+    assertThat(FlowNodeMap.parseId("0")).isEqualTo(0);
+    assertThat(FlowNodeMap.parseId("1234")).isEqualTo(1234);
+    assertThat(FlowNodeMap.parseId("")).isEqualTo(-1);
+    assertThat(FlowNodeMap.parseId("01")).isEqualTo(-1);
+    assertThat(FlowNodeMap.parseId("12a")).isEqualTo(-1);
+    assertThat(FlowNodeMap.parseId("1234567890")).isEqualTo(-1);
+  }
+
+  @Test
+  public void testBasicOperations() {
+    Map<FlowNode, String> map = new FlowNodeMap<>();
+    FlowNode node = node("2");
+    FlowNode other = node("foo");
+
+    assertThat(map.put(node, "a")).isNull();
+    assertThat(map.put(node, "b")).isEqualTo("a");
+    assertThat(map.put(other, "c")).isNull();
+    assertThat(map).hasSize(2).containsEntry(node, "b").containsEntry(other, "c");
+    assertThat(map.get(node("3"))).isNull();
+    assertThat(map.get("2")).isNull();
+
+    assertThat(map.remove(node)).isEqualTo("b");
+    assertThat(map.remove(other)).isEqualTo("c");
+    assertThat(map).isEmpty();
+  }
+
+  @Test
+  public void testLongLivedEntriesSurviveCompaction() {
+    Map<FlowNode, Integer> map = new FlowNodeMap<>();
+    FlowNode outer = node("2");
+    map.put(outer, 2);
+
+    List<FlowNode> alive = new ArrayList<>();
+    for (int id = 3; id < 100_000; id++) {
+      FlowNode node = node(Integer.toString(id));
+      map.put(node, id);
+      if (id % 10_000 == 0) {
+        alive.add(node);
+      } else {
+        map.remove(node);
+      }
+    }
+
+    assertThat(map).hasSize(alive.size() + 1).containsEntry(outer, 2);
+    for (FlowNode node : alive) {
+      assertThat(map.get(node)).isEqualTo(Integer.parseInt(node.getId()));
+    }
+    map.clear();
+    assertThat(map).isEmpty();
+    assertThat(map.get(outer)).isNull();
+  }
+
+  private static FlowNode node(String id) {
+    return new AtomNode(null, id) {
+      @Override
+      protected String getTypeDisplayName() {
+        return "test";
+      }
+    };
+  }
+}
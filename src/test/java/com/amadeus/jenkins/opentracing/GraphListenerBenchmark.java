@@ -0,0 +1,186 @@
+package com.amadeus.jenkins.opentracing;
+
+import com.amadeus.jenkins.opentracing.config.OTConfig;
+import com.amadeus.jenkins.opentracing.config.TracerConfig;
+import com.amadeus.jenkins.opentracing.config.TracerUiLink;
+import com.amadeus.jenkins.opentracing.config.impl.NullConfig;
+import com.amadeus.jenkins.opentracing.test.fixtures.MockTracerConf;
+import hudson.ExtensionList;
+import io.opentracing.Span;
+import io.opentracing.Tracer;
+import io.opentracing.mock.MockTracer;
+import io.opentracing.mock.MockTracer.Propagator;
+import io.opentracing.noop.NoopTracerFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import jenkins.benchmark.jmh.JmhBenchmarkState;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.flow.FlowExecution;
+import org.jenkinsci.plugins.workflow.graph.AtomNode;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.jenkinsci.plugins.workflow.graphanalysis.DepthFirstScanner;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Replays the graph of a real Pipeline into a fresh {@link OTGraphListener}, the work done on the
+ * CPS VM thread while a Pipeline runs. With the {@code disabled} tracer this measures what the
+ * plugin costs a controller on which tracing is turned off.
+ */
+@JmhBenchmark
+public class GraphListenerBenchmark {
+
+  public static class PipelineState extends JmhBenchmarkState {
+    @Param({"linear", "wide", "deep"})
+    public String shape;
+
+    @Param({"disabled", "noop", "mock"})
+    public String tracer;
+
+    List<FlowNode> nodes;
+    FlowExecution execution;
+    Span flowParentSpan;
+    OTGraphListener listener;
+    private MockTracer mockTracer;
+
+    @Override
+    public void setup() throws Exception {
+      OTConfig config = ExtensionList.lookupSingleton(OTConfig.class);
+      TracerConfig tracerConfig;
+      if ("mock".equals(tracer)) {
+        mockTracer = new MockTracer(Propagator.TEXT_MAP);
+        tracerConfig = new MockTracerConf(mockTracer);
+      } else if ("noop".equals(tracer)) {
+        tracerConfig = new NoopTracerConf();
+      } else {
+        tracerConfig = new NullConfig();
+      }
+      config.setTracer(tracerConfig);
+
+      WorkflowJob job = getJenkins().createProject(WorkflowJob.class, "p");
+      job.setDefinition(new CpsFlowDefinition(script(shape), true));
+      WorkflowRun run = job.scheduleBuild2(0).get();
+
+      execution = run.getExecution();
+      nodes = new ArrayList<>(new DepthFirstScanner().allNodes(execution));
+      // ids are assigned in the order the nodes are created
+      nodes.sort(Comparator.comparingInt(n -> Integer.parseInt(n.getId())));
+      flowParentSpan = config.getTracerForName("Jenkins Jobs").buildSpan("Job").start();
+    }
+
+    OTGraphListener newListener() {
+      listener = new OTGraphListener(flowParentSpan, null, Collections.emptyMap());
+      return listener;
+    }
+
+    @TearDown(Level.Invocation)
+    public void releaseListener() {
+      ExtensionList.lookupSingleton(SpanStorage.class).release(listener);
+      if (mockTracer != null) {
+        mockTracer.reset();
+      }
+    }
+  }
+
+  @Benchmark
+  public OTGraphListener onNewHead(PipelineState state) {
+    OTGraphListener listener = state.newListener();
+    for (FlowNode node : state.nodes) {
+      listener.onNewHead(node);
+    }
+    return listener;
+  }
+
+  /** Like {@link #onNewHead}, with every atom step requesting its environment. */
+  @Benchmark
+  public OTGraphListener onNewHeadWithEnvironment(PipelineState state) {
+    OTGraphListener listener = state.newListener();
+    for (FlowNode node : state.nodes) {
+      listener.onNewHead(node);
+      if (node instanceof AtomNode) {
+        Span span = listener.onNewStartOrAtomNode(node);
+        if (span != null) {
+          Map<String, String> envs = new HashMap<>();
+          listener.inject(span, envs);
+        }
+      }
+    }
+    return listener;
+  }
+
+  /** The extension points invoked for every node, whether or not tracing is enabled. */
+  @Benchmark
+  public int extensionHooks(PipelineState state) {
+    WorkaroundGraphListener graphListener =
+        ExtensionList.lookupSingleton(WorkaroundGraphListener.class);
+    OTFlowExecutionListener flowExecutionListener =
+        ExtensionList.lookupSingleton(OTFlowExecutionListener.class);
+    int listeners = 0;
+    for (FlowNode node : state.nodes) {
+      graphListener.onNewHead(node);
+      if (flowExecutionListener.getListener(state.execution) != null) {
+        listeners++;
+      }
+    }
+    return listeners;
+  }
+
+  // enabled, but without any cost on the tracer side
+  private static final class NoopTracerConf extends TracerConfig {
+    @Override
+    public Tracer getTracerForName(String name) {
+      return NoopTracerFactory.create();
+    }
+
+    @Override
+    public Optional<TracerUiLink> getTraceLinkAction(Span span) {
+      return Optional.empty();
+    }
+  }
+
+  private static String script(String shape) {
+    StringBuilder script = new StringBuilder();
+    switch (shape) {
+      case "linear":
+        script.append("stage('linear') {\n");
+        for (int i = 0; i < 500; i++) {
+          script.append("  echo 'step ").append(i).append("'\n");
+        }
+        script.append("}\n");
+        break;
+      case "wide":
+        script.append("def branches = [:]\n");
+        script.append("for (int i = 0; i < 50; i++) {\n");
+        script.append("  branches[\"branch${i}\"] = {\n");
+        script.append("    for (int j = 0; j < 10; j++) {\n");
+        script.append("      echo \"step ${j}\"\n");
+        script.append("    }\n");
+        script.append("  }\n");
+        script.append("}\n");
+        script.append("parallel branches\n");
+        break;
+      case "deep":
+        for (int i = 0; i < 50; i++) {
+          script.append("stage('level ").append(i).append("') {\n");
+          script.append("echo 'step ").append(i).append("'\n");
+        }
+        for (int i = 0; i < 50; i++) {
+          script.append("}\n");
+        }
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown shape " + shape);
+    }
+    return script.toString();
+  }
+}
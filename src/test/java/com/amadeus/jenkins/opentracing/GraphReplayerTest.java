@@ -0,0 +1,103 @@
+package com.amadeus.jenkins.opentracing;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.amadeus.jenkins.opentracing.config.OTConfig;
+import com.amadeus.jenkins.opentracing.config.impl.NullConfig;
+import com.amadeus.jenkins.opentracing.test.TestResourceLoader;
+import com.amadeus.jenkins.opentracing.test.fixtures.MockTracerConf;
+import com.amadeus.jenkins.opentracing.test.fixtures.WaitStep;
+import hudson.ExtensionList;
+import io.opentracing.mock.MockSpan;
+import io.opentracing.mock.MockTracer;
+import io.opentracing.mock.MockTracer.Propagator;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.flow.FlowExecution;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.jenkinsci.plugins.workflow.graphanalysis.DepthFirstScanner;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestExtension;
+
+public class GraphReplayerTest {
+  @Rule public JenkinsRule j = new JenkinsRule();
+  @Rule public TestResourceLoader script = new TestResourceLoader("groovy");
+
+  @TestExtension public static final StepDescriptor waitStep = WaitStep.extension;
+
+  @Test
+  public void testReplayAfterReconfiguration() throws Exception {
+    OTConfig config = ExtensionList.lookupSingleton(OTConfig.class);
+    config.setTracer(new MockTracerConf(new MockTracer(Propagator.TEXT_MAP)));
+    WorkflowJob p = j.jenkins.createProject(WorkflowJob.class, "p");
+    p.setDefinition(new CpsFlowDefinition(script.read(), true));
+    WorkflowRun b = p.scheduleBuild2(0).waitForStart();
+    j.waitForMessage("waiting", b);
+
+    // disabling the tracing flushes the spans of the running build
+    config.setTracer(new NullConfig());
+    long reconfiguredMicros = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+    MockTracer tracer = new MockTracer(Propagator.TEXT_MAP);
+    config.setTracer(new MockTracerConf(tracer));
+    WaitStep.release("reconfiguration");
+    j.assertBuildStatusSuccess(j.waitForCompletion(b));
+
+    // the end of the stage may only be processed once the replay caught up
+    MockSpan stage = awaitStage(tracer, "outer");
+    List<MockSpan> spans = tracer.finishedSpans();
+    MockSpan run = null;
+    int echos = 0;
+    for (MockSpan span : spans) {
+      assertThat(span.context().traceId()).isEqualTo(stage.context().traceId());
+      if (span.operationName().startsWith("Job ")) {
+        run = span;
+      } else if (span.operationName().equals("echo")) {
+        echos++;
+      }
+    }
+    assertThat(run).isNotNull();
+    assertThat(run.tags()).containsEntry(GraphReplayer.REPLAYED_TAG, true);
+    // the replayed spans keep the timing of the nodes
+    assertThat(stage.startMicros()).isLessThan(reconfiguredMicros);
+    assertThat(run.startMicros()).isLessThanOrEqualTo(stage.startMicros());
+    assertThat(echos).isEqualTo(2);
+  }
+
+  @Test
+  public void testNodesAreLoadedInCreationOrder() throws Exception {
+    WorkflowJob p = j.jenkins.createProject(WorkflowJob.class, "p");
+    p.setDefinition(new CpsFlowDefinition(script.read(), true));
+    FlowExecution execution = j.buildAndAssertSuccess(p).getExecution();
+    List<FlowNode> expected = new ArrayList<>();
+    DepthFirstScanner scanner = new DepthFirstScanner();
+    scanner.setup(execution.getCurrentHeads());
+    scanner.forEach(expected::add);
+    expected.sort(GraphReplayer.CREATION_ORDER);
+
+    GraphReplayer.NodeSequence nodes = new GraphReplayer.NodeSequence(execution);
+
+    assertThat(nodes).containsExactlyElementsOf(expected);
+    assertThat(nodes.contains(expected.get(expected.size() - 1).getId())).isTrue();
+    assertThat(nodes.contains(Integer.toString(expected.size() + 2))).isFalse();
+  }
+
+  private static MockSpan awaitStage(MockTracer tracer, String name) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+    while (System.nanoTime() < deadline) {
+      for (MockSpan span : tracer.finishedSpans()) {
+        if (name.equals(span.tags().get("stage.name"))) {
+          return span;
+        }
+      }
+      Thread.sleep(100);
+    }
+    throw new AssertionError("Stage " + name + " was not replayed");
+  }
+}
@@ -0,0 +1,54 @@
+package com.amadeus.jenkins.opentracing;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+
+public class LongMapTest {
+
+  @Test
+  public void testBasicOperations() {
+    LongMap<String> map = new LongMap<>();
+
+    assertThat(map.put(2L, "a")).isNull();
+    assertThat(map.put(2L, "b")).isEqualTo("a");
+    assertThat(map.put(-5L, "c")).isNull();
+    assertThat(map).hasSize(2).containsEntry(2L, "b").containsEntry(-5L, "c");
+    assertThat(map.get(3L)).isNull();
+    assertThat(map.get("2")).isNull();
+
+    assertThat(map.remove(2L, "a")).isFalse();
+    assertThat(map.remove(2L)).isEqualTo("b");
+    assertThat(map.remove(-5L, "c")).isTrue();
+    assertThat(map).isEmpty();
+  }
+
+  @Test
+  public void testMatchesHashMap() {
+    LongMap<String> map = new LongMap<>();
+    Map<Long, String> expected = new HashMap<>();
+    Random random = new Random(42);
+
+    for (int i = 0; i < 200_000; i++) {
+      // mostly sequential ids, like the queue hands them out
+      long key = i / 2 + random.nextInt(1000);
+      if (random.nextBoolean()) {
+        String value = Long.toString(key);
+        assertThat(map.put(key, value)).isEqualTo(expected.put(key, value));
+      } else {
+        assertThat(map.remove(key)).isEqualTo(expected.remove(key));
+      }
+    }
+
+    assertThat(map).isEqualTo(expected);
+    for (Long key : expected.keySet()) {
+      assertThat(map.get(key.longValue())).isEqualTo(key.toString());
+    }
+    map.clear();
+    assertThat(map).isEmpty();
+    assertThat(map.get(expected.keySet().iterator().next())).isNull();
+  }
+}
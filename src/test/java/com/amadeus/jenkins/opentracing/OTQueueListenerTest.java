@@ -0,0 +1,73 @@
+package com.amadeus.jenkins.opentracing;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.amadeus.jenkins.opentracing.OTQueueListener.Phase;
+import com.amadeus.jenkins.opentracing.OTQueueListener.QueuedItem;
+import io.opentracing.Span;
+import io.opentracing.mock.MockSpan;
+import io.opentracing.mock.MockTracer;
+import io.opentracing.mock.MockTracer.Propagator;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.junit.Test;
+
+public class OTQueueListenerTest {
+  private final MockTracer tracer = new MockTracer(Propagator.TEXT_MAP);
+
+  @Test
+  public void testTransitions() {
+    Span queue = tracer.buildSpan("Queue").start();
+    QueuedItem item = new QueuedItem(1, queue);
+
+    item.enter(Phase.WAITING, tracer.buildSpan("Waiting"), false);
+    // leaving waiting was missed
+    item.enter(Phase.BLOCKED, tracer.buildSpan("Blocked"), false);
+    item.leave(Phase.BUILDABLE);
+    item.leave(Phase.BLOCKED);
+    item.enter(Phase.BUILDABLE, tracer.buildSpan("Buildable"), false);
+    assertThat(item.hasLeft()).isFalse();
+    item.left(true);
+    item.left(true);
+
+    assertThat(item.hasLeft()).isTrue();
+    assertThat(operationNames()).containsExactly("Waiting", "Blocked", "Buildable", "Queue");
+    assertThat(tracer.finishedSpans().get(3).tags()).containsEntry("cancelled", true);
+  }
+
+  @Test
+  public void testCoalescing() {
+    Span queue = tracer.buildSpan("Queue").start();
+    QueuedItem item = new QueuedItem(1, queue);
+
+    item.enter(Phase.WAITING, tracer.buildSpan("Waiting"), true);
+    assertThat(item.resume(Phase.BLOCKED)).isFalse();
+    item.leave(Phase.WAITING);
+    assertThat(item.resume(Phase.BLOCKED)).isFalse();
+    item.enter(Phase.BLOCKED, tracer.buildSpan("Blocked"), true);
+    assertThat(item.resume(Phase.BUILDABLE)).isFalse();
+    for (int i = 0; i < 100; i++) {
+      item.leave(Phase.BLOCKED);
+      assertThat(item.resume(Phase.BUILDABLE)).isTrue();
+      item.leave(Phase.BUILDABLE);
+      assertThat(item.resume(Phase.BLOCKED)).isTrue();
+    }
+    item.leave(Phase.BLOCKED);
+    item.left(false);
+
+    assertThat(operationNames()).containsExactly("Waiting", "Blocked", "Queue");
+    MockSpan coalesced = tracer.finishedSpans().get(1);
+    assertThat(coalesced.logEntries()).hasSize(200);
+    assertThat(coalesced.tags())
+        .containsEntry("jenkins.queue.blocked.entries", 101)
+        .containsEntry("jenkins.queue.buildable.entries", 100)
+        .containsKeys("jenkins.queue.blocked.millis", "jenkins.queue.buildable.millis")
+        .doesNotContainKey("jenkins.queue.waiting.entries");
+  }
+
+  private List<String> operationNames() {
+    return tracer.finishedSpans().stream()
+        .map(MockSpan::operationName)
+        .collect(Collectors.toList());
+  }
+}
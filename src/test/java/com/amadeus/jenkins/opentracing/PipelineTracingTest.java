@@ -25,11 +25,17 @@ import hudson.util.VersionNumber;
 import io.opentracing.mock.MockSpan;
 import io.opentracing.mock.MockTracer;
 import io.opentracing.mock.MockTracer.Propagator;
+import io.opentracing.propagation.Format;
 import io.opentracing.tag.Tags;
 import java.io.ByteArrayOutputStream;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.jenkinsci.plugins.scriptsecurity.sandbox.Whitelist;
 import org.jenkinsci.plugins.scriptsecurity.sandbox.whitelists.BlanketWhitelist;
 import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
@@ -123,6 +129,74 @@ public class PipelineTracingTest {
     assertThat(noopBodyStart).isTemporallyEnclosedDirectChildOf(noopStart);
   }
 
+  @Test
+  public void testUnsampledBuild() throws Exception {
+    MockTracer mockTracer = new MockTracer(Propagator.TEXT_MAP);
+    ExtensionList.lookupSingleton(OTConfig.class)
+        .setTracer(
+            new MockTracerConf(mockTracer) {
+              @Override
+              public boolean isSampled(String jobName) {
+                return false;
+              }
+            });
+
+    WorkflowRun b = buildPipeline();
+    j.assertLogContains("spanid=null", b);
+    assertThat(mockTracer.finishedSpans()).isEmpty();
+    assertThat(b.getAction(TracerUiLink.class)).isNull();
+  }
+
+  @Test
+  public void testNestedBlocksInParallelBranches() throws Exception {
+    WorkflowRun b = buildPipeline();
+    List<MockSpan> spans = pipelineSpans();
+    assertThat(spans).hasSize(11);
+
+    Map<Long, MockSpan> spansById = new HashMap<>();
+    spans.forEach(s -> spansById.put(s.context().spanId(), s));
+    MockSpan parallel = getSpan(spans, spans.size() - 1, "Start parallel");
+
+    int branches = 0;
+    for (MockSpan span : spans) {
+      if (span == parallel) {
+        continue;
+      }
+      MockSpan parent = spansById.get(span.parentId());
+      assertThat(span).isTemporallyEnclosedDirectChildOf(parent);
+      if (parent == parallel) {
+        branches++;
+      }
+      if (span.operationName().equals("printEnv")) {
+        assertThat(parent.operationName()).contains("Body").contains("NoopStep");
+      }
+    }
+    assertThat(branches).isEqualTo(2);
+  }
+
+  @Test
+  public void testAsynchronousGraphListener() throws Exception {
+    ExtensionList.lookupSingleton(OTConfig.class).setAsynchronous(true);
+    GraphEventDispatcher dispatcher = ExtensionList.lookupSingleton(GraphEventDispatcher.class);
+
+    WorkflowRun b = buildPipeline();
+    assertThat(dispatcher.awaitQuiescence(30, TimeUnit.SECONDS)).isTrue();
+    assertThat(dispatcher.getSubmitted()).isPositive();
+    List<MockSpan> spans = pipelineSpans();
+
+    assertThat(spans).hasSize(3);
+    MockSpan printEnv = spans.get(0);
+    MockSpan noopBodyStart = spans.get(1);
+    MockSpan noopStart = spans.get(2);
+
+    assertThat(printEnv.operationName()).matches("printEnv");
+    assertThat(noopBodyStart.operationName()).contains("Body").contains("NoopStep");
+    assertThat(noopStart.operationName()).doesNotContain("Body").contains("NoopStep");
+
+    assertThat(printEnv).isTemporallyEnclosedDirectChildOf(noopBodyStart);
+    assertThat(noopBodyStart).isTemporallyEnclosedDirectChildOf(noopStart);
+  }
+
   @Test
   public void testNextStepFinishesPreviousAtomStep() throws Exception {
     WorkflowRun b = buildPipeline();
@@ -251,6 +325,83 @@ public class PipelineTracingTest {
     assertThat(JenkinsRule.getLog(b)).contains(pattern);
   }
 
+  @Test
+  public void testAsynchronousGraphListenerAfterShutdown() throws Exception {
+    ExtensionList.lookupSingleton(OTConfig.class).setAsynchronous(true);
+    GraphEventDispatcher dispatcher = ExtensionList.lookupSingleton(GraphEventDispatcher.class);
+    // starts the workers, as the terminator only stops running ones
+    dispatcher.execute(() -> {});
+    dispatcher.shutdown();
+
+    buildPipeline();
+    assertThat(dispatcher.getPending()).isZero();
+    assertThat(dispatcher.getProcessedInline()).isPositive();
+    assertThat(pipelineSpans()).hasSize(3);
+  }
+
+  @Test
+  public void testInjectEachStepItsOwnContext() throws Exception {
+    assumePluginVersionGreaterOrEqual("workflow-step-api", "2.19");
+    assumePluginVersionGreaterOrEqual("workflow-support", "3.2");
+    assumePluginVersionGreaterOrEqual("workflow-cps", "2.63");
+
+    Map<Long, AtomicInteger> injections = new ConcurrentHashMap<>();
+    MockTracer mockTracer =
+        new MockTracer(
+            new Propagator() {
+              @Override
+              public <C> void inject(MockSpan.MockContext ctx, Format<C> format, C carrier) {
+                injections
+                    .computeIfAbsent(ctx.spanId(), id -> new AtomicInteger())
+                    .incrementAndGet();
+                Propagator.TEXT_MAP.inject(ctx, format, carrier);
+              }
+
+              @Override
+              public <C> MockSpan.MockContext extract(Format<C> format, C carrier) {
+                return Propagator.TEXT_MAP.extract(format, carrier);
+              }
+            });
+    ExtensionList.lookupSingleton(OTConfig.class).setTracer(new MockTracerConf(mockTracer));
+
+    WorkflowRun b = buildPipeline();
+
+    List<MockSpan> spans = pipelineSpans();
+
+    MockSpan printEnv1 = spans.get(0);
+    MockSpan printEnv2 = spans.get(1);
+    assertThat(printEnv1.operationName()).matches("printEnv");
+    assertThat(printEnv2.operationName()).matches("printEnv");
+
+    // each step sees the context of its own span
+    assertThat(JenkinsRule.getLog(b))
+        .containsOnlyOnce("spanid=" + printEnv1.context().spanId() + "\n")
+        .containsOnlyOnce("spanid=" + printEnv2.context().spanId() + "\n");
+    // the headers are encoded once per span, not once per request of the environment
+    assertThat(injections.get(printEnv1.context().spanId())).hasValue(1);
+    assertThat(injections.get(printEnv2.context().spanId())).hasValue(1);
+  }
+
+  @Test
+  public void testSpanOfCompletedRunIsNotEvicted() throws Exception {
+    WorkflowRun b = buildPipeline("");
+    List<MockSpan> finished = mockTracer().finishedSpans();
+    assertThat(finished).isNotEmpty();
+
+    SpanStorage storage = ExtensionList.lookupSingleton(SpanStorage.class);
+    long evicted = storage.getEvicted();
+    long now = System.nanoTime();
+    storage.reap(now);
+    storage.reap(now + TimeUnit.DAYS.toNanos(8));
+
+    assertThat(storage.getEvicted()).isEqualTo(evicted);
+    assertThat(mockTracer().finishedSpans()).hasSameSizeAs(finished);
+    for (MockSpan span : mockTracer().finishedSpans()) {
+      assertThat(span.tags()).doesNotContainKey(SpanStorage.EVICTED_TAG);
+      assertThat(span.generatedErrors()).isEmpty();
+    }
+  }
+
   @Test
   public void testNodeStepQueueing() throws Exception {
     WorkflowRun b = buildPipeline();
@@ -403,6 +554,9 @@ public class PipelineTracingTest {
         .contains("delegate=NoopTracer");
 
     WorkflowRun b = buildPipeline();
+    OTFlowExecutionListener flowExecutionListener =
+        ExtensionList.lookupSingleton(OTFlowExecutionListener.class);
+    assertThat(flowExecutionListener.getListener(b.getExecution())).isNull();
 
     assertThat(outputCollector.getErr().toString())
         .isNotBlank()
@@ -420,15 +574,17 @@ public class PipelineTracingTest {
     return buildPipeline(script.read());
   }
 
+  private static MockTracer mockTracer() {
+    TracerConfig tracerConfig = ExtensionList.lookupSingleton(OTConfig.class).getTracer();
+    return ((MockTracerConf) tracerConfig).getTracer();
+  }
+
   private List<MockSpan> pipelineSpans() {
     return pipelineSpans(true);
   }
 
   private List<MockSpan> pipelineSpans(boolean removeQueuing) {
-    OTConfig config = ExtensionList.lookupSingleton(OTConfig.class);
-    TracerConfig tracerConfig = config.getTracer();
-    MockTracer mockTracer = ((MockTracerConf) tracerConfig).getTracer();
-    List<MockSpan> spans = mockTracer.finishedSpans();
+    List<MockSpan> spans = mockTracer().finishedSpans();
     ListIterator<MockSpan> iterator = spans.listIterator();
     while (iterator.hasNext()) {
       MockSpan span = iterator.next();
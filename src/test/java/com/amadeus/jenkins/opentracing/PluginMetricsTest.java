@@ -0,0 +1,62 @@
+package com.amadeus.jenkins.opentracing;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.amadeus.jenkins.opentracing.config.OTConfig;
+import com.amadeus.jenkins.opentracing.test.fixtures.MockTracerConf;
+import hudson.ExtensionList;
+import io.opentracing.mock.MockTracer;
+import io.opentracing.mock.MockTracer.Propagator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import net.sf.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class PluginMetricsTest {
+  @Rule public JenkinsRule j = new JenkinsRule();
+
+  @Test
+  public void testMetricsEndpoint() throws Exception {
+    OTConfig config = ExtensionList.lookupSingleton(OTConfig.class);
+    config.setTracer(new MockTracerConf(new MockTracer(Propagator.TEXT_MAP)));
+    j.buildAndAssertSuccess(j.createFreeStyleProject());
+
+    String content =
+        j.createWebClient()
+            .goTo("opentracing-metrics/", "application/json")
+            .getWebResponse()
+            .getContentAsString();
+    JSONObject metrics = JSONObject.fromObject(content);
+
+    assertThat(metrics.getBoolean("active")).isTrue();
+    JSONObject jobs = metrics.getJSONObject("spans").getJSONObject("Jenkins Jobs");
+    assertThat(jobs.getLong("started")).isEqualTo(1);
+    assertThat(jobs.getLong("finished")).isEqualTo(1);
+    assertThat(metrics.getJSONObject("spans").getJSONObject("Jenkins Queue").getLong("started"))
+        .isPositive();
+    assertThat(metrics.getJSONObject("listeners").getJSONObject("queue").getLong("count"))
+        .isPositive();
+    assertThat(metrics.getJSONObject("storage").getJSONObject("caches"))
+        .containsKey("OTQueueListener/items");
+    assertThat(metrics.getJSONObject("dispatcher")).containsKey("pending");
+  }
+
+  @Test
+  public void testHistogram() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 0; i < 98; i++) {
+      histogram.record(TimeUnit.MICROSECONDS.toNanos(10));
+    }
+    histogram.record(TimeUnit.MILLISECONDS.toNanos(3));
+    histogram.record(TimeUnit.SECONDS.toNanos(5));
+
+    Map<String, Number> snapshot = histogram.snapshot();
+    assertThat(snapshot)
+        .containsEntry("count", 100L)
+        .containsEntry("p50Micros", 16L)
+        .containsEntry("p99Micros", 4096L)
+        .containsEntry("maxMicros", 5_000_000L);
+  }
+}
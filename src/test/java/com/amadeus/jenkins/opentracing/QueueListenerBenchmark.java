@@ -0,0 +1,104 @@
+package com.amadeus.jenkins.opentracing;
+
+import hudson.model.FreeStyleProject;
+import hudson.model.Queue;
+import hudson.model.Queue.Task;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import jenkins.benchmark.jmh.JmhBenchmarkState;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.openjdk.jmh.annotations.Benchmark;
+
+/**
+ * Resolution of the flow node behind the tasks of a large queue, done by {@link OTQueueListener} on
+ * every queue transition. Most tasks are freestyle projects without a flow node, the others are
+ * node allocations of Pipelines waiting for an executor.
+ */
+@JmhBenchmark
+public class QueueListenerBenchmark {
+  private static final int FREESTYLE_TASKS = 5000;
+  private static final int PIPELINES = 10;
+
+  public static class QueueState extends JmhBenchmarkState {
+    final List<Task> tasks = new ArrayList<>();
+
+    @Override
+    public void setup() throws Exception {
+      Jenkins jenkins = getJenkins();
+      // keeps the node allocations in the queue
+      jenkins.setNumExecutors(0);
+      for (int i = 0; i < PIPELINES; i++) {
+        WorkflowJob job = jenkins.createProject(WorkflowJob.class, "pipeline" + i);
+        job.setDefinition(new CpsFlowDefinition("node { echo 'never' }", true));
+        job.scheduleBuild2(0);
+      }
+      List<Task> placeholders = awaitPlaceholderTasks(jenkins.getQueue());
+
+      for (int i = 0; i < FREESTYLE_TASKS; i++) {
+        tasks.add(jenkins.createProject(FreeStyleProject.class, "freestyle" + i));
+        if (i % (FREESTYLE_TASKS / 500) == 0) {
+          tasks.add(placeholders.get(i % placeholders.size()));
+        }
+      }
+    }
+
+    private static List<Task> awaitPlaceholderTasks(Queue queue) throws InterruptedException {
+      List<Task> placeholders = new ArrayList<>();
+      for (int attempt = 0; attempt < 600 && placeholders.size() < PIPELINES; attempt++) {
+        Thread.sleep(100);
+        placeholders.clear();
+        for (Queue.Item item : queue.getItems()) {
+          if (OTQueueListener.getNode(item.task).isPresent()) {
+            placeholders.add(item.task);
+          }
+        }
+      }
+      if (placeholders.isEmpty()) {
+        throw new IllegalStateException("No node allocation reached the queue");
+      }
+      return placeholders;
+    }
+  }
+
+  @Benchmark
+  public int getNode(QueueState state) {
+    int nodes = 0;
+    for (Task task : state.tasks) {
+      if (OTQueueListener.getNode(task).isPresent()) {
+        nodes++;
+      }
+    }
+    return nodes;
+  }
+
+  /** The previous implementation, looking up the method on every call, for comparison. */
+  @Benchmark
+  public int getNodeReflective(QueueState state) {
+    int nodes = 0;
+    for (Task task : state.tasks) {
+      if (getNodeReflective(task).isPresent()) {
+        nodes++;
+      }
+    }
+    return nodes;
+  }
+
+  private static Optional<FlowNode> getNodeReflective(Task task) {
+    try {
+      Method getNodeMethod = task.getClass().getMethod("getNode");
+      if (!FlowNode.class.equals(getNodeMethod.getReturnType())) {
+        return Optional.empty();
+      }
+      return Optional.ofNullable((FlowNode) getNodeMethod.invoke(task));
+    } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+      return Optional.empty();
+    }
+  }
+}
@@ -5,16 +5,31 @@ import static org.assertj.core.api.Java6Assertions.assertThat;
 import com.amadeus.jenkins.opentracing.config.OTConfig;
 import com.amadeus.jenkins.opentracing.config.impl.JaegerConfig;
 import com.amadeus.jenkins.opentracing.test.TestResourceLoader;
+import com.amadeus.jenkins.opentracing.test.fixtures.MockTracerConf;
+import com.amadeus.jenkins.opentracing.test.fixtures.WaitStep;
 import hudson.ExtensionList;
+import io.opentracing.Span;
+import io.opentracing.mock.MockSpan;
+import io.opentracing.mock.MockTracer;
+import io.opentracing.mock.MockTracer.Propagator;
+import java.io.File;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicReference;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
 import org.junit.Rule;
 import org.junit.Test;
 import org.jvnet.hudson.test.RestartableJenkinsRule;
+import org.jvnet.hudson.test.TestExtension;
 
 public class RestartTest {
   @Rule public RestartableJenkinsRule r = new RestartableJenkinsRule();
   @Rule public TestResourceLoader script = new TestResourceLoader("groovy");
 
+  @TestExtension public static final StepDescriptor waitStep = WaitStep.extension;
+
   @Test
   public void testConfigurationSurvivesRestart() {
     AtomicReference<OTConfig> originalConfig = new AtomicReference<>();
@@ -33,4 +48,70 @@ public class RestartTest {
           assertThat(config.getTracer()).isExactlyInstanceOf(JaegerConfig.class);
         });
   }
+
+  @Test
+  public void testTraceSurvivesRestart() {
+    AtomicReference<String> traceId = new AtomicReference<>();
+    AtomicReference<String> runSpanId = new AtomicReference<>();
+
+    r.then(
+        j -> {
+          setMockTracer();
+          WorkflowJob p = j.jenkins.createProject(WorkflowJob.class, "p");
+          p.setDefinition(new CpsFlowDefinition(script.read(), true));
+          WorkflowRun b = p.scheduleBuild2(0).waitForStart();
+          WaitStep.awaitStartBeforeRestart("restart");
+
+          Span runSpan = ExtensionList.lookupSingleton(OTRunListener.class).getSpan(b);
+          assertThat(runSpan).isNotNull();
+          traceId.set(runSpan.context().toTraceId());
+          runSpanId.set(runSpan.context().toSpanId());
+          ExtensionList.lookupSingleton(OTFlowExecutionListener.class).writeContextLogs();
+          assertThat(new File(b.getRootDir(), SpanContextLog.FILE_NAME)).exists();
+        });
+    r.then(
+        j -> {
+          MockTracer tracer = setMockTracer();
+          WorkflowRun b = j.jenkins.getItemByFullName("p", WorkflowJob.class).getBuildByNumber(1);
+          WaitStep.release("restart");
+          j.assertBuildStatusSuccess(j.waitForCompletion(b));
+
+          List<MockSpan> spans = tracer.finishedSpans();
+          assertThat(spans).isNotEmpty();
+          MockSpan runSpan = null;
+          MockSpan resumed = null;
+          for (MockSpan span : spans) {
+            assertThat(span.context().toTraceId()).isEqualTo(traceId.get());
+            if (span.operationName().startsWith("Job ")) {
+              runSpan = span;
+            } else if (span.operationName().equals("echo")) {
+              resumed = span;
+            }
+          }
+          assertThat(runSpan).isNotNull();
+          assertThat(runSpan.tags()).containsEntry(SpanContextLog.RESUMED_TAG, true);
+          assertThat(String.valueOf(runSpan.parentId())).isEqualTo(runSpanId.get());
+
+          // the echo inside the stage belongs to the continued stage
+          assertThat(resumed).isNotNull();
+          MockSpan enclosing = findSpan(spans, resumed.parentId());
+          assertThat(enclosing.tags()).containsEntry(SpanContextLog.RESUMED_TAG, true);
+          assertThat(new File(b.getRootDir(), SpanContextLog.FILE_NAME)).doesNotExist();
+        });
+  }
+
+  private static MockTracer setMockTracer() {
+    MockTracer tracer = new MockTracer(Propagator.TEXT_MAP);
+    ExtensionList.lookupSingleton(OTConfig.class).setTracer(new MockTracerConf(tracer));
+    return tracer;
+  }
+
+  private static MockSpan findSpan(List<MockSpan> spans, long spanId) {
+    for (MockSpan span : spans) {
+      if (span.context().spanId() == spanId) {
+        return span;
+      }
+    }
+    throw new AssertionError("No span " + spanId + " in " + spans);
+  }
 }
@@ -0,0 +1,72 @@
+package com.amadeus.jenkins.opentracing;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SpanContextLogTest {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testRecoverOpenSpans() throws Exception {
+    File dir = folder.newFolder();
+    SpanContextLog log = new SpanContextLog(dir);
+    Map<String, String> context = new LinkedHashMap<>();
+    context.put("uber-trace-id", "1f:2e:0:1");
+    context.put("uberctx-key", "a value\twith=separators");
+    log.started(SpanContextLog.RUN, context);
+    log.started("3", Collections.singletonMap("id", "3"));
+    log.started("5", Collections.singletonMap("id", "5"));
+    log.finished("3");
+    // nothing to continue with a tracer that does not propagate
+    log.started("7", Collections.emptyMap());
+    log.write();
+
+    Map<String, Map<String, String>> recovered = log.recover();
+    assertThat(recovered).containsOnlyKeys(SpanContextLog.RUN, "5");
+    assertThat(recovered.get(SpanContextLog.RUN)).isEqualTo(context);
+
+    // compacted to the open spans
+    File file = new File(dir, SpanContextLog.FILE_NAME);
+    assertThat(Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)).hasSize(2);
+    assertThat(log.recover()).isEqualTo(recovered);
+
+    log.discard();
+    assertThat(file).doesNotExist();
+    assertThat(log.recover()).isEmpty();
+  }
+
+  @Test
+  public void testFinishedSpansAreCompactedAway() throws Exception {
+    File dir = folder.newFolder();
+    SpanContextLog log = new SpanContextLog(dir);
+    log.started(SpanContextLog.RUN, Collections.singletonMap("id", "1"));
+    File file = new File(dir, SpanContextLog.FILE_NAME);
+    for (int i = 0; i < 100; i++) {
+      String id = String.valueOf(i + 2);
+      log.started(id, Collections.singletonMap("id", id));
+      log.finished(id);
+      log.write();
+      assertThat(Files.readAllLines(file.toPath(), StandardCharsets.UTF_8).size()).isLessThan(110);
+    }
+    // unknown ids are not recorded
+    log.finished("1000");
+    log.write();
+
+    assertThat(log.recover()).containsOnlyKeys(SpanContextLog.RUN);
+    assertThat(Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)).hasSize(1);
+
+    log.discard();
+    log.started("200", Collections.singletonMap("id", "200"));
+    log.write();
+    assertThat(file).doesNotExist();
+  }
+}
@@ -0,0 +1,71 @@
+package com.amadeus.jenkins.opentracing;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Contention on the maps handed out by {@link SpanStorage}, which are shared by the CPS VM threads,
+ * the queue maintenance and the executors of all running builds.
+ */
+@JmhBenchmark
+@Threads(4)
+public class SpanStorageBenchmark {
+  private static final int KEYS = 1024;
+
+  @State(Scope.Benchmark)
+  public static class Cache {
+    @Param({"concurrent", "synchronized"})
+    public String implementation;
+
+    Map<Long, Object> map;
+    // held strongly, so that no entry is collected during the benchmark
+    final Long[] keys = new Long[KEYS];
+
+    @Setup
+    public void setup() {
+      if ("concurrent".equals(implementation)) {
+        map = new ConcurrentWeakHashMap<>();
+      } else {
+        map = Collections.synchronizedMap(new WeakHashMap<>());
+      }
+      for (int i = 0; i < KEYS; i++) {
+        // outside of the Long cache, as the queue ids
+        keys[i] = 1_000_000L + i;
+        map.put(keys[i], new Object());
+      }
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Cursor {
+    private int next;
+
+    Long nextKey(Cache cache) {
+      return cache.keys[next++ & (KEYS - 1)];
+    }
+  }
+
+  @Benchmark
+  public Object get(Cache cache, Cursor cursor) {
+    return cache.map.get(cursor.nextKey(cache));
+  }
+
+  @Benchmark
+  public Object put(Cache cache, Cursor cursor) {
+    Long key = cursor.nextKey(cache);
+    return cache.map.put(key, key);
+  }
+
+  @Benchmark
+  public Object computeIfAbsent(Cache cache, Cursor cursor) {
+    return cache.map.computeIfAbsent(cursor.nextKey(cache), k -> new Object());
+  }
+}
@@ -0,0 +1,85 @@
+package com.amadeus.jenkins.opentracing;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.opentracing.Span;
+import io.opentracing.mock.MockSpan;
+import io.opentracing.mock.MockTracer;
+import io.opentracing.mock.MockTracer.Propagator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class SpanStorageReaperTest {
+  private final MockTracer tracer = new MockTracer(Propagator.TEXT_MAP);
+  private final SpanStorage storage = new SpanStorage();
+
+  @Test
+  public void testOldSpansAreEvicted() {
+    Map<String, Span> spans = storage.getCache(this, "spans");
+    Map<String, Object> others = storage.getCache(this, "others");
+    spans.put("leaked", tracer.buildSpan("leaked").start());
+    others.put("listener", new Object());
+
+    long now = System.nanoTime();
+    storage.reap(now);
+    storage.reap(now + TimeUnit.DAYS.toNanos(1));
+    assertThat(spans).containsKey("leaked");
+
+    storage.reap(now + TimeUnit.DAYS.toNanos(8));
+    assertThat(spans).isEmpty();
+    assertThat(others).containsKey("listener");
+    assertThat(storage.getEvicted()).isEqualTo(1);
+    assertThat(tracer.finishedSpans()).hasSize(1);
+    assertThat(tracer.finishedSpans().get(0).tags()).containsEntry(SpanStorage.EVICTED_TAG, true);
+  }
+
+  @Test
+  public void testAgeIsMeasuredFromThePut() {
+    Map<String, Span> spans = storage.getCache(this, "spans");
+    storage.put(spans, "leaked", tracer.buildSpan("leaked").start());
+    long now = System.nanoTime();
+    storage.flush();
+    storage.put(spans, "flushed", tracer.buildSpan("flushed").start());
+
+    storage.reap(now + TimeUnit.DAYS.toNanos(8));
+    assertThat(spans).isEmpty();
+    assertThat(storage.getEvicted()).isEqualTo(1);
+  }
+
+  @Test
+  public void testOldestSpansAreEvictedFromFullCaches() {
+    Map<Integer, Span> spans = storage.getCache(this, "spans");
+    for (int i = 0; i < 10; i++) {
+      spans.put(i, tracer.buildSpan("old").start());
+    }
+    long now = System.nanoTime();
+    storage.reap(now);
+    for (int i = 10; i < 100_010; i++) {
+      spans.put(i, tracer.buildSpan("new").start());
+    }
+
+    storage.reap(now + TimeUnit.MINUTES.toNanos(5));
+    assertThat(spans).hasSize(100_000).doesNotContainKeys(0, 5, 9).containsKeys(10, 100_009);
+    assertThat(tracer.finishedSpans()).hasSize(10);
+    for (MockSpan span : tracer.finishedSpans()) {
+      assertThat(span.operationName()).isEqualTo("old");
+    }
+  }
+
+  @Test
+  public void testCacheSizes() {
+    Map<String, Span> spans = storage.getCache(this, "spans");
+    spans.put("span", tracer.buildSpan("span").start());
+    storage.getCache(SpanStorageReaperTest.class);
+
+    assertThat(storage.getCacheSizes())
+        .containsEntry("SpanStorageReaperTest/spans", 1L)
+        .containsEntry("SpanStorageReaperTest", 0L);
+    assertThat(storage.size()).isEqualTo(1);
+
+    storage.release(this);
+    assertThat(storage.getCacheSizes()).containsOnlyKeys("SpanStorageReaperTest");
+    assertThat(storage.size()).isZero();
+  }
+}
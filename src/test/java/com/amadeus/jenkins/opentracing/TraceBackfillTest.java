@@ -0,0 +1,91 @@
+package com.amadeus.jenkins.opentracing;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.amadeus.jenkins.opentracing.config.OTConfig;
+import com.amadeus.jenkins.opentracing.test.TestResourceLoader;
+import com.amadeus.jenkins.opentracing.test.fixtures.MockTracerConf;
+import hudson.ExtensionList;
+import hudson.cli.CLICommandInvoker;
+import io.opentracing.mock.MockSpan;
+import io.opentracing.mock.MockTracer;
+import io.opentracing.mock.MockTracer.Propagator;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class TraceBackfillTest {
+  @Rule public JenkinsRule j = new JenkinsRule();
+  @Rule public TestResourceLoader script = new TestResourceLoader("groovy");
+
+  private final MockTracer tracer = new MockTracer(Propagator.TEXT_MAP);
+
+  @Before
+  public void setUp() {
+    OTConfig config = ExtensionList.lookupSingleton(OTConfig.class);
+    config.setTracer(new MockTracerConf(tracer));
+    config.setDisableLiveTracing(true);
+  }
+
+  @Test
+  public void testBackfill() throws Exception {
+    WorkflowJob p = j.jenkins.createProject(WorkflowJob.class, "p");
+    p.setDefinition(new CpsFlowDefinition(script.read(), true));
+    WorkflowRun b = j.buildAndAssertSuccess(p);
+    assertThat(tracer.finishedSpans()).isEmpty();
+
+    TraceBackfill backfill = ExtensionList.lookupSingleton(TraceBackfill.class);
+    long start = b.getStartTimeInMillis();
+    assertThat(backfill.export(Collections.singletonList(p), start + 1, Long.MAX_VALUE)).isZero();
+    assertThat(backfill.export(Collections.singletonList(p), start, start + 1)).isEqualTo(1);
+
+    MockSpan run = null;
+    MockSpan stage = null;
+    MockSpan echo = null;
+    for (MockSpan span : tracer.finishedSpans()) {
+      if (span.operationName().startsWith("Job ")) {
+        run = span;
+      } else if ("outer".equals(span.tags().get("stage.name"))) {
+        stage = span;
+      } else if (span.operationName().equals("echo")) {
+        echo = span;
+      }
+    }
+    assertThat(run).isNotNull();
+    assertThat(run.tags())
+        .containsEntry(TraceBackfill.BACKFILLED_TAG, true)
+        .containsEntry("jenkins.result", "SUCCESS");
+    assertThat(run.startMicros()).isEqualTo(TimeUnit.MILLISECONDS.toMicros(start));
+    assertThat(run.finishMicros())
+        .isEqualTo(TimeUnit.MILLISECONDS.toMicros(start + b.getDuration()));
+    assertThat(stage).isNotNull();
+    assertThat(stage.context().traceId()).isEqualTo(run.context().traceId());
+    assertThat(stage.tags()).containsEntry("step.arguments.name", "outer");
+    assertThat(echo).isNotNull();
+    assertThat(echo.startMicros()).isGreaterThanOrEqualTo(stage.startMicros());
+    assertThat(echo.finishMicros()).isLessThanOrEqualTo(stage.finishMicros());
+  }
+
+  @Test
+  public void testBackfillCommand() throws Exception {
+    WorkflowJob p = j.jenkins.createProject(WorkflowJob.class, "p");
+    p.setDefinition(new CpsFlowDefinition(script.read(), true));
+    j.buildAndAssertSuccess(p);
+
+    CLICommandInvoker.Result result =
+        new CLICommandInvoker(j, "opentracing-backfill")
+            .invokeWithArgs("--from", "2000-01-01T00:00:00Z", "p");
+    assertThat(result.returnCode()).isZero();
+    assertThat(result.stdout()).contains("Exported 1 builds");
+    assertThat(tracer.finishedSpans()).isNotEmpty();
+
+    result = new CLICommandInvoker(j, "opentracing-backfill").invokeWithArgs("missing");
+    assertThat(result.returnCode()).isNotZero();
+  }
+}
@@ -0,0 +1,72 @@
+package com.amadeus.jenkins.opentracing;
+
+import com.amadeus.jenkins.opentracing.config.OTConfig;
+import com.amadeus.jenkins.opentracing.config.impl.NullConfig;
+import com.amadeus.jenkins.opentracing.test.fixtures.MockTracerConf;
+import hudson.ExtensionList;
+import hudson.model.Result;
+import io.opentracing.mock.MockTracer;
+import io.opentracing.mock.MockTracer.Propagator;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import jenkins.benchmark.jmh.JmhBenchmarkState;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Runs a Pipeline calling the {@code trace} step without a body in a tight loop. The steps run on
+ * the CPS VM thread, so the time of a run is dominated by what each call costs the Pipeline.
+ */
+@JmhBenchmark
+public class TraceStepBenchmark {
+
+  public static class PipelineState extends JmhBenchmarkState {
+    @Param({"1000", "5000"})
+    public int calls;
+
+    @Param({"disabled", "mock"})
+    public String tracer;
+
+    WorkflowJob job;
+    private MockTracer mockTracer;
+
+    @Override
+    public void setup() throws Exception {
+      OTConfig config = ExtensionList.lookupSingleton(OTConfig.class);
+      if ("mock".equals(tracer)) {
+        mockTracer = new MockTracer(Propagator.TEXT_MAP);
+        config.setTracer(new MockTracerConf(mockTracer));
+      } else {
+        config.setTracer(new NullConfig());
+      }
+      job = getJenkins().createProject(WorkflowJob.class, "p");
+      job.setDefinition(
+          new CpsFlowDefinition(
+              "stage('loop') {\n"
+                  + "  for (int i = 0; i < "
+                  + calls
+                  + "; i++) {\n"
+                  + "    trace tags: [iteration: \"${i}\"]\n"
+                  + "  }\n"
+                  + "}\n",
+              true));
+    }
+
+    @TearDown(Level.Invocation)
+    public void resetTracer() {
+      if (mockTracer != null) {
+        mockTracer.reset();
+      }
+    }
+  }
+
+  @Benchmark
+  public Result traceCalls(PipelineState state) throws Exception {
+    WorkflowRun run = state.job.scheduleBuild2(0).get();
+    return run.getResult();
+  }
+}
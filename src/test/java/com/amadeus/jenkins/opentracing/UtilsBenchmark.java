@@ -0,0 +1,57 @@
+package com.amadeus.jenkins.opentracing;
+
+import io.opentracing.Span;
+import io.opentracing.mock.MockTracer;
+import io.opentracing.noop.NoopTracerFactory;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/** Cost of {@link Utils#setTag(Span, String, Object)}, called for every step argument. */
+@JmhBenchmark
+public class UtilsBenchmark {
+
+  @State(Scope.Thread)
+  public static class Tags {
+    @Param({"noop", "mock"})
+    public String tracer;
+
+    Span span;
+    final Object string = "value";
+    final Object number = 42;
+    final Object bool = Boolean.TRUE;
+    final Object other = new Object();
+
+    @Setup
+    public void setup() {
+      if ("mock".equals(tracer)) {
+        span = new MockTracer().buildSpan("span").start();
+      } else {
+        span = NoopTracerFactory.create().buildSpan("span").start();
+      }
+    }
+  }
+
+  @Benchmark
+  public boolean setStringTag(Tags tags) {
+    return Utils.setTag(tags.span, "step.arguments.string", tags.string);
+  }
+
+  @Benchmark
+  public boolean setNumberTag(Tags tags) {
+    return Utils.setTag(tags.span, "step.arguments.number", tags.number);
+  }
+
+  @Benchmark
+  public boolean setBooleanTag(Tags tags) {
+    return Utils.setTag(tags.span, "step.arguments.boolean", tags.bool);
+  }
+
+  @Benchmark
+  public boolean setUnsupportedTag(Tags tags) {
+    return Utils.setTag(tags.span, "step.arguments.other", tags.other);
+  }
+}
@@ -3,6 +3,7 @@ package com.amadeus.jenkins.opentracing;
 import static org.assertj.core.api.Assertions.assertThat;
 
 import hudson.PluginWrapper;
+import jenkins.model.JenkinsLocationConfiguration;
 import org.junit.Rule;
 import org.junit.Test;
 import org.jvnet.hudson.test.JenkinsRule;
@@ -24,4 +25,15 @@ public class UtilsTest {
 
     assertThat(Utils.PLUGIN_SHORT_NAME).isEqualTo(ourShortName);
   }
+
+  @Test
+  public void testRootUrlFollowsLocationConfiguration() {
+    JenkinsLocationConfiguration config = JenkinsLocationConfiguration.get();
+    config.setUrl("http://first.example/jenkins/");
+    assertThat(LocationCache.getRootUrl()).isEqualTo("http://first.example/jenkins/");
+
+    config.setUrl("http://second.example/jenkins");
+    assertThat(LocationCache.getRootUrl()).isEqualTo("http://second.example/jenkins/");
+    assertThat(LocationCache.getConfiguredUrl()).hasValue("http://second.example/jenkins");
+  }
 }
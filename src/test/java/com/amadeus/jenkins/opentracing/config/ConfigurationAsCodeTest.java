@@ -4,6 +4,8 @@ import static org.assertj.core.api.Assertions.assertThat;
 
 import com.amadeus.jenkins.opentracing.config.impl.JaegerConfig;
 import com.amadeus.jenkins.opentracing.config.impl.NullConfig;
+import com.amadeus.jenkins.opentracing.config.impl.SamplerConfig;
+import com.amadeus.jenkins.opentracing.config.impl.SamplingRule;
 import com.amadeus.jenkins.opentracing.test.TestResourceLoader;
 import hudson.ExtensionList;
 import io.jenkins.plugins.casc.ConfigurationAsCode;
@@ -65,4 +67,20 @@ public class ConfigurationAsCodeTest {
     JaegerConfig.HttpSenderConfig httpConfig = (JaegerConfig.HttpSenderConfig) jaeger.getSender();
     assertThat(httpConfig.getEndpoint()).isEqualTo("http://localhost/endpoint/");
   }
+
+  @Test
+  public void jaegerSamplingConfig() {
+    assertThat(config).isExactlyInstanceOf(JaegerConfig.class);
+    JaegerConfig jaeger = (JaegerConfig) config;
+    assertThat(jaeger.getSampler())
+        .isExactlyInstanceOf(SamplerConfig.AdaptiveSamplerConfig.class)
+        .extracting("spansPerSecond")
+        .isEqualTo(50.0);
+    assertThat(jaeger.getSamplingRules())
+        .extracting(SamplingRule::getPattern)
+        .containsExactly("important/.*", "nightly");
+    assertThat(jaeger.getSamplingRules().get(1).getSampler())
+        .isExactlyInstanceOf(SamplerConfig.ProbabilisticSamplerConfig.class);
+    assertThat(jaeger.isSampled("important/job")).isTrue();
+  }
 }
@@ -0,0 +1,119 @@
+package com.amadeus.jenkins.opentracing.config;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.opentracing.Span;
+import io.opentracing.mock.MockSpan;
+import io.opentracing.mock.MockTracer;
+import io.opentracing.mock.MockTracer.Propagator;
+import io.opentracing.tag.Tags;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+
+public class LimitingSpanTest {
+  private final MockTracer tracer = new MockTracer(Propagator.TEXT_MAP);
+  private final SpanCounters counters = new SpanCounters();
+
+  @Test
+  public void testTagLimits() {
+    SpanLimits limits = new SpanLimits(3, 10, 2, 1000);
+    Span span = builder("op", limits).withTag("a", "x").start();
+    span.setTag("b", "0123456789abc");
+    span.setTag("c", 1);
+    span.setTag("a", "y");
+    span.setTag("d", true);
+    span.finish();
+
+    MockSpan mockSpan = tracer.finishedSpans().get(0);
+    assertThat(mockSpan.tags())
+        .containsEntry("a", "y")
+        .containsEntry("b", "0123456789" + SpanLimits.TRUNCATION_MARKER)
+        .containsEntry("c", 1)
+        .doesNotContainKey("d")
+        .containsEntry(LimitingSpan.DROPPED_TAGS, 1);
+    assertThat(limits.getDroppedTags()).isEqualTo(1);
+    assertThat(limits.getTruncatedValues()).isEqualTo(1);
+  }
+
+  @Test
+  public void testLogLimits() {
+    SpanLimits limits = new SpanLimits(3, 10, 2, 1000);
+    Span span = builder("op", limits).start();
+    span.log("one");
+    span.log(Collections.singletonMap("key", "0123456789abc"));
+    span.log("three");
+    span.finish();
+
+    MockSpan mockSpan = tracer.finishedSpans().get(0);
+    List<MockSpan.LogEntry> logs = mockSpan.logEntries();
+    assertThat(logs).hasSize(2);
+    assertThat(logs.get(1).fields())
+        .containsEntry("key", "0123456789" + SpanLimits.TRUNCATION_MARKER);
+    assertThat(mockSpan.tags()).containsEntry(LimitingSpan.DROPPED_LOGS, 1);
+    assertThat(limits.getDroppedLogs()).isEqualTo(1);
+  }
+
+  @Test
+  public void testTraceSizeIsShared() {
+    SpanLimits limits = new SpanLimits(10, 100, 10, 20);
+    Span parent = builder("parent", limits).start();
+    parent.setTag("key", "0123456789");
+    Span child = builder("child", limits).asChildOf(parent).start();
+    child.setTag("other", "0123456");
+    child.setTag("k", "1");
+    child.finish();
+    parent.finish();
+
+    MockSpan mockChild = tracer.finishedSpans().get(0);
+    MockSpan mockParent = tracer.finishedSpans().get(1);
+    assertThat(mockChild.parentId()).isEqualTo(mockParent.context().spanId());
+    assertThat(mockParent.tags()).containsEntry("key", "0123456789");
+    assertThat(mockChild.tags())
+        .containsEntry("k", "1")
+        .doesNotContainKey("other")
+        .containsEntry(LimitingSpan.DROPPED_TAGS, 1);
+    assertThat(LimitingSpan.unwrap(child)).isSameAs(mockChild);
+    assertThat(counters.getStarted()).isEqualTo(2);
+    assertThat(counters.getFinished()).isEqualTo(2);
+  }
+
+  @Test
+  public void testStatusTagsOutliveTheTraceSize() {
+    SpanLimits limits = new SpanLimits(10, 100, 10, 20);
+    // the tags of the builder exceed the size of the trace
+    Span parent = builder("parent", limits).withTag("key", "0123456789abcdefghij").start();
+    Span child = builder("child", limits).asChildOf(parent).start();
+    child.setTag("k", "1");
+    Tags.ERROR.set(child, true);
+    child.finish();
+    parent.setTag("jenkins.result", "FAILURE");
+    parent.finish();
+
+    MockSpan mockChild = tracer.finishedSpans().get(0);
+    MockSpan mockParent = tracer.finishedSpans().get(1);
+    assertThat(mockChild.tags())
+        .doesNotContainKey("k")
+        .containsEntry(Tags.ERROR.getKey(), true)
+        .containsEntry(LimitingSpan.DROPPED_TAGS, 1);
+    assertThat(mockParent.tags()).containsEntry("jenkins.result", "FAILURE");
+  }
+
+  @Test
+  public void testSpanIsFinishedOnce() {
+    SpanLimits limits = new SpanLimits(10, 100, 10, 1000);
+    Span span = builder("op", limits).start();
+    span.finish();
+    span.finish();
+    span.finish(System.currentTimeMillis() * 1000);
+
+    assertThat(tracer.finishedSpans()).hasSize(1);
+    assertThat(counters.getStarted()).isEqualTo(1);
+    assertThat(counters.getFinished()).isEqualTo(1);
+    assertThat(counters.getLive()).isZero();
+  }
+
+  private LimitingSpan.Builder builder(String operationName, SpanLimits limits) {
+    return new LimitingSpan.Builder(tracer.buildSpan(operationName), limits, counters);
+  }
+}
@@ -9,13 +9,18 @@ import com.amadeus.jenkins.opentracing.SpanStorage;
 import com.amadeus.jenkins.opentracing.WorkaroundGraphListener;
 import com.amadeus.jenkins.opentracing.config.impl.NullConfig;
 import com.amadeus.jenkins.opentracing.test.fixtures.MockTracerConf;
+import hudson.BulkChange;
 import hudson.ExtensionList;
 import io.opentracing.Span;
 import io.opentracing.Tracer;
+import io.opentracing.mock.MockSpan;
 import io.opentracing.mock.MockTracer;
 import io.opentracing.mock.MockTracer.Propagator;
 import io.opentracing.noop.NoopTracer;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import org.junit.Rule;
 import org.junit.Test;
 import org.jvnet.hudson.test.JenkinsRule;
@@ -24,40 +29,49 @@ public class OTConfigTest {
   @Rule public JenkinsRule j = new JenkinsRule();
 
   @Test
-  public void testDynamicReconfiguration() {
+  public void testDynamicReconfiguration() throws Exception {
     SpanStorage storage = ExtensionList.lookupSingleton(SpanStorage.class);
     OTConfig config = ExtensionList.lookupSingleton(OTConfig.class);
 
     assertThat(storage.size()).isZero();
 
-    MockTracer lowLevelTracer1 = new MockTracer(Propagator.TEXT_MAP);
+    ClosableMockTracer lowLevelTracer1 = new ClosableMockTracer();
     TracerConfig tracerConfig1 = new MockTracerConf(lowLevelTracer1);
     config.setTracer(tracerConfig1);
 
     Tracer applicationTracer = config.getTracerForName("fooBar");
     assertThat(applicationTracer).isNotNull();
-    Map<Object, Span> applicationCache = storage.getCache(new Object(), "");
+    // the storage only holds the requester weakly
+    Map<Object, Span> applicationCache = storage.getCache(this, "");
 
     Span applicationSpan1 = applicationTracer.buildSpan("foobar").start();
     applicationCache.put(new Object(), applicationSpan1);
     assertThat(storage.size()).isEqualTo(1);
-    applicationSpan1.finish();
-    assertThat(storage.size()).isEqualTo(1);
-    assertThat(lowLevelTracer1.finishedSpans()).hasSize(1);
 
-    MockTracer lowLevelTracer2 = new MockTracer(Propagator.TEXT_MAP);
+    // the in-flight span is kept and finishes on its tracer
+    ClosableMockTracer lowLevelTracer2 = new ClosableMockTracer();
     TracerConfig tracerConfig2 = new MockTracerConf(lowLevelTracer2);
     config.setTracer(tracerConfig2);
-    assertThat(storage.size()).isEqualTo(0);
+    assertThat(storage.size()).isEqualTo(1);
 
-    Span applicationSpan2 = applicationTracer.buildSpan("something").start();
+    Span applicationSpan2 =
+        applicationTracer.buildSpan("something").asChildOf(applicationSpan1).start();
     applicationCache.put(new Object(), applicationSpan2);
-    assertThat(storage.size()).isEqualTo(1);
+    assertThat(storage.size()).isEqualTo(2);
     applicationSpan2.finish();
-    assertThat(storage.size()).isEqualTo(1);
-    // mockspan cleans finishedSpans
-    assertThat(lowLevelTracer1.finishedSpans()).hasSize(1);
     assertThat(lowLevelTracer2.finishedSpans()).hasSize(1);
+    assertThat(lowLevelTracer1.closed.getCount()).isEqualTo(1);
+
+    applicationSpan1.finish();
+    assertThat(lowLevelTracer1.closed.await(10, TimeUnit.SECONDS)).isTrue();
+    assertThat(lowLevelTracer1.finishedBeforeClose).hasSize(1);
+    assertThat(lowLevelTracer2.closed.getCount()).isEqualTo(1);
+    assertThat(config.getSpanCounters().get("fooBar").getFinished()).isEqualTo(2);
+
+    // spans of another implementation can not be continued
+    config.setTracer(new NullConfig());
+    assertThat(storage.size()).isZero();
+    assertThat(lowLevelTracer2.closed.await(10, TimeUnit.SECONDS)).isTrue();
   }
 
   @Test
@@ -85,6 +99,52 @@ public class OTConfigTest {
     assertThat(new2.getTraceLinkAction(span)).isEmpty();
   }
 
+  @Test
+  public void testActive() {
+    OTConfig config = ExtensionList.lookupSingleton(OTConfig.class);
+    assertThat(config.isActive()).isFalse();
+
+    config.setTracer(new MockTracerConf(new MockTracer(Propagator.TEXT_MAP)));
+    assertThat(config.isActive()).isTrue();
+
+    config.setTracer(new NullConfig());
+    assertThat(config.isActive()).isFalse();
+  }
+
+  @Test
+  public void testBulkChangeReloadsOnceBound() throws Exception {
+    OTConfig config = ExtensionList.lookupSingleton(OTConfig.class);
+    config.setTracer(new MockTracerConf(new MockTracer(Propagator.TEXT_MAP)));
+    assertThat(config.isActive()).isTrue();
+
+    try (BulkChange bulkChange = new BulkChange(config)) {
+      config.setTracer(new MockTracerConf(new MockTracer(Propagator.TEXT_MAP)));
+      config.setDisableLiveTracing(true);
+      assertThat(config.isActive()).isTrue();
+      bulkChange.commit();
+    }
+    assertThat(config.isActive()).isFalse();
+  }
+
+  @Test
+  public void testLimitsSettings() throws Exception {
+    OTConfig config = ExtensionList.lookupSingleton(OTConfig.class);
+    assertThat(config.getMaxTagsPerSpan()).isEqualTo(128);
+    assertThat(config.getMaxTraceSize()).isEqualTo(1024);
+
+    config.setMaxTagsPerSpan(10);
+    config.setMaxValueLength(20);
+    config.setMaxLogsPerSpan(30);
+    config.setMaxTraceSize(40);
+
+    j.configRoundtrip();
+
+    assertThat(config.getMaxTagsPerSpan()).isEqualTo(10);
+    assertThat(config.getMaxValueLength()).isEqualTo(20);
+    assertThat(config.getMaxLogsPerSpan()).isEqualTo(30);
+    assertThat(config.getMaxTraceSize()).isEqualTo(40);
+  }
+
   @Test
   public void testComponentCreationWithoutConfiguration() {
     OTConfig config = assertComponent(OTConfig.class);
@@ -97,6 +157,22 @@ public class OTConfigTest {
     assertComponent(WorkaroundGraphListener.class);
   }
 
+  private static final class ClosableMockTracer extends MockTracer {
+    private final CountDownLatch closed = new CountDownLatch(1);
+    private volatile List<MockSpan> finishedBeforeClose;
+
+    private ClosableMockTracer() {
+      super(Propagator.TEXT_MAP);
+    }
+
+    @Override
+    public void close() {
+      finishedBeforeClose = finishedSpans();
+      closed.countDown();
+      super.close();
+    }
+  }
+
   private <T> T assertComponent(Class<T> klazz) {
     T instance = j.jenkins.getExtensionList(klazz).getInstance(klazz);
     assertThat(instance).isNotNull();
@@ -0,0 +1,130 @@
+package com.amadeus.jenkins.opentracing.config.impl;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.amadeus.jenkins.opentracing.config.impl.BatchingReporter.OverflowPolicy;
+import io.jaegertracing.internal.JaegerSpan;
+import io.jaegertracing.internal.JaegerTracer;
+import io.jaegertracing.internal.samplers.ConstSampler;
+import io.jaegertracing.spi.Reporter;
+import io.jaegertracing.spi.Sender;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Test;
+
+public class BatchingReporterTest {
+
+  @Test
+  public void testAllSpansAreSentInBatches() {
+    List<JaegerSpan> sent = Collections.synchronizedList(new ArrayList<>());
+    BatchingReporter reporter =
+        new BatchingReporter(
+            "test", () -> new RecordingSender(sent, null), 10_000, 100, 4, 50, OverflowPolicy.DROP);
+    JaegerTracer tracer = tracer(reporter);
+
+    for (int i = 0; i < 10_000; i++) {
+      tracer.buildSpan("span" + i).start().finish();
+    }
+    tracer.close();
+
+    assertThat(sent).hasSize(10_000);
+    assertThat(reporter.getQueued()).isEqualTo(10_000);
+    assertThat(reporter.getSent()).isEqualTo(10_000);
+    assertThat(reporter.getDropped()).isZero();
+    assertThat(reporter.getBatches()).isBetween(100L, 10_000L);
+    assertThat(reporter.getQueueDepth()).isZero();
+  }
+
+  @Test
+  public void testSpansAreDroppedWhenQueueIsFull() {
+    List<JaegerSpan> sent = Collections.synchronizedList(new ArrayList<>());
+    CountDownLatch release = new CountDownLatch(1);
+    BatchingReporter reporter =
+        new BatchingReporter(
+            "test", () -> new RecordingSender(sent, release), 10, 1, 1, 50, OverflowPolicy.DROP);
+    JaegerTracer tracer = tracer(reporter);
+
+    for (int i = 0; i < 100; i++) {
+      tracer.buildSpan("span" + i).start().finish();
+    }
+    release.countDown();
+    tracer.close();
+
+    assertThat(reporter.getDropped()).isPositive();
+    assertThat(reporter.getQueued() + reporter.getDropped()).isEqualTo(100);
+    assertThat(sent).hasSize((int) reporter.getQueued());
+  }
+
+  @Test
+  public void testSharedReporterIsClosedWithTheLastTracer() {
+    List<JaegerSpan> sent = Collections.synchronizedList(new ArrayList<>());
+    BatchingReporter reporter =
+        new BatchingReporter(
+            "test", () -> new RecordingSender(sent, null), 100, 10, 1, 50, OverflowPolicy.DROP);
+    JaegerTracer jobs = tracer("Jenkins Jobs", reporter.share());
+    JaegerTracer pipeline = tracer("Jenkins Pipeline", reporter.share());
+
+    jobs.buildSpan("job").start().finish();
+    jobs.close();
+    jobs.close();
+    assertThat(reporter.isClosed()).isFalse();
+    pipeline.buildSpan("node").start().finish();
+    pipeline.close();
+
+    assertThat(reporter.isClosed()).isTrue();
+    assertThat(reporter.share()).isNull();
+    assertThat(sent)
+        .extracting(span -> span.getTracer().getServiceName())
+        .containsExactlyInAnyOrder("Jenkins Jobs", "Jenkins Pipeline");
+  }
+
+  private static JaegerTracer tracer(BatchingReporter reporter) {
+    return tracer("test", reporter);
+  }
+
+  private static JaegerTracer tracer(String service, Reporter reporter) {
+    return new JaegerTracer.Builder(service)
+        .withReporter(reporter)
+        .withSampler(new ConstSampler(true))
+        .build();
+  }
+
+  private static final class RecordingSender implements Sender {
+    private final List<JaegerSpan> sent;
+    private final CountDownLatch release;
+    private final List<JaegerSpan> buffer = new ArrayList<>();
+
+    RecordingSender(List<JaegerSpan> sent, CountDownLatch release) {
+      this.sent = sent;
+      this.release = release;
+    }
+
+    @Override
+    public int append(JaegerSpan span) {
+      buffer.add(span);
+      return 0;
+    }
+
+    @Override
+    public int flush() {
+      if (release != null) {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      int flushed = buffer.size();
+      sent.addAll(buffer);
+      buffer.clear();
+      return flushed;
+    }
+
+    @Override
+    public int close() {
+      return flush();
+    }
+  }
+}
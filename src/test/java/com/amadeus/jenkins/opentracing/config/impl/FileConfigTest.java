@@ -0,0 +1,118 @@
+package com.amadeus.jenkins.opentracing.config.impl;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.jaegertracing.internal.JaegerSpan;
+import io.jaegertracing.internal.JaegerSpanContext;
+import io.jaegertracing.internal.JaegerTracer;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FileConfigTest {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testSpansAreWrittenAsOtlpJson() throws Exception {
+    File dir = folder.newFolder();
+    FileConfig config = new FileConfig(dir.getAbsolutePath());
+    JaegerTracer tracer = (JaegerTracer) config.getTracerForName("test");
+    JaegerSpan parent = tracer.buildSpan("parent").start();
+    JaegerSpan child = tracer.buildSpan("child").asChildOf(parent).start();
+    child.setTag("text", "a \"quoted\"\nvalue");
+    child.setTag("number", 42);
+    child.setTag("error", true);
+    child.log("something happened");
+    child.finish();
+    parent.finish();
+    tracer.close();
+
+    List<String> lines =
+        Files.readAllLines(new File(dir, SegmentWriter.CURRENT).toPath(), StandardCharsets.UTF_8);
+    assertThat(lines).hasSize(1);
+    String line = lines.get(0);
+    assertThat(line)
+        .startsWith("{\"resourceSpans\":[{\"resource\":{\"attributes\":[")
+        .contains("{\"key\":\"service.name\",\"value\":{\"stringValue\":\"test\"}}")
+        .contains("\"traceId\":\"" + traceId(child.context()) + "\"")
+        .contains("\"spanId\":\"" + String.format("%016x", child.context().getSpanId()) + "\"")
+        .contains("\"parentSpanId\":\"" + String.format("%016x", parent.context().getSpanId()))
+        .contains("\"name\":\"child\"")
+        .contains("{\"key\":\"text\",\"value\":{\"stringValue\":\"a \\\"quoted\\\"\\nvalue\"}}")
+        .contains("{\"key\":\"number\",\"value\":{\"intValue\":\"42\"}}")
+        .contains("\"name\":\"something happened\"")
+        .contains("\"status\":{\"code\":2}")
+        .contains("\"startTimeUnixNano\":\"" + child.getStart() * 1000 + "\"");
+    assertThat(config.getMetrics()).containsEntry("sent", 2L).containsEntry("rotations", 0L);
+  }
+
+  @Test
+  public void testConfigurationsOfADirectoryShareTheWriter() throws Exception {
+    File dir = folder.newFolder();
+    FileConfig retired = new FileConfig(dir.getAbsolutePath());
+    FileConfig current = new FileConfig(dir.getPath() + File.separator + ".");
+    JaegerTracer retiredTracer = (JaegerTracer) retired.getTracerForName("test");
+    JaegerTracer currentTracer = (JaegerTracer) current.getTracerForName("test");
+    currentTracer.buildSpan("new").start().finish();
+    currentTracer.close();
+    retiredTracer.buildSpan("old").start().finish();
+    retiredTracer.close();
+
+    File file = new File(dir, SegmentWriter.CURRENT);
+    assertThat(Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)).hasSize(2);
+    assertThat(retired.getMetrics())
+        .containsEntry("bytesWritten", file.length())
+        .containsEntry("bytesWritten", current.getMetrics().get("bytesWritten"));
+  }
+
+  @Test
+  public void testSegmentsAreRotatedAndCompressed() throws Exception {
+    File dir = folder.newFolder();
+    SegmentWriter writer = SegmentWriter.get(dir.toPath(), 100, 60_000, 2);
+    writer.acquire();
+    List<String> written = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      String line = String.format("{\"line\":%02d,\"padding\":\"%040d\"}", i, 0);
+      writer.write(line);
+      written.add(line);
+    }
+    writer.release();
+
+    // two lines per segment, the last one is still open
+    assertThat(writer.getRotations()).isEqualTo(4);
+    File[] compressed = dir.listFiles((d, name) -> name.endsWith(".jsonl.gz"));
+    assertThat(compressed).hasSize(2);
+    Arrays.sort(compressed);
+    List<String> lines = new ArrayList<>();
+    for (File segment : compressed) {
+      lines.addAll(gunzip(segment));
+    }
+    lines.addAll(Files.readAllLines(new File(dir, SegmentWriter.CURRENT).toPath()));
+    assertThat(lines).isEqualTo(written.subList(4, 10));
+    assertThat(dir.listFiles((d, name) -> name.endsWith(".jsonl"))).hasSize(1);
+  }
+
+  private static String traceId(JaegerSpanContext context) {
+    return String.format("%016x%016x", context.getTraceIdHigh(), context.getTraceIdLow());
+  }
+
+  private static List<String> gunzip(File file) throws Exception {
+    try (BufferedReader reader =
+        new BufferedReader(
+            new InputStreamReader(
+                new GZIPInputStream(Files.newInputStream(file.toPath())),
+                StandardCharsets.UTF_8))) {
+      return reader.lines().collect(Collectors.toList());
+    }
+  }
+}
@@ -4,14 +4,30 @@ import static org.assertj.core.api.Assertions.assertThat;
 
 import com.amadeus.jenkins.opentracing.config.OTConfig;
 import com.amadeus.jenkins.opentracing.config.TracerConfig;
+import com.amadeus.jenkins.opentracing.config.impl.BatchingReporter.OverflowPolicy;
 import com.amadeus.jenkins.opentracing.config.impl.JaegerConfig.NullSenderConfig;
+import com.amadeus.jenkins.opentracing.config.impl.SamplerConfig.ConstSamplerConfig;
+import com.amadeus.jenkins.opentracing.config.impl.SamplerConfig.ProbabilisticSamplerConfig;
+import com.amadeus.jenkins.opentracing.config.impl.SamplerConfig.RateLimitingSamplerConfig;
 import hudson.ExtensionList;
+import io.jaegertracing.Configuration.SenderConfiguration;
+import io.jaegertracing.internal.JaegerSpan;
+import io.jaegertracing.internal.exceptions.SenderException;
+import io.jaegertracing.spi.Sender;
 import io.opentracing.Span;
 import io.opentracing.Tracer;
 import io.opentracing.propagation.Format.Builtin;
 import io.opentracing.propagation.TextMapAdapter;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import org.junit.Rule;
 import org.junit.Test;
 import org.jvnet.hudson.test.JenkinsRule;
@@ -49,6 +65,114 @@ public class JaegerConfigTest {
             });
   }
 
+  @Test
+  public void testExportSettings() throws Exception {
+    OTConfig config = ExtensionList.lookupSingleton(OTConfig.class);
+    JaegerConfig jaegerConfig = new JaegerConfig(new NullSenderConfig(), null);
+    assertThat(jaegerConfig.getQueueSize()).isEqualTo(10_000);
+    assertThat(jaegerConfig.getOverflowPolicy()).isEqualTo(OverflowPolicy.DROP);
+
+    jaegerConfig.setQueueSize(42);
+    jaegerConfig.setBatchSize(7);
+    jaegerConfig.setSenderThreads(3);
+    jaegerConfig.setFlushInterval(500);
+    jaegerConfig.setOverflowPolicy(OverflowPolicy.BLOCK);
+    config.setTracer(jaegerConfig);
+
+    j.configRoundtrip();
+
+    JaegerConfig newConfig = (JaegerConfig) config.getTracer();
+    assertThat(newConfig).isNotSameAs(jaegerConfig);
+    assertThat(newConfig.getQueueSize()).isEqualTo(42);
+    assertThat(newConfig.getBatchSize()).isEqualTo(7);
+    assertThat(newConfig.getSenderThreads()).isEqualTo(3);
+    assertThat(newConfig.getFlushInterval()).isEqualTo(500);
+    assertThat(newConfig.getOverflowPolicy()).isEqualTo(OverflowPolicy.BLOCK);
+  }
+
+  @Test
+  public void testEachServiceHasItsOwnSender() {
+    RecordingSenderConfig senderConfig = new RecordingSenderConfig(new CountDownLatch(0));
+    JaegerConfig jaegerConfig = new JaegerConfig(senderConfig, null);
+    Tracer queue = jaegerConfig.getTracerForName("Jenkins Queue");
+    Tracer pipeline = jaegerConfig.getTracerForName("Jenkins Pipeline");
+    queue.buildSpan("queue").start().finish();
+    pipeline.buildSpan("step").start().finish();
+    queue.close();
+    pipeline.close();
+
+    assertThat(senderConfig.senders).hasSize(2);
+    for (RecordingSender sender : senderConfig.senders) {
+      assertThat(sender.services).hasSize(1);
+    }
+  }
+
+  @Test
+  public void testEachSenderThreadHasItsOwnSender() throws Exception {
+    // the first worker blocks in its sender until the second one sends as well
+    RecordingSenderConfig senderConfig = new RecordingSenderConfig(new CountDownLatch(2));
+    JaegerConfig jaegerConfig = new JaegerConfig(senderConfig, null);
+    jaegerConfig.setSenderThreads(2);
+    jaegerConfig.setBatchSize(1);
+    Tracer tracer = jaegerConfig.getTracerForName("Jenkins Pipeline");
+    tracer.buildSpan("first").start().finish();
+    tracer.buildSpan("second").start().finish();
+    tracer.close();
+
+    assertThat(senderConfig.senders).hasSize(2);
+    assertThat(senderConfig.senders.get(0)).isNotSameAs(senderConfig.senders.get(1));
+  }
+
+  @Test
+  public void testSamplingSettings() throws Exception {
+    OTConfig config = ExtensionList.lookupSingleton(OTConfig.class);
+    JaegerConfig jaegerConfig = new JaegerConfig(new NullSenderConfig(), null);
+    assertThat(jaegerConfig.getSampler()).isExactlyInstanceOf(ConstSamplerConfig.class);
+    assertThat(jaegerConfig.isSampled("p")).isTrue();
+
+    jaegerConfig.setSampler(new ProbabilisticSamplerConfig(0));
+    jaegerConfig.setSamplingRules(
+        Arrays.asList(
+            new SamplingRule("important/.*", new ConstSamplerConfig(true)),
+            new SamplingRule("important/.*|other", new RateLimitingSamplerConfig(0.01))));
+    config.setTracer(jaegerConfig);
+
+    j.configRoundtrip();
+
+    JaegerConfig newConfig = (JaegerConfig) config.getTracer();
+    assertThat(newConfig).isNotSameAs(jaegerConfig);
+    assertThat(newConfig.getSampler()).isExactlyInstanceOf(ProbabilisticSamplerConfig.class);
+    assertThat(newConfig.getSamplingRules())
+        .extracting(SamplingRule::getPattern)
+        .containsExactly("important/.*", "important/.*|other");
+
+    assertThat(newConfig.isSampled("important/job")).isTrue();
+    assertThat(newConfig.isSampled("important/job")).isTrue();
+    assertThat(newConfig.isSampled("unimportant/job")).isFalse();
+    assertThat(newConfig.isSampled("other")).isTrue();
+    assertThat(newConfig.isSampled("other")).isFalse();
+  }
+
+  @Test
+  public void testBackfillSampling() {
+    JaegerConfig jaegerConfig = new JaegerConfig(new NullSenderConfig(), null);
+    jaegerConfig.setSampler(new ProbabilisticSamplerConfig(0.5));
+    jaegerConfig.setSamplingRules(
+        Collections.singletonList(new SamplingRule("other", new RateLimitingSamplerConfig(0.01))));
+
+    int sampled = 0;
+    for (int i = 1; i <= 1000; i++) {
+      String runId = "p#" + i;
+      boolean decision = jaegerConfig.isSampledForBackfill("p", runId);
+      assertThat(jaegerConfig.isSampledForBackfill("p", runId)).isEqualTo(decision);
+      sampled += decision ? 1 : 0;
+      assertThat(jaegerConfig.isSampledForBackfill("other", "other#" + i)).isTrue();
+    }
+    assertThat(sampled).isBetween(400, 600);
+    // the budget of the running builds is untouched
+    assertThat(jaegerConfig.isSampled("other")).isTrue();
+  }
+
   @Test
   public void testNullSender() throws Exception {
     assertSender(JaegerConfig.NullSenderConfig.class, new JaegerConfig.NullSenderConfig());
@@ -107,4 +231,63 @@ public class JaegerConfigTest {
         .noneMatch(k -> k.contains("-"))
         .allMatch(k -> k.contains("_")); // may not hold true forever
   }
+
+  // creates its sender once, like the configurations of jaeger-client
+  private static final class RecordingSenderConfig extends JaegerConfig.SenderConfig {
+    private final List<RecordingSender> senders = new CopyOnWriteArrayList<>();
+    private final CountDownLatch appending;
+
+    private RecordingSenderConfig(CountDownLatch appending) {
+      this.appending = appending;
+    }
+
+    @Override
+    SenderConfiguration getConfig() {
+      return new SenderConfiguration() {
+        private Sender sender;
+
+        @Override
+        public synchronized Sender getSender() {
+          if (sender == null) {
+            RecordingSender recording = new RecordingSender(appending);
+            senders.add(recording);
+            sender = recording;
+          }
+          return sender;
+        }
+      };
+    }
+  }
+
+  private static final class RecordingSender implements Sender {
+    private final Set<String> services = ConcurrentHashMap.newKeySet();
+    private final CountDownLatch appending;
+
+    private RecordingSender(CountDownLatch appending) {
+      this.appending = appending;
+    }
+
+    @Override
+    public int append(JaegerSpan span) throws SenderException {
+      services.add(span.getTracer().getServiceName());
+      appending.countDown();
+      try {
+        appending.await(30, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new SenderException("Interrupted", e, 1);
+      }
+      return 0;
+    }
+
+    @Override
+    public int flush() {
+      return 0;
+    }
+
+    @Override
+    public int close() {
+      return 0;
+    }
+  }
 }
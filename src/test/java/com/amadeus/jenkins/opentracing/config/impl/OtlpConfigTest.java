@@ -0,0 +1,123 @@
+package com.amadeus.jenkins.opentracing.config.impl;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.jaegertracing.internal.JaegerTracer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class OtlpConfigTest {
+  private static final Pattern SPAN_NAME = Pattern.compile("\"name\":\"span\\d+\"");
+
+  private HttpServer collector;
+  private final List<String> requests = new CopyOnWriteArrayList<>();
+  private final List<String> encodings = new CopyOnWriteArrayList<>();
+  private volatile int status = 200;
+
+  // stand-in for the OTLP/HTTP receiver of a collector
+  @Before
+  public void startCollector() throws IOException {
+    collector = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    collector.createContext("/v1/traces", this::receive);
+    collector.start();
+  }
+
+  @After
+  public void stopCollector() {
+    collector.stop(0);
+  }
+
+  private void receive(HttpExchange exchange) throws IOException {
+    InputStream in = exchange.getRequestBody();
+    String encoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+    encodings.add(String.valueOf(encoding));
+    if ("gzip".equals(encoding)) {
+      in = new GZIPInputStream(in);
+    }
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1024];
+    int read;
+    while ((read = in.read(buffer)) >= 0) {
+      body.write(buffer, 0, read);
+    }
+    requests.add(new String(body.toByteArray(), StandardCharsets.UTF_8));
+    exchange.sendResponseHeaders(status, -1);
+    exchange.close();
+  }
+
+  private String endpoint() {
+    return "http://localhost:" + collector.getAddress().getPort() + "/v1/traces";
+  }
+
+  @Test
+  public void testSpansAreExportedInCompressedBatches() {
+    OtlpConfig config = new OtlpConfig(endpoint());
+    config.setBatchSize(10);
+    config.setFlushInterval(50);
+    JaegerTracer tracer = (JaegerTracer) config.getTracerForName("test");
+    for (int i = 0; i < 25; i++) {
+      tracer.buildSpan("span" + i).start().finish();
+    }
+    tracer.close();
+
+    assertThat(encodings).containsOnly("gzip");
+    int exported = 0;
+    for (String request : requests) {
+      assertThat(request).startsWith("{\"resourceSpans\":[");
+      int spans = count(request);
+      assertThat(spans).isBetween(1, 10);
+      exported += spans;
+    }
+    assertThat(exported).isEqualTo(25);
+    assertThat(config.getMetrics()).containsEntry("sent", 25L).containsEntry("failed", 0L);
+  }
+
+  @Test
+  public void testUncompressedExport() {
+    OtlpConfig config = new OtlpConfig(endpoint());
+    config.setCompression(false);
+    JaegerTracer tracer = (JaegerTracer) config.getTracerForName("test");
+    tracer.buildSpan("span0").start().finish();
+    tracer.close();
+
+    assertThat(encodings).containsExactly("null");
+    assertThat(requests.get(0)).startsWith("{\"resourceSpans\":[").contains("\"name\":\"span0\"");
+  }
+
+  @Test
+  public void testRejectedExportsAreCountedAsFailed() {
+    status = 503;
+    OtlpConfig config = new OtlpConfig(endpoint());
+    JaegerTracer tracer = (JaegerTracer) config.getTracerForName("test");
+    for (int i = 0; i < 5; i++) {
+      tracer.buildSpan("span" + i).start().finish();
+    }
+    tracer.close();
+
+    assertThat(requests).isNotEmpty();
+    assertThat(config.getMetrics()).containsEntry("sent", 0L).containsEntry("failed", 5L);
+  }
+
+  private static int count(String request) {
+    Matcher matcher = SPAN_NAME.matcher(request);
+    int count = 0;
+    while (matcher.find()) {
+      count++;
+    }
+    return count;
+  }
+}
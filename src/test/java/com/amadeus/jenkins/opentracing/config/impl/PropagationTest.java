@@ -0,0 +1,147 @@
+package com.amadeus.jenkins.opentracing.config.impl;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.jaegertracing.internal.JaegerSpan;
+import io.jaegertracing.internal.JaegerSpanContext;
+import io.jaegertracing.internal.JaegerTracer;
+import io.jaegertracing.internal.reporters.InMemoryReporter;
+import io.jaegertracing.internal.samplers.ConstSampler;
+import io.opentracing.propagation.Format.Builtin;
+import io.opentracing.propagation.TextMapAdapter;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+
+public class PropagationTest {
+
+  private static JaegerTracer tracer(Propagation propagation) {
+    return new JaegerTracer.Builder("test")
+        .withReporter(new InMemoryReporter())
+        .withSampler(new ConstSampler(true))
+        .registerInjector(Builtin.TEXT_MAP, propagation.getCodec())
+        .registerExtractor(Builtin.TEXT_MAP, propagation.getCodec())
+        .build();
+  }
+
+  private static Map<String, String> inject(JaegerTracer tracer, JaegerSpan span) {
+    Map<String, String> envs = new HashMap<>();
+    tracer.inject(span.context(), Builtin.TEXT_MAP, new TextMapAdapter(envs));
+    return envs;
+  }
+
+  private static JaegerSpanContext extract(JaegerTracer tracer, Map<String, String> envs) {
+    return tracer.extract(Builtin.TEXT_MAP, new TextMapAdapter(envs));
+  }
+
+  @Test
+  public void testTraceParent() {
+    JaegerTracer tracer = tracer(Propagation.W3C);
+    JaegerSpan span = tracer.buildSpan("span").start();
+    span.setBaggageItem("user", "a value,with separators");
+    JaegerSpanContext context = span.context();
+
+    Map<String, String> envs = inject(tracer, span);
+
+    assertThat(envs)
+        .containsOnlyKeys("TRACEPARENT", "BAGGAGE")
+        .containsEntry(
+            "TRACEPARENT",
+            String.format(
+                "00-%016x%016x-%016x-01",
+                context.getTraceIdHigh(), context.getTraceIdLow(), context.getSpanId()))
+        .containsEntry("BAGGAGE", "user=a%20value%2Cwith%20separators");
+  }
+
+  @Test
+  public void testRoundTrips() {
+    for (Propagation propagation : Propagation.values()) {
+      JaegerTracer tracer = tracer(propagation);
+      JaegerSpan span = tracer.buildSpan("span").start();
+      if (propagation != Propagation.B3) {
+        span.setBaggageItem("user", "a value");
+      }
+      JaegerSpanContext context = span.context();
+
+      JaegerSpanContext extracted = extract(tracer, inject(tracer, span));
+
+      String name = propagation.name();
+      assertThat(extracted.getTraceIdHigh()).as(name).isEqualTo(context.getTraceIdHigh());
+      assertThat(extracted.getTraceIdLow()).as(name).isEqualTo(context.getTraceIdLow());
+      assertThat(extracted.getSpanId()).as(name).isEqualTo(context.getSpanId());
+      assertThat(extracted.isSampled()).as(name).isTrue();
+      if (propagation != Propagation.B3) {
+        assertThat(extracted.getBaggageItem("user")).as(name).isEqualTo("a value");
+      }
+    }
+  }
+
+  @Test
+  public void testContextsOfOtherFormatsAreExtracted() {
+    JaegerTracer jaeger = tracer(Propagation.JAEGER);
+    JaegerSpan span = jaeger.buildSpan("span").start();
+    Map<String, String> envs = inject(jaeger, span);
+
+    JaegerSpanContext extracted = extract(tracer(Propagation.W3C), envs);
+
+    assertThat(extracted.getSpanId()).isEqualTo(span.context().getSpanId());
+  }
+
+  @Test
+  public void testB3() {
+    JaegerTracer tracer = tracer(Propagation.B3);
+
+    JaegerSpanContext full =
+        extract(
+            tracer,
+            Collections.singletonMap(
+                "B3", "80f198ee56343ba864fe8b2a57d3eff7-e457b5a2e4d86bd1-d-05e3ac9a4f6e3b90"));
+    assertThat(full.getTraceIdHigh()).isEqualTo(0x80f198ee56343ba8L);
+    assertThat(full.getTraceIdLow()).isEqualTo(0x64fe8b2a57d3eff7L);
+    assertThat(full.getSpanId()).isEqualTo(0xe457b5a2e4d86bd1L);
+    assertThat(full.getParentId()).isEqualTo(0x05e3ac9a4f6e3b90L);
+    assertThat(full.isDebug()).isTrue();
+
+    JaegerSpanContext deferred =
+        extract(tracer, Collections.singletonMap("B3", "64fe8b2a57d3eff7-e457b5a2e4d86bd1"));
+    assertThat(deferred.getTraceIdHigh()).isZero();
+    assertThat(deferred.getTraceIdLow()).isEqualTo(0x64fe8b2a57d3eff7L);
+    assertThat(deferred.isSampled()).isTrue();
+
+    JaegerSpan child = tracer.buildSpan("child").asChildOf(deferred).start();
+    assertThat(inject(tracer, child))
+        .containsEntry(
+            "B3",
+            String.format(
+                "64fe8b2a57d3eff7-%016x-1-e457b5a2e4d86bd1", child.context().getSpanId()));
+  }
+
+  @Test
+  public void testInvalidContextsAreIgnored() {
+    JaegerTracer w3c = tracer(Propagation.W3C);
+    assertThat(
+            extract(
+                w3c,
+                Collections.singletonMap(
+                    "TRACEPARENT", "ff-0af7651916cd43dd8448eb211c80319c-b7ad6b7169203331-01")))
+        .isNull();
+    assertThat(
+            extract(
+                w3c,
+                Collections.singletonMap(
+                    "TRACEPARENT", "00-00000000000000000000000000000000-b7ad6b7169203331-01")))
+        .isNull();
+    assertThat(
+            extract(
+                w3c,
+                Collections.singletonMap(
+                    "TRACEPARENT", "00-0af7651916cd43dd8448eb211c80319c-B7AD6B7169203331-01")))
+        .isNull();
+
+    JaegerTracer b3 = tracer(Propagation.B3);
+    assertThat(extract(b3, Collections.singletonMap("B3", "1"))).isNull();
+    assertThat(extract(b3, Collections.singletonMap("B3", "64fe8b2a57d3eff7-e457b5a2e4d86bd1-x")))
+        .isNull();
+  }
+}
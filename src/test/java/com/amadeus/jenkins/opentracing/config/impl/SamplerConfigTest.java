@@ -0,0 +1,39 @@
+package com.amadeus.jenkins.opentracing.config.impl;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.amadeus.jenkins.opentracing.config.impl.SamplerConfig.AdaptiveSamplerConfig;
+import com.amadeus.jenkins.opentracing.config.impl.SamplerConfig.ProbabilisticSamplerConfig;
+import com.amadeus.jenkins.opentracing.config.impl.SamplerConfig.RateLimitingSamplerConfig;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class SamplerConfigTest {
+
+  @Test
+  public void testProbabilistic() {
+    assertThat(new ProbabilisticSamplerConfig(0).isSampled("p")).isFalse();
+    assertThat(new ProbabilisticSamplerConfig(1).isSampled("p")).isTrue();
+  }
+
+  @Test
+  public void testRateLimiting() {
+    SamplerConfig sampler = new RateLimitingSamplerConfig(0.01);
+    assertThat(sampler.isSampled("p")).isTrue();
+    assertThat(sampler.isSampled("p")).isFalse();
+  }
+
+  @Test
+  public void testAdaptive() {
+    AdaptiveSamplerConfig sampler = new AdaptiveSamplerConfig(1);
+    long start = System.nanoTime();
+    assertThat(sampler.getProbability(start)).isEqualTo(1);
+
+    for (int i = 0; i < 1000; i++) {
+      sampler.spanReported();
+    }
+    long next = start + TimeUnit.SECONDS.toNanos(11);
+    assertThat(sampler.getProbability(next)).isEqualTo(0.5);
+    assertThat(sampler.getProbability(next + TimeUnit.SECONDS.toNanos(11))).isEqualTo(1);
+  }
+}
@@ -0,0 +1,95 @@
+package com.amadeus.jenkins.opentracing.test.fixtures;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/** Waits until the test releases it, also after a restart of Jenkins. */
+public class WaitStep extends Step {
+  private static final Map<String, StepContext> waiting = new ConcurrentHashMap<>();
+
+  private final String id;
+
+  @DataBoundConstructor
+  public WaitStep(String id) {
+    this.id = id;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  @Override
+  public StepExecution start(StepContext context) {
+    return new Execution(context, id);
+  }
+
+  /** Waits for the step {@code id} to be running and lets it complete. */
+  public static void release(String id) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(1);
+    StepContext context;
+    while ((context = waiting.remove(id)) == null) {
+      if (System.nanoTime() > deadline) {
+        throw new AssertionError("Step " + id + " is not waiting");
+      }
+      Thread.sleep(100);
+    }
+    context.onSuccess(null);
+  }
+
+  /**
+   * Waits for the step {@code id} to be running before a restart. Its context is forgotten, the
+   * step can only be released once it resumed.
+   */
+  public static void awaitStartBeforeRestart(String id) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(1);
+    while (waiting.remove(id) == null) {
+      if (System.nanoTime() > deadline) {
+        throw new AssertionError("Step " + id + " did not start");
+      }
+      Thread.sleep(100);
+    }
+  }
+
+  private static class Execution extends StepExecution {
+    private static final long serialVersionUID = 1L;
+    private final String id;
+
+    Execution(StepContext context, String id) {
+      super(context);
+      this.id = id;
+    }
+
+    @Override
+    public boolean start() {
+      waiting.put(id, getContext());
+      return false;
+    }
+
+    @Override
+    public void onResume() {
+      waiting.put(id, getContext());
+    }
+  }
+
+  public static class DescriptorImpl extends StepDescriptor {
+    @Override
+    public String getFunctionName() {
+      return "waitFor";
+    }
+
+    @Override
+    public Set<? extends Class<?>> getRequiredContext() {
+      return Collections.emptySet();
+    }
+  }
+
+  public static DescriptorImpl extension = new DescriptorImpl();
+}
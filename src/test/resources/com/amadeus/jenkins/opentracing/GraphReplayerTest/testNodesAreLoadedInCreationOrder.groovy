@@ -0,0 +1,9 @@
+package com.amadeus.jenkins.opentracing.GraphReplayerTest
+
+stage('outer') {
+    parallel a: {
+        echo 'a'
+    }, b: {
+        echo 'b'
+    }
+}
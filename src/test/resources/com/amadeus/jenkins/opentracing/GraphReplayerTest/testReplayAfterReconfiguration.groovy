@@ -0,0 +1,7 @@
+package com.amadeus.jenkins.opentracing.GraphReplayerTest
+
+stage('outer') {
+    echo 'waiting'
+    waitFor 'reconfiguration'
+    echo 'after'
+}
@@ -0,0 +1,5 @@
+package com.amadeus.jenkins.opentracing.PipelineTracingTest
+
+noop {
+    printEnv "spanid"
+}
@@ -0,0 +1,6 @@
+package com.amadeus.jenkins.opentracing.PipelineTracingTest
+
+noop {
+    printEnv "spanid"
+    printEnv "spanid"
+}
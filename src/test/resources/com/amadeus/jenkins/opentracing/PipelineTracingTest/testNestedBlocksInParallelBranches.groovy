@@ -0,0 +1,13 @@
+package com.amadeus.jenkins.opentracing.PipelineTracingTest
+
+parallel a: {
+    noop {
+        noop {
+            printEnv "a"
+        }
+    }
+}, b: {
+    noop {
+        printEnv "b"
+    }
+}
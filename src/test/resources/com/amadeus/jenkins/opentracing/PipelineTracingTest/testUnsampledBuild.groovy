@@ -0,0 +1,7 @@
+package com.amadeus.jenkins.opentracing.PipelineTracingTest
+
+noop {
+    node {
+        printEnv "spanid"
+    }
+}
@@ -0,0 +1,6 @@
+package com.amadeus.jenkins.opentracing.RestartTest
+
+stage('outer') {
+    waitFor 'restart'
+    echo 'resumed'
+}
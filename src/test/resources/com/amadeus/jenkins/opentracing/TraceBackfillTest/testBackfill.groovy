@@ -0,0 +1,5 @@
+package com.amadeus.jenkins.opentracing.TraceBackfillTest
+
+stage('outer') {
+    echo 'inside'
+}